@@ -0,0 +1,156 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import org.torproject.onionoo.docs.BandwidthDocument;
+import org.torproject.onionoo.docs.DocumentSegments;
+import org.torproject.onionoo.docs.DocumentStore;
+import org.torproject.onionoo.docs.DocumentStoreFactory;
+import org.torproject.onionoo.docs.SummaryDocument;
+import org.torproject.onionoo.docs.UpdateStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/** Compares the time to build a bandwidth response for many relays from
+ * memory-mapped segment files and from document files, with and without
+ * reading document files ahead of the document that is currently
+ * written.
+ *
+ * <p>Run with optional arguments for the number of relays, bytes per
+ * bandwidth document, and runs per setup, for example: <code>ant
+ * benchmark -Dbenchmark.class=DocumentPrefetcherBenchmark
+ * -Dbenchmark.args="10000 8000 5"</code>.  Run as root to drop the page
+ * cache before each run, so that documents are read from disk.</p> */
+public class DocumentPrefetcherBenchmark {
+
+  /** Runs the benchmark on a generated out/ directory. */
+  public static void main(String[] args) throws Exception {
+    int relays = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int documentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    File outDir = Files.createTempDirectory("onionoo-benchmark").toFile();
+    try {
+      DocumentStore documentStore = new DocumentStore();
+      documentStore.setOutDir(outDir);
+      DocumentStoreFactory.setDocumentStore(documentStore);
+      List<SummaryDocument> entries = generateDocuments(documentStore,
+          relays, documentBytes);
+      documentStore.list(SummaryDocument.class);
+      documentStore.flushDocumentCache();
+      long generation = documentStore.retrieve(UpdateStatus.class, true)
+          .getUpdatedMillis();
+      documentStore.invalidateDocumentCache();
+      runBenchmark("segment files", documentStore, generation, entries,
+          DocumentPrefetcher.READ_AHEAD, runs);
+      runBenchmark("document files, read-ahead "
+          + DocumentPrefetcher.READ_AHEAD, documentStore, -1L, entries,
+          DocumentPrefetcher.READ_AHEAD, runs);
+      runBenchmark("document files, read-ahead 1", documentStore, -1L,
+          entries, 1, runs);
+    } finally {
+      deleteRecursively(outDir);
+    }
+  }
+
+  private static List<SummaryDocument> generateDocuments(
+      DocumentStore documentStore, int relays, int documentBytes) {
+    List<SummaryDocument> entries = new ArrayList<>();
+    char[] padding = new char[Math.max(0, documentBytes - 80)];
+    Arrays.fill(padding, '0');
+    String history = new String(padding);
+    for (int i = 0; i < relays; i++) {
+      String fingerprint = String.format("%040X", i * 7919L);
+      BandwidthDocument bandwidthDocument = new BandwidthDocument();
+      bandwidthDocument.setDocumentString("{\"fingerprint\":\""
+          + fingerprint + "\",\"read_history\":\"" + history + "\"}");
+      documentStore.store(bandwidthDocument, fingerprint);
+      SummaryDocument entry = new SummaryDocument(true, "relay" + i,
+          fingerprint, Collections.singletonList("10.0.0.1"), 0L, true,
+          new TreeSet<>(Collections.singletonList("Running")), 1L, null,
+          0L, null, null, null, null, null, null, null, null, null);
+      documentStore.store(entry, fingerprint);
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private static void runBenchmark(String name,
+      DocumentStore documentStore, long generation,
+      List<SummaryDocument> entries, int readAhead, int runs)
+      throws IOException {
+    List<Long> responseMillis = new ArrayList<>();
+    long openMillis = 0L;
+    long bytesWritten = 0L;
+    for (int run = 0; run < runs; run++) {
+      boolean dropped = dropPageCache();
+      if (run == 0 && !dropped) {
+        System.out.println("Could not drop the page cache, so that "
+            + "documents are read from memory.");
+      }
+      long openStartedMillis = System.currentTimeMillis();
+      DocumentSegments documentSegments =
+          documentStore.openSegments(generation);
+      openMillis += System.currentTimeMillis() - openStartedMillis;
+      ResponseBuilder rb = new ResponseBuilder();
+      rb.setResourceType("bandwidth");
+      rb.setDocumentSegments(documentSegments);
+      rb.setRelaysPublishedString("2018-01-01 00:00:00");
+      rb.setBridgesPublishedString("2018-01-01 00:00:00");
+      rb.setOrderedRelays(entries);
+      rb.setOrderedBridges(Collections.<SummaryDocument>emptyList());
+      rb.setReadAhead(readAhead);
+      long startedMillis = System.currentTimeMillis();
+      rb.buildResponse(new OutputStream() {
+        @Override
+        public void write(int oneByte) {
+          /* Discard the response. */
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+          /* Discard the response. */
+        }
+      });
+      responseMillis.add(System.currentTimeMillis() - startedMillis);
+      bytesWritten = rb.getBytesWritten();
+    }
+    Collections.sort(responseMillis);
+    System.out.printf("%s: %d bytes, opening segments %d ms, building "
+        + "response median %d ms, min %d ms, max %d ms%n", name,
+        bytesWritten, openMillis / runs,
+        responseMillis.get(responseMillis.size() / 2),
+        responseMillis.get(0), responseMillis.get(responseMillis.size() - 1));
+  }
+
+  /* Drops the page cache, which only works on Linux and as root. */
+  private static boolean dropPageCache() {
+    try {
+      Files.write(Paths.get("/proc/sys/vm/drop_caches"),
+          "1\n".getBytes(StandardCharsets.US_ASCII));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (null != children) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,304 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import org.torproject.onionoo.docs.DetailsDocument;
+import org.torproject.onionoo.docs.DocumentStore;
+import org.torproject.onionoo.docs.DocumentStoreFactory;
+import org.torproject.onionoo.docs.SummaryDocument;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Compares throughput and latency of handling requests on the platform
+ * thread pool configured in jetty.xml and on virtual threads, with many
+ * concurrent slow clients that each read a multi-megabyte response in
+ * small pieces with pauses in between, so that writing responses blocks
+ * on full socket buffers.
+ *
+ * <p>Clients request a generated response of a given size, and details
+ * documents of all relays from ResourceServlet on a generated out/
+ * directory, written synchronously and asynchronously.</p>
+ *
+ * <p>Run with optional arguments for the number of concurrent clients,
+ * requests per client, megabytes per generated response, bytes that
+ * clients read at once, milliseconds that clients pause between reads,
+ * relays in the out/ directory, and bytes per details document, for
+ * example: <code>ant benchmark -Dbenchmark.args="300 2 4 8192 10 2000
+ * 2000"</code>.  Virtual threads require Java 21 or higher.</p> */
+public class ThreadPoolBenchmark {
+
+  /* Servlet that writes a response of a given size. */
+  private static class LargeResponseServlet extends HttpServlet {
+
+    private static final long serialVersionUID = -2491648301827745293L;
+
+    private final int responseBytes;
+
+    private LargeResponseServlet(int responseBytes) {
+      this.responseBytes = responseBytes;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request,
+        HttpServletResponse response) throws IOException {
+      response.setContentType("application/json");
+      byte[] chunk = new byte[8192];
+      Arrays.fill(chunk, (byte) ' ');
+      OutputStream os = response.getOutputStream();
+      for (int written = 0; written < this.responseBytes;
+          written += chunk.length) {
+        os.write(chunk, 0, Math.min(chunk.length,
+            this.responseBytes - written));
+      }
+    }
+  }
+
+  /* Latencies of a single request in milliseconds. */
+  private static class Latency {
+
+    private long firstByteMillis;
+
+    private long lastByteMillis;
+
+    private long bytes;
+  }
+
+  /** Runs the benchmark with platform threads and virtual threads. */
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1])
+        : 2;
+    int responseBytes = (args.length > 2 ? Integer.parseInt(args[2]) : 4)
+        << 20;
+    int readBytes = args.length > 3 ? Integer.parseInt(args[3]) : 8192;
+    long readIntervalMillis = args.length > 4 ? Long.parseLong(args[4])
+        : 10L;
+    int relays = args.length > 5 ? Integer.parseInt(args[5]) : 2000;
+    int documentBytes = args.length > 6 ? Integer.parseInt(args[6])
+        : 2000;
+    File outDir = Files.createTempDirectory("onionoo-benchmark").toFile();
+    NodeIndexer nodeIndexer = createNodeIndex(outDir, relays,
+        documentBytes);
+    try {
+      for (String threads : new String[] { "platform threads",
+          "virtual threads" }) {
+        if (null == createThreadPool(threads)) {
+          System.out.println(threads + ": not supported by this Java "
+              + "runtime.");
+          continue;
+        }
+        runBenchmark(threads + ", generated response",
+            createThreadPool(threads),
+            new LargeResponseServlet(responseBytes), "/details", clients,
+            requestsPerClient, readBytes, readIntervalMillis);
+        runBenchmark(threads + ", ResourceServlet, synchronous writing",
+            createThreadPool(threads), createResourceServlet("0"),
+            "/details", clients, requestsPerClient, readBytes,
+            readIntervalMillis);
+        runBenchmark(threads + ", ResourceServlet, asynchronous writing",
+            createThreadPool(threads), createResourceServlet("1"),
+            "/details", clients, requestsPerClient, readBytes,
+            readIntervalMillis);
+      }
+    } finally {
+      nodeIndexer.stopIndexing();
+      deleteRecursively(outDir);
+    }
+  }
+
+  private static ThreadPool createThreadPool(String threads) {
+    if (threads.startsWith("virtual")) {
+      return ServerMain.createVirtualThreadPool();
+    }
+    QueuedThreadPool platformThreadPool = new QueuedThreadPool();
+    platformThreadPool.setMinThreads(25);
+    platformThreadPool.setMaxThreads(250);
+    return platformThreadPool;
+  }
+
+  /* Writes details documents of the given number of relays to the given
+   * out/ directory and builds a node index from them. */
+  private static NodeIndexer createNodeIndex(File outDir, int relays,
+      int documentBytes) {
+    DocumentStore documentStore = new DocumentStore();
+    documentStore.setOutDir(outDir);
+    DocumentStoreFactory.setDocumentStore(documentStore);
+    char[] padding = new char[Math.max(0, documentBytes - 120)];
+    Arrays.fill(padding, 'x');
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < relays; i++) {
+      String fingerprint = String.format("%040X", i * 7919L);
+      DetailsDocument detailsDocument = new DetailsDocument();
+      detailsDocument.setDocumentString("{\"nickname\":\"relay" + i
+          + "\",\"fingerprint\":\"" + fingerprint + "\",\"running\":true,"
+          + "\"contact\":\"" + new String(padding) + "\"}");
+      documentStore.store(detailsDocument, fingerprint);
+      documentStore.store(new SummaryDocument(true, "relay" + i,
+          fingerprint, Collections.singletonList("10.0.0.1"), now, true,
+          new TreeSet<>(Collections.singletonList("Running")), 1L, null,
+          now, null, null, null, null, null, null, null, null, null),
+          fingerprint);
+    }
+    documentStore.list(SummaryDocument.class);
+    documentStore.flushDocumentCache();
+    documentStore.invalidateDocumentCache();
+    NodeIndexer nodeIndexer = new NodeIndexer();
+    NodeIndexerFactory.setNodeIndexer(nodeIndexer);
+    nodeIndexer.startIndexing();
+    if (null == nodeIndexer.getLatestNodeIndex(60000L)) {
+      throw new IllegalStateException("Could not build node index.");
+    }
+    return nodeIndexer;
+  }
+
+  /* Returns a resource servlet that does not cache responses, so that
+   * each request reads documents from the document store. */
+  private static ServletHolder createResourceServlet(String asyncWriting) {
+    ServletHolder holder = new ServletHolder(new ResourceServlet());
+    holder.setInitParameter("asyncwriting", asyncWriting);
+    holder.setInitParameter("responsecachemegabytes", "0");
+    holder.setAsyncSupported(true);
+    return holder;
+  }
+
+  private static void runBenchmark(String name, ThreadPool threadPool,
+      Servlet servlet, String path, int clients, int requestsPerClient,
+      int readBytes, long readIntervalMillis) throws Exception {
+    runBenchmark(name, threadPool, new ServletHolder(servlet), path,
+        clients, requestsPerClient, readBytes, readIntervalMillis);
+  }
+
+  private static void runBenchmark(String name, ThreadPool threadPool,
+      ServletHolder servletHolder, String path, int clients,
+      final int requestsPerClient, final int readBytes,
+      final long readIntervalMillis) throws Exception {
+    Server server = new Server(threadPool);
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    connector.setAcceptQueueSize(clients);
+    server.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    context.addServlet(servletHolder, path);
+    server.setHandler(context);
+    server.start();
+    final InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+        connector.getLocalPort());
+    final byte[] request = ("GET " + path + " HTTP/1.0\r\nHost: "
+        + "127.0.0.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    ExecutorService clientThreads = Executors.newFixedThreadPool(clients);
+    List<Future<List<Latency>>> futures = new ArrayList<>();
+    long startedMillis = System.currentTimeMillis();
+    for (int i = 0; i < clients; i++) {
+      futures.add(clientThreads.submit(new Callable<List<Latency>>() {
+        @Override
+        public List<Latency> call() throws Exception {
+          List<Latency> latencies = new ArrayList<>();
+          for (int j = 0; j < requestsPerClient; j++) {
+            latencies.add(readSlowly(address, request, readBytes,
+                readIntervalMillis));
+          }
+          return latencies;
+        }
+      }));
+    }
+    List<Latency> latencies = new ArrayList<>();
+    for (Future<List<Latency>> future : futures) {
+      latencies.addAll(future.get());
+    }
+    long elapsedMillis = System.currentTimeMillis() - startedMillis;
+    clientThreads.shutdown();
+    clientThreads.awaitTermination(1L, TimeUnit.MINUTES);
+    server.stop();
+    List<Long> firstByteMillis = new ArrayList<>();
+    List<Long> lastByteMillis = new ArrayList<>();
+    long bytes = 0L;
+    for (Latency latency : latencies) {
+      firstByteMillis.add(latency.firstByteMillis);
+      lastByteMillis.add(latency.lastByteMillis);
+      bytes += latency.bytes;
+    }
+    Collections.sort(firstByteMillis);
+    Collections.sort(lastByteMillis);
+    System.out.printf("%s: %d requests of %.1f MiB in %d ms, %.1f "
+        + "requests/s, first byte p50 %d ms, p99 %d ms, complete response "
+        + "p50 %d ms, p99 %d ms, max %d ms%n", name, latencies.size(),
+        bytes / (double) latencies.size() / (1 << 20), elapsedMillis,
+        1000.0 * latencies.size() / elapsedMillis,
+        percentile(firstByteMillis, 0.5), percentile(firstByteMillis, 0.99),
+        percentile(lastByteMillis, 0.5), percentile(lastByteMillis, 0.99),
+        lastByteMillis.get(lastByteMillis.size() - 1));
+  }
+
+  /* Sends the given request and reads the response in pieces of the given
+   * size with pauses in between, using a small receive buffer, so that
+   * the server cannot write much more than the client has read. */
+  private static Latency readSlowly(InetSocketAddress address,
+      byte[] request, int readBytes, long readIntervalMillis)
+      throws IOException, InterruptedException {
+    Latency latency = new Latency();
+    long startedNanos = System.nanoTime();
+    try (Socket socket = new Socket()) {
+      socket.setReceiveBufferSize(readBytes);
+      socket.connect(address);
+      socket.getOutputStream().write(request);
+      InputStream is = socket.getInputStream();
+      byte[] buffer = new byte[readBytes];
+      int read;
+      while ((read = is.read(buffer)) >= 0) {
+        if (0L == latency.bytes) {
+          latency.firstByteMillis = (System.nanoTime() - startedNanos)
+              / 1000000L;
+        }
+        latency.bytes += read;
+        Thread.sleep(readIntervalMillis);
+      }
+    }
+    latency.lastByteMillis = (System.nanoTime() - startedNanos) / 1000000L;
+    return latency;
+  }
+
+  private static long percentile(List<Long> sortedValues,
+      double percentile) {
+    return sortedValues.get((int) (sortedValues.size() * percentile));
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (null != children) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
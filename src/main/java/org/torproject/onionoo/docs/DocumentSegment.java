@@ -0,0 +1,240 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.docs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** Segment file containing documents packed one after another, preceded
+ * by an index of fingerprints, offsets, and lengths sorted by
+ * fingerprint.
+ *
+ * <p>The file starts with a magic number, a format version, the number
+ * of documents, and the chunk size, followed by one index entry per
+ * document consisting of the 40 ASCII characters of the fingerprint, the
+ * 8-byte offset of the document in the file, and its 4-byte length.  All
+ * numbers are stored in big-endian order.</p>
+ *
+ * <p>Segment files are memory-mapped for reading, so that documents can
+ * be sliced out of them without opening a file per document and without
+ * copying them to the heap.  A single mapping cannot exceed 2 GiB, so
+ * files are mapped in chunks of the given size, and documents are padded
+ * to start in the next chunk rather than span two chunks.  The index
+ * needs to fit into the first chunk.</p> */
+class DocumentSegment {
+
+  private static final int MAGIC = 0x4f4f5347;
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER_BYTES = 16;
+
+  private static final int FINGERPRINT_BYTES = 40;
+
+  private static final int INDEX_ENTRY_BYTES = FINGERPRINT_BYTES + 12;
+
+  /** Default size of chunks that are mapped separately. */
+  static final int DEFAULT_CHUNK_BYTES = 1 << 30;
+
+  private final ByteBuffer[] chunks;
+
+  private final int chunkBytes;
+
+  private final int documents;
+
+  private DocumentSegment(ByteBuffer[] chunks, int chunkBytes,
+      int documents) {
+    this.chunks = chunks;
+    this.chunkBytes = chunkBytes;
+    this.documents = documents;
+  }
+
+  /** Writer of a segment file with a given number of documents, which
+   * need to be appended in ascending order of fingerprints. */
+  static class Writer implements Closeable {
+
+    private final FileChannel channel;
+
+    private final ByteBuffer index;
+
+    private final int chunkBytes;
+
+    private long offset;
+
+    private String lastFingerprint;
+
+    Writer(File segmentFile, int documents) throws IOException {
+      this(segmentFile, documents, DEFAULT_CHUNK_BYTES);
+    }
+
+    Writer(File segmentFile, int documents, int chunkBytes)
+        throws IOException {
+      if (HEADER_BYTES + (long) documents * INDEX_ENTRY_BYTES
+          > chunkBytes) {
+        throw new IOException("Index of " + documents + " documents does "
+            + "not fit into the first chunk.");
+      }
+      this.channel = FileChannel.open(segmentFile.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      this.index = ByteBuffer.allocate(HEADER_BYTES
+          + documents * INDEX_ENTRY_BYTES);
+      this.index.putInt(MAGIC).putInt(VERSION).putInt(documents)
+          .putInt(chunkBytes);
+      this.chunkBytes = chunkBytes;
+      this.offset = this.index.capacity();
+    }
+
+    /** Appends the given document with the given fingerprint. */
+    void append(String fingerprint, byte[] document) throws IOException {
+      if (fingerprint.length() != FINGERPRINT_BYTES) {
+        throw new IOException("Invalid fingerprint '" + fingerprint
+            + "'.");
+      } else if (this.lastFingerprint != null
+          && this.lastFingerprint.compareTo(fingerprint) >= 0) {
+        throw new IOException("Fingerprint '" + fingerprint + "' is not "
+            + "in ascending order.");
+      } else if (!this.index.hasRemaining()) {
+        throw new IOException("Too many documents.");
+      } else if (document.length > this.chunkBytes) {
+        throw new IOException("Document with fingerprint '" + fingerprint
+            + "' is larger than a chunk.");
+      }
+      long chunkEnd = (this.offset / this.chunkBytes + 1L)
+          * this.chunkBytes;
+      if (this.offset + document.length > chunkEnd) {
+        /* Leave the rest of this chunk empty. */
+        this.offset = chunkEnd;
+      }
+      ByteBuffer documentBuffer = ByteBuffer.wrap(document);
+      while (documentBuffer.hasRemaining()) {
+        this.channel.write(documentBuffer, this.offset
+            + documentBuffer.position());
+      }
+      this.index.put(fingerprint.getBytes("US-ASCII")).putLong(this.offset)
+          .putInt(document.length);
+      this.offset += document.length;
+      this.lastFingerprint = fingerprint;
+    }
+
+    /** Writes the index to the beginning of the segment file, once all
+     * documents have been written, and closes the file. */
+    @Override
+    public void close() throws IOException {
+      try {
+        if (this.index.hasRemaining()) {
+          throw new IOException("Too few documents.");
+        }
+        this.index.flip();
+        long position = 0L;
+        while (this.index.hasRemaining()) {
+          position += this.channel.write(this.index, position);
+        }
+      } finally {
+        this.channel.close();
+      }
+    }
+  }
+
+  /** Memory-maps the given segment file chunk by chunk, checks its header
+   * and index, and loads its contents into memory, so that requests do
+   * not wait for pages of this segment to be read from disk. */
+  static DocumentSegment open(File segmentFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(segmentFile.toPath(),
+        StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      while (header.hasRemaining() && channel.read(header,
+          header.position()) >= 0) {
+        /* Read until the header is complete or the file ends. */
+      }
+      if (header.hasRemaining() || header.getInt(0) != MAGIC
+          || header.getInt(4) != VERSION) {
+        throw new IOException("Segment file '"
+            + segmentFile.getAbsolutePath() + "' has an unknown format.");
+      }
+      int documents = header.getInt(8);
+      int chunkBytes = header.getInt(12);
+      if (documents < 0 || chunkBytes <= 0 || HEADER_BYTES
+          + (long) documents * INDEX_ENTRY_BYTES > Math.min(size,
+          chunkBytes)) {
+        throw new IOException("Segment file '"
+            + segmentFile.getAbsolutePath() + "' is truncated.");
+      }
+      ByteBuffer[] chunks = new ByteBuffer[(int) ((size + chunkBytes - 1L)
+          / chunkBytes)];
+      for (int i = 0; i < chunks.length; i++) {
+        long position = (long) i * chunkBytes;
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+            position, Math.min(chunkBytes, size - position));
+        chunk.load();
+        chunks[i] = chunk;
+      }
+      return new DocumentSegment(chunks, chunkBytes, documents);
+    }
+  }
+
+  /** Returns the number of documents in this segment. */
+  int getDocuments() {
+    return this.documents;
+  }
+
+  /** Returns a read-only buffer with the contents of the document with
+   * the given fingerprint, or <code>null</code> if this segment does not
+   * contain such a document. */
+  ByteBuffer get(String fingerprint) {
+    if (fingerprint.length() != FINGERPRINT_BYTES) {
+      return null;
+    }
+    ByteBuffer indexChunk = this.chunks[0];
+    int low = 0;
+    int high = this.documents - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = HEADER_BYTES + middle * INDEX_ENTRY_BYTES;
+      int comparison = compareFingerprint(indexChunk, entry, fingerprint);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        long offset = indexChunk.getLong(entry + FINGERPRINT_BYTES);
+        int length = indexChunk.getInt(entry + FINGERPRINT_BYTES + 8);
+        if (offset < 0L || length < 0
+            || offset / this.chunkBytes >= this.chunks.length) {
+          return null;
+        }
+        ByteBuffer chunk = this.chunks[(int) (offset / this.chunkBytes)];
+        int position = (int) (offset % this.chunkBytes);
+        if (position + (long) length > chunk.capacity()) {
+          return null;
+        }
+        /* Work on a duplicate, so that concurrent lookups do not
+         * interfere with each other's positions and limits. */
+        ByteBuffer document = chunk.duplicate();
+        document.position(position);
+        document.limit(position + length);
+        return document.slice().asReadOnlyBuffer();
+      }
+    }
+    return null;
+  }
+
+  private static int compareFingerprint(ByteBuffer indexChunk, int entry,
+      String fingerprint) {
+    for (int i = 0; i < FINGERPRINT_BYTES; i++) {
+      int difference = (indexChunk.get(entry + i) & 0xff)
+          - fingerprint.charAt(i);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.docs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/** Memory-mapped segment files of all documents in out/ as of one update,
+ * which the server opens together with the node index built from that
+ * update, so that documents and node index always belong together.
+ *
+ * <p>Each update writes a manifest file <code>segments.&lt;generation&gt;
+ * </code> that maps segment names to the segment files that contain the
+ * documents as of that update.  Segment file names contain the generation
+ * of the update that wrote them, so that later updates never overwrite
+ * segment files listed in earlier manifests, and segment files that did
+ * not change are listed in more than one manifest.</p> */
+public class DocumentSegments {
+
+  private static final Logger log = LoggerFactory.getLogger(
+      DocumentSegments.class);
+
+  static final String MANIFEST_PREFIX = "segments.";
+
+  static final String SEGMENT_SUFFIX = ".seg";
+
+  private final Map<String, String> fileNames;
+
+  private final Map<String, DocumentSegment> segments;
+
+  private DocumentSegments(Map<String, String> fileNames,
+      Map<String, DocumentSegment> segments) {
+    this.fileNames = fileNames;
+    this.segments = segments;
+  }
+
+  /** Returns an empty set of segments, which makes the document store
+   * retrieve documents from document files. */
+  static DocumentSegments empty() {
+    return new DocumentSegments(Collections.<String, String>emptyMap(),
+        Collections.<String, DocumentSegment>emptyMap());
+  }
+
+  /** Opens all segment files listed in the manifest of the update with
+   * the given generation in the given directory, or returns an empty set
+   * of segments if there is no such manifest.  Segment files are opened
+   * right away, so that they can be deleted once a later update made
+   * them obsolete. */
+  static DocumentSegments open(File directory, long generation) {
+    File manifestFile = getManifestFile(directory, generation);
+    if (!manifestFile.isFile()) {
+      return empty();
+    }
+    Map<String, String> fileNames;
+    try {
+      fileNames = readManifest(manifestFile);
+    } catch (IOException e) {
+      log.error("Could not read manifest file '"
+          + manifestFile.getAbsolutePath() + "'.", e);
+      return empty();
+    }
+    Map<String, DocumentSegment> segments = new HashMap<>();
+    for (Map.Entry<String, String> e : fileNames.entrySet()) {
+      File segmentFile = new File(directory, e.getValue());
+      try {
+        segments.put(e.getKey(), DocumentSegment.open(segmentFile));
+      } catch (IOException ex) {
+        /* Documents of this segment are retrieved from document files
+         * instead. */
+        log.error("Could not read segment file '"
+            + segmentFile.getAbsolutePath() + "'.", ex);
+      }
+    }
+    return new DocumentSegments(fileNames, segments);
+  }
+
+  /** Returns the segment with the given name, or <code>null</code> if
+   * there is no such segment. */
+  DocumentSegment get(String name) {
+    return this.segments.get(name);
+  }
+
+  /** Returns the name of the file containing the segment with the given
+   * name, or <code>null</code> if there is no such segment. */
+  String getFileName(String name) {
+    return this.fileNames.get(name);
+  }
+
+  static File getManifestFile(File directory, long generation) {
+    return new File(directory, MANIFEST_PREFIX + generation);
+  }
+
+  /** Returns the generation of the update that wrote the manifest file
+   * with the given name, or <code>-1</code> if the file is not a
+   * manifest file. */
+  static long getManifestGeneration(String fileName) {
+    if (!fileName.startsWith(MANIFEST_PREFIX)) {
+      return -1L;
+    }
+    try {
+      return Long.parseLong(fileName.substring(MANIFEST_PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1L;
+    }
+  }
+
+  /** Reads segment names and segment file names from the given manifest
+   * file. */
+  static SortedMap<String, String> readManifest(File manifestFile)
+      throws IOException {
+    SortedMap<String, String> fileNames = new TreeMap<>();
+    for (String line : Files.readAllLines(manifestFile.toPath(),
+        StandardCharsets.US_ASCII)) {
+      String[] parts = line.split(" ");
+      if (parts.length != 2) {
+        throw new IOException("Invalid line '" + line + "' in manifest "
+            + "file '" + manifestFile.getAbsolutePath() + "'.");
+      }
+      fileNames.put(parts[0], parts[1]);
+    }
+    return fileNames;
+  }
+
+  /** Writes the given segment names and segment file names to the given
+   * manifest file, replacing any previous manifest file atomically. */
+  static void writeManifest(File manifestFile,
+      SortedMap<String, String> fileNames) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String> e : fileNames.entrySet()) {
+      sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+    }
+    File manifestTempFile = new File(manifestFile.getAbsolutePath()
+        + ".tmp");
+    Files.write(manifestTempFile.toPath(),
+        sb.toString().getBytes(StandardCharsets.US_ASCII));
+    Files.move(manifestTempFile.toPath(), manifestFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Returns those of the given file names in the given directory that
+   * are manifest or segment files, but that are neither one of the given
+   * number of latest manifest files nor a segment file listed in one of
+   * them, so that they can be deleted. */
+  static List<String> listObsoleteFiles(File directory,
+      List<String> fileNames, int keepManifests) throws IOException {
+    SortedMap<Long, String> manifestFileNames = new TreeMap<>(
+        Collections.<Long>reverseOrder());
+    for (String fileName : fileNames) {
+      long generation = getManifestGeneration(fileName);
+      if (generation >= 0L) {
+        manifestFileNames.put(generation, fileName);
+      }
+    }
+    Set<String> keep = new HashSet<>();
+    int keptManifests = 0;
+    for (String manifestFileName : manifestFileNames.values()) {
+      if (keptManifests++ >= keepManifests) {
+        break;
+      }
+      keep.add(manifestFileName);
+      keep.addAll(readManifest(new File(directory, manifestFileName))
+          .values());
+    }
+    List<String> obsoleteFiles = new ArrayList<>();
+    for (String fileName : fileNames) {
+      if ((fileName.endsWith(SEGMENT_SUFFIX)
+          || getManifestGeneration(fileName) >= 0L)
+          && !keep.contains(fileName)) {
+        obsoleteFiles.add(fileName);
+      }
+    }
+    return obsoleteFiles;
+  }
+}
@@ -3,6 +3,7 @@
 
 package org.torproject.onionoo.docs;
 
+import org.torproject.onionoo.util.FieldProjection;
 import org.torproject.onionoo.util.FormattingUtils;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
@@ -24,6 +25,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -33,6 +37,7 @@ import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
 
 // TODO For later migration from disk to database, do the following:
 // - read from database and then from disk if not found
@@ -92,6 +97,16 @@ public class DocumentStore {
 
   private SortedSet<String> updatedSummaryDocuments;
 
+  private List<FieldProjection> materializedFieldProjections =
+      new ArrayList<>();
+
+  /** Sets the field projections of details documents to be materialized
+   * in segment files of their own whenever writing segment files. */
+  public void setMaterializedFieldProjections(
+      List<FieldProjection> materializedFieldProjections) {
+    this.materializedFieldProjections = materializedFieldProjections;
+  }
+
   public <T extends Document> SortedSet<String> list(
       Class<T> documentType) {
     return this.list(documentType, 0L);
@@ -167,7 +182,30 @@ public class DocumentStore {
     SortedMap<String, SummaryDocument> parsedSummaryDocuments = new TreeMap<>();
     if (this.outDir != null) {
       File summaryFile = new File(this.outDir, "summary");
+      List<SummaryDocument> snapshotSummaryDocuments = null;
       if (summaryFile.exists()) {
+        /* Decode summary documents from the binary snapshot written
+         * together with out/summary, if available, rather than parsing
+         * out/summary as JSON. */
+        File snapshotFile = new File(this.outDir, SUMMARY_SNAPSHOT_NAME);
+        try {
+          snapshotSummaryDocuments = SummarySnapshot.read(snapshotFile,
+              summaryFile);
+        } catch (IOException e) {
+          log.warn("Could not read snapshot file '{}'.  Parsing '{}' "
+              + "instead.", snapshotFile.getAbsolutePath(),
+              summaryFile.getAbsolutePath(), e);
+        }
+      }
+      if (null != snapshotSummaryDocuments) {
+        for (SummaryDocument summaryDocument : snapshotSummaryDocuments) {
+          parsedSummaryDocuments.put(summaryDocument.getFingerprint(),
+              summaryDocument);
+        }
+        this.lastModifiedSummaryDocuments = summaryFile.lastModified();
+        this.listedFiles += parsedSummaryDocuments.size();
+        this.listOperations++;
+      } else if (summaryFile.exists()) {
         String line = null;
         try (BufferedReader br = new BufferedReader(new FileReader(
             summaryFile))) {
@@ -178,6 +216,11 @@ public class DocumentStore {
             SummaryDocument summaryDocument = objectMapper.readValue(line,
                 SummaryDocument.class);
             if (summaryDocument != null) {
+              /* Keep a digest of the original line, so that the node
+               * indexer can cheaply tell whether a summary document has
+               * changed. */
+              summaryDocument.setLineDigest(
+                  SummaryDocument.computeLineDigest(line));
               parsedSummaryDocuments.put(summaryDocument.getFingerprint(),
                   summaryDocument);
             }
@@ -365,6 +408,18 @@ public class DocumentStore {
       documentTempFile.renameTo(documentFile);
       this.storedFiles++;
       this.storedBytes += documentString.length();
+      if (isOutDocument(document.getClass())) {
+        /* Also store a compressed form of documents that are served to
+         * clients, so that the server does not have to compress them for
+         * every request. */
+        File compressedDocumentFile = getCompressedDocumentFile(
+            documentFile);
+        File compressedDocumentTempFile = new File(
+            compressedDocumentFile.getAbsolutePath() + ".tmp");
+        writeToCompressedFile(compressedDocumentTempFile, documentString);
+        compressedDocumentFile.delete();
+        compressedDocumentTempFile.renameTo(compressedDocumentFile);
+      }
     } catch (IOException e) {
       log.error("Could not write file '"
           + documentFile.getAbsolutePath() + "'.", e);
@@ -530,6 +585,99 @@ public class DocumentStore {
     return result;
   }
 
+  /** Retrieves the gzip-compressed form of the document with the given
+   * type and identified by the given fingerprint, or returns
+   * <code>null</code> if there is no such compressed document. */
+  public <T extends Document> byte[] retrieveCompressed(
+      Class<T> documentType, String fingerprint) {
+    if (!isOutDocument(documentType)) {
+      return null;
+    }
+    File documentFile = this.getDocumentFile(documentType, fingerprint);
+    if (documentFile == null) {
+      return null;
+    }
+    File compressedDocumentFile = getCompressedDocumentFile(documentFile);
+    if (!compressedDocumentFile.isFile()) {
+      /* Compressed document file does not exist, for example, because it
+       * was written by an older version.  That's okay. */
+      return null;
+    }
+    try {
+      byte[] compressedBytes = Files.readAllBytes(
+          compressedDocumentFile.toPath());
+      this.retrievedFiles++;
+      this.retrievedBytes += compressedBytes.length;
+      return compressedBytes;
+    } catch (IOException e) {
+      log.error("Could not read file '"
+          + compressedDocumentFile.getAbsolutePath() + "'.", e);
+      return null;
+    }
+  }
+
+  /** Opens all segment files written by the update with the given
+   * generation, which is the time in milliseconds contained in out/update
+   * after that update, or returns an empty set of segments if that update
+   * did not write any segment files. */
+  public DocumentSegments openSegments(long generation) {
+    if (this.outDir == null) {
+      return DocumentSegments.empty();
+    }
+    return DocumentSegments.open(this.outDir, generation);
+  }
+
+  /** Retrieves the document with the given type and identified by the
+   * given fingerprint from the given memory-mapped segment files, in
+   * either uncompressed or gzip-compressed form, or returns
+   * <code>null</code> if there is no segment file or if it does not
+   * contain such a document.
+   *
+   * <p>The returned buffer is a read-only slice of the mapped segment
+   * file, so that it is not copied until it is written to a
+   * response.</p> */
+  public <T extends Document> ByteBuffer retrievePacked(
+      DocumentSegments segments, Class<T> documentType, String fingerprint,
+      boolean compressed) {
+    String subdirectory = getOutSubdirectory(documentType);
+    if (segments == null || subdirectory == null || fingerprint == null
+        || fingerprint.isEmpty()) {
+      return null;
+    }
+    return this.retrievePacked(segments.get(getSegmentName(
+        compressed ? subdirectory + ".gz" : subdirectory, fingerprint)),
+        fingerprint);
+  }
+
+  /** Retrieves the details document identified by the given fingerprint
+   * from the given segment file materializing the given field projection,
+   * or returns <code>null</code> if that field projection has not been
+   * materialized or if the segment file does not contain such a
+   * document. */
+  public ByteBuffer retrieveProjected(DocumentSegments segments,
+      FieldProjection fieldProjection, String fingerprint) {
+    if (segments == null || fingerprint == null
+        || fingerprint.isEmpty()) {
+      return null;
+    }
+    return this.retrievePacked(segments.get(getSegmentName(
+        getOutSubdirectory(DetailsDocument.class), fingerprint) + "."
+        + fieldProjection.getName()), fingerprint);
+  }
+
+  private ByteBuffer retrievePacked(DocumentSegment segment,
+      String fingerprint) {
+    ByteBuffer document = segment == null ? null
+        : segment.get(fingerprint);
+    if (document == null || !document.hasRemaining()) {
+      /* Documents that are empty are not retrieved from document files
+       * either. */
+      return null;
+    }
+    this.retrievedBytes += document.remaining();
+    return document;
+  }
+
   private <T extends Document> T retrieveParsedStatusFile(
       Class<T> documentType, String documentString) {
     T result = null;
@@ -628,10 +776,58 @@ public class DocumentStore {
           + documentFile.getAbsolutePath() + "'.");
       return false;
     }
+    if (isOutDocument(documentType)) {
+      getCompressedDocumentFile(documentFile).delete();
+    }
     this.removedFiles++;
     return true;
   }
 
+  /* Returns whether documents of the given type are served to clients
+   * and therefore stored in compressed form, too. */
+  private static <T extends Document> boolean isOutDocument(
+      Class<T> documentType) {
+    return documentType.equals(DetailsDocument.class)
+        || documentType.equals(BandwidthDocument.class)
+        || documentType.equals(WeightsDocument.class)
+        || documentType.equals(ClientsDocument.class)
+        || documentType.equals(UptimeDocument.class);
+  }
+
+  /* Returns the name of the subdirectory in out/ containing documents of
+   * the given type, or null if documents of that type are not served to
+   * clients. */
+  private static <T extends Document> String getOutSubdirectory(
+      Class<T> documentType) {
+    if (documentType.equals(DetailsDocument.class)) {
+      return "details";
+    } else if (documentType.equals(BandwidthDocument.class)) {
+      return "bandwidth";
+    } else if (documentType.equals(WeightsDocument.class)) {
+      return "weights";
+    } else if (documentType.equals(ClientsDocument.class)) {
+      return "clients";
+    } else if (documentType.equals(UptimeDocument.class)) {
+      return "uptimes";
+    } else {
+      return null;
+    }
+  }
+
+  /* Returns the name of the segment containing the document with the
+   * given fingerprint, which is the given prefix followed by the first
+   * hex character of the fingerprint, so that documents are distributed
+   * over 16 segments per type. */
+  private static String getSegmentName(String prefix,
+      String fingerprint) {
+    return prefix + "." + fingerprint.substring(0, 1);
+  }
+
+  private static File getCompressedDocumentFile(File documentFile) {
+    return new File(documentFile.getParentFile(),
+        documentFile.getName() + ".gz");
+  }
+
   private <T extends Document> File getDocumentFile(Class<T> documentType,
       String fingerprint) {
     File documentFile = null;
@@ -713,7 +909,9 @@ public class DocumentStore {
       if (this.cachedSummaryDocuments != null) {
         this.writeSummaryDocuments();
       }
-      this.writeUpdateStatus();
+      long updatedMillis = System.currentTimeMillis();
+      this.writeDocumentSegments(updatedMillis);
+      this.writeUpdateStatus(updatedMillis);
     }
   }
 
@@ -787,12 +985,21 @@ public class DocumentStore {
     }
   }
 
+  private static void writeToCompressedFile(File file, String content)
+      throws IOException {
+    try (GZIPOutputStream gzos = new GZIPOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      gzos.write(content.getBytes("US-ASCII"));
+    }
+  }
+
   private void writeSummaryDocuments() {
     if (this.outDir == null) {
       /* Can't write out/summary without knowing the path of out/. */
       return;
     }
     StringBuilder sb = new StringBuilder();
+    List<SummaryDocument> snapshotSummaryDocuments = new ArrayList<>();
     for (SummaryDocument summaryDocument :
         this.cachedSummaryDocuments.values()) {
       String line = null;
@@ -803,6 +1010,9 @@ public class DocumentStore {
       }
       if (line != null) {
         sb.append(line + "\n");
+        summaryDocument.setLineDigest(
+            SummaryDocument.computeLineDigest(line));
+        snapshotSummaryDocuments.add(summaryDocument);
       } else {
         log.error("Could not serialize relay summary document '"
             + summaryDocument.getFingerprint() + "'");
@@ -820,17 +1030,280 @@ public class DocumentStore {
     } catch (IOException e) {
       log.error("Could not write file '"
           + summaryFile.getAbsolutePath() + "'.", e);
+      return;
     }
+    this.writeSummarySnapshot(summaryFile, snapshotSummaryDocuments);
   }
 
-  private void writeUpdateStatus() {
+  private static final String SUMMARY_SNAPSHOT_NAME = "summary.snapshot";
+
+  /* Writes the binary snapshot of the given summary documents that were
+   * just written to the given out/summary file, which the server and the
+   * next updater run decode instead of parsing out/summary. */
+  private void writeSummarySnapshot(File summaryFile,
+      List<SummaryDocument> summaryDocuments) {
+    File snapshotFile = new File(this.outDir, SUMMARY_SNAPSHOT_NAME);
+    File snapshotTempFile = new File(this.outDir,
+        SUMMARY_SNAPSHOT_NAME + ".tmp");
+    try {
+      SummarySnapshot.write(snapshotTempFile, summaryFile,
+          summaryDocuments);
+      snapshotFile.delete();
+      snapshotTempFile.renameTo(snapshotFile);
+      this.storedFiles++;
+      this.storedBytes += snapshotFile.length();
+    } catch (IOException e) {
+      log.error("Could not write snapshot file '"
+          + snapshotFile.getAbsolutePath() + "'.", e);
+      snapshotTempFile.delete();
+    }
+  }
+
+  /* Number of latest manifest files to keep, together with the segment
+   * files listed in them, so that a server that has not yet switched to
+   * the latest update can still open the segment files of an earlier
+   * one. */
+  private static final int KEEP_SEGMENT_MANIFESTS = 3;
+
+  /* Packs all documents in out/ of each type into 16 segment files by
+   * first hex character of their fingerprints, and their compressed forms
+   * into another 16, so that the server can read them from a few
+   * memory-mapped files per type rather than from one file per document.
+   * Segments that contain the same documents as in the latest manifest
+   * are not written again.  Segment files and the manifest listing them
+   * are written before the update file with the same generation, which
+   * makes the server switch to them together with its node index. */
+  private void writeDocumentSegments(long generation) {
+    if (this.outDir == null) {
+      /* Can't write segment files without knowing the path of out/. */
+      return;
+    }
+    SortedMap<String, String> previousFileNames =
+        this.readLatestSegmentManifest();
+    SortedMap<String, String> fileNames = new TreeMap<>();
+    for (Class<? extends Document> documentType : Arrays.asList(
+        DetailsDocument.class, BandwidthDocument.class,
+        WeightsDocument.class, ClientsDocument.class,
+        UptimeDocument.class)) {
+      String subdirectory = getOutSubdirectory(documentType);
+      SortedMap<String, SortedMap<String, File>> documentFiles =
+          new TreeMap<>();
+      for (String fingerprint : this.listDocumentFiles(documentType, 0L)) {
+        File documentFile = this.getDocumentFile(documentType,
+            fingerprint);
+        addSegmentDocumentFile(documentFiles,
+            getSegmentName(subdirectory, fingerprint), fingerprint,
+            documentFile);
+        File compressedDocumentFile = getCompressedDocumentFile(
+            documentFile);
+        if (compressedDocumentFile.isFile()) {
+          addSegmentDocumentFile(documentFiles,
+              getSegmentName(subdirectory + ".gz", fingerprint),
+              fingerprint, compressedDocumentFile);
+        }
+      }
+      for (Map.Entry<String, SortedMap<String, File>> e
+          : documentFiles.entrySet()) {
+        this.writeDocumentSegments(e.getKey(), e.getValue(),
+            documentType.equals(DetailsDocument.class)
+            && !e.getKey().startsWith(subdirectory + ".gz.")
+            ? this.materializedFieldProjections
+            : new ArrayList<FieldProjection>(), generation,
+            previousFileNames, fileNames);
+      }
+    }
+    File manifestFile = DocumentSegments.getManifestFile(this.outDir,
+        generation);
+    try {
+      DocumentSegments.writeManifest(manifestFile, fileNames);
+    } catch (IOException e) {
+      log.error("Could not write manifest file '"
+          + manifestFile.getAbsolutePath() + "'.", e);
+      return;
+    }
+    /* Delete manifest and segment files that are not needed anymore,
+     * including segment files of field projections that are not
+     * materialized anymore. */
+    String[] outFileNames = this.outDir.list();
+    if (outFileNames == null) {
+      return;
+    }
+    try {
+      for (String fileName : DocumentSegments.listObsoleteFiles(
+          this.outDir, Arrays.asList(outFileNames),
+          KEEP_SEGMENT_MANIFESTS)) {
+        new File(this.outDir, fileName).delete();
+      }
+    } catch (IOException e) {
+      log.error("Could not delete obsolete segment files.", e);
+    }
+  }
+
+  private static void addSegmentDocumentFile(
+      SortedMap<String, SortedMap<String, File>> documentFiles,
+      String name, String fingerprint, File documentFile) {
+    if (!documentFiles.containsKey(name)) {
+      documentFiles.put(name, new TreeMap<String, File>());
+    }
+    documentFiles.get(name).put(fingerprint, documentFile);
+  }
+
+  /* Returns segment names and segment file names from the latest manifest
+   * file in out/, or an empty map if there is no such file. */
+  private SortedMap<String, String> readLatestSegmentManifest() {
+    long latestGeneration = -1L;
+    String[] fileNames = this.outDir.list();
+    if (fileNames != null) {
+      for (String fileName : fileNames) {
+        latestGeneration = Math.max(latestGeneration,
+            DocumentSegments.getManifestGeneration(fileName));
+      }
+    }
+    if (latestGeneration < 0L) {
+      return new TreeMap<>();
+    }
+    File manifestFile = DocumentSegments.getManifestFile(this.outDir,
+        latestGeneration);
+    try {
+      return DocumentSegments.readManifest(manifestFile);
+    } catch (IOException e) {
+      log.error("Could not read manifest file '"
+          + manifestFile.getAbsolutePath() + "'.", e);
+      return new TreeMap<>();
+    }
+  }
+
+  /* Writes a segment file with the given documents and one segment file
+   * with projected documents for each of the given field projections, or
+   * reuses the segment files from the previous manifest if none of the
+   * documents changed since, and adds their file names to the given
+   * manifest. */
+  private void writeDocumentSegments(String name,
+      SortedMap<String, File> documentFiles,
+      List<FieldProjection> fieldProjections, long generation,
+      SortedMap<String, String> previousFileNames,
+      SortedMap<String, String> fileNames) {
+    List<String> names = new ArrayList<>();
+    names.add(name);
+    for (FieldProjection fieldProjection : fieldProjections) {
+      names.add(name + "." + fieldProjection.getName());
+    }
+    if (previousFileNames.keySet().containsAll(names)
+        && isSegmentUpToDate(new File(this.outDir,
+        previousFileNames.get(name)), documentFiles)) {
+      for (String segmentName : names) {
+        fileNames.put(segmentName, previousFileNames.get(segmentName));
+      }
+      return;
+    }
+    List<File> segmentFiles = new ArrayList<>();
+    for (String segmentName : names) {
+      segmentFiles.add(new File(this.outDir, segmentName + "."
+          + generation + DocumentSegments.SEGMENT_SUFFIX));
+    }
+    List<File> segmentTempFiles = new ArrayList<>();
+    List<DocumentSegment.Writer> writers = new ArrayList<>();
+    try {
+      for (File segmentFile : segmentFiles) {
+        File segmentTempFile = new File(segmentFile.getAbsolutePath()
+            + ".tmp");
+        segmentTempFiles.add(segmentTempFile);
+        writers.add(new DocumentSegment.Writer(segmentTempFile,
+            documentFiles.size()));
+      }
+      for (Map.Entry<String, File> e : documentFiles.entrySet()) {
+        byte[] document = Files.readAllBytes(e.getValue().toPath());
+        writers.get(0).append(e.getKey(), document);
+        for (int i = 0; i < fieldProjections.size(); i++) {
+          String projectedDocument = fieldProjections.get(i).project(
+              new String(document, "US-ASCII"));
+          writers.get(i + 1).append(e.getKey(), null == projectedDocument
+              ? new byte[0] : projectedDocument.getBytes("US-ASCII"));
+        }
+      }
+      for (DocumentSegment.Writer writer : writers) {
+        writer.close();
+      }
+      writers.clear();
+      for (int i = 0; i < segmentFiles.size(); i++) {
+        segmentFiles.get(i).delete();
+        segmentTempFiles.get(i).renameTo(segmentFiles.get(i));
+        fileNames.put(names.get(i), segmentFiles.get(i).getName());
+        this.storedFiles++;
+        this.storedBytes += segmentFiles.get(i).length();
+      }
+    } catch (IOException e) {
+      /* Leave this segment out of the manifest, so that the server
+       * retrieves its documents from document files. */
+      log.error("Could not write segment file '"
+          + segmentFiles.get(0).getAbsolutePath() + "'.", e);
+      for (DocumentSegment.Writer writer : writers) {
+        try {
+          writer.close();
+        } catch (IOException e1) {
+          /* Writing is already known to have failed. */
+        }
+      }
+      for (File segmentTempFile : segmentTempFiles) {
+        segmentTempFile.delete();
+      }
+    }
+  }
+
+  /* Returns whether the given segment file contains exactly the given
+   * documents and was written after all of them were last modified.
+   * Comparing modification times rather than remembering which documents
+   * were stored also detects documents written by a previous run that did
+   * not get to write segment files. */
+  private static boolean isSegmentUpToDate(File segmentFile,
+      SortedMap<String, File> documentFiles) {
+    if (!segmentFile.isFile()) {
+      return false;
+    }
+    long segmentLastModified = segmentFile.lastModified();
+    DocumentSegment segment;
+    try {
+      segment = DocumentSegment.open(segmentFile);
+    } catch (IOException e) {
+      return false;
+    }
+    if (segment.getDocuments() != documentFiles.size()) {
+      return false;
+    }
+    for (Map.Entry<String, File> e : documentFiles.entrySet()) {
+      if (e.getValue().lastModified() >= segmentLastModified
+          || segment.get(e.getKey()) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void writeUpdateStatus(long updatedMillis) {
     if (this.outDir == null) {
       /* Can't write out/update without knowing the path of out/. */
       return;
     }
     UpdateStatus updateStatus = new UpdateStatus();
-    updateStatus.setUpdatedMillis(System.currentTimeMillis());
-    this.store(updateStatus);
+    updateStatus.setUpdatedMillis(updatedMillis);
+    String documentString = updateStatus.toDocumentString();
+    File updateFile = this.getDocumentFile(UpdateStatus.class, null);
+    File updateTempFile = new File(updateFile.getAbsolutePath() + ".tmp");
+    try {
+      writeToFile(updateTempFile, documentString);
+      /* Replace out/update in a single atomic rename rather than deleting
+       * it first, so that the server never finds it missing or partially
+       * written, and only gets notified once it's complete. */
+      Files.move(updateTempFile.toPath(), updateFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      this.storedFiles++;
+      this.storedBytes += documentString.length();
+    } catch (IOException e) {
+      log.error("Could not write file '"
+          + updateFile.getAbsolutePath() + "'.", e);
+      updateTempFile.delete();
+    }
   }
 
   /** Returns a string with statistics on document storage operations. */
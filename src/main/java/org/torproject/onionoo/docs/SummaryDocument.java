@@ -110,6 +110,31 @@ public class SummaryDocument extends Document {
     return this.fingerprintSortedHexBlocks;
   }
 
+  @JsonIgnore
+  private transient Long lineDigest = null;
+
+  public void setLineDigest(Long lineDigest) {
+    this.lineDigest = lineDigest;
+  }
+
+  /** Returns a 64-bit digest of the line in out/summary that this summary
+   * document was read from or written to, which tells whether a summary
+   * document changed between two reads without keeping the line in
+   * memory, or <code>null</code> if unknown. */
+  public Long getLineDigest() {
+    return this.lineDigest;
+  }
+
+  /* Computes the 64-bit FNV-1a hash of the given line from out/summary. */
+  static long computeLineDigest(String line) {
+    long digest = 0xcbf29ce484222325L;
+    for (int i = 0; i < line.length(); i++) {
+      digest ^= line.charAt(i);
+      digest *= 0x100000001b3L;
+    }
+    return digest;
+  }
+
   @JsonProperty("n")
   private String nickname;
 
@@ -0,0 +1,248 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.docs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/** Binary snapshot of all summary documents in out/summary, which can be
+ * decoded much faster than parsing out/summary line by line as JSON.
+ *
+ * <p>Decoded summary documents are the same heap objects as parsed ones,
+ * so the snapshot saves CPU time when loading summary documents, not
+ * memory.  It does not contain the lines of out/summary, but only a
+ * digest of each line for telling whether a summary document
+ * changed.</p>
+ *
+ * <p>The file starts with a magic number, a format version, the length
+ * and CRC32 checksum of the contents of the out/summary file that it was
+ * written together with, and the number of summary documents, followed
+ * by one record per summary document.  Strings are stored as their
+ * length in bytes followed by their UTF-8 encoding, lists as their
+ * number of elements followed by the elements, and <code>null</code>
+ * values as length <code>-1</code>.  All numbers are stored in
+ * big-endian order.</p>
+ *
+ * <p>A snapshot is only valid while out/summary still has the recorded
+ * length and checksum, so that a snapshot left behind by a newer version
+ * is ignored after an older version rewrote out/summary, even within the
+ * same second.</p> */
+class SummarySnapshot {
+
+  private static final int MAGIC = 0x4f4f534e;
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER_BYTES = 28;
+
+  private static final int RELAY = 1;
+
+  private static final int RUNNING = 2;
+
+  private static final int RECOMMENDED_VERSION_KNOWN = 4;
+
+  private static final int RECOMMENDED_VERSION = 8;
+
+  private static final int LINE_DIGEST_KNOWN = 16;
+
+  private SummarySnapshot() {
+    /* empty */
+  }
+
+  /** Writes the given summary documents, which were just written to the
+   * given out/summary file, to the given snapshot file, recording the
+   * length and checksum of that out/summary file. */
+  static void write(File snapshotFile, File summaryFile,
+      List<SummaryDocument> summaryDocuments) throws IOException {
+    long summaryChecksum = checksum(summaryFile);
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(snapshotFile)))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeLong(summaryFile.length());
+      dos.writeLong(summaryChecksum);
+      dos.writeInt(summaryDocuments.size());
+      for (int i = 0; i < summaryDocuments.size(); i++) {
+        SummaryDocument summaryDocument = summaryDocuments.get(i);
+        Boolean recommendedVersion =
+            summaryDocument.getRecommendedVersion();
+        Long lineDigest = summaryDocument.getLineDigest();
+        dos.writeByte((summaryDocument.isRelay() ? RELAY : 0)
+            | (summaryDocument.isRunning() ? RUNNING : 0)
+            | (null != recommendedVersion ? RECOMMENDED_VERSION_KNOWN : 0)
+            | (Boolean.TRUE.equals(recommendedVersion)
+            ? RECOMMENDED_VERSION : 0)
+            | (null != lineDigest ? LINE_DIGEST_KNOWN : 0));
+        writeString(dos, summaryDocument.getFingerprint());
+        writeString(dos, summaryDocument.getNickname());
+        writeStrings(dos, summaryDocument.getAddresses());
+        dos.writeLong(summaryDocument.getFirstSeenMillis());
+        dos.writeLong(summaryDocument.getLastSeenMillis());
+        writeStrings(dos, summaryDocument.getRelayFlags());
+        dos.writeLong(summaryDocument.getConsensusWeight());
+        writeString(dos, summaryDocument.getCountryCode());
+        writeString(dos, summaryDocument.getAsNumber());
+        writeString(dos, summaryDocument.getContact());
+        writeStrings(dos, summaryDocument.getFamilyFingerprints());
+        writeStrings(dos, summaryDocument.getEffectiveFamily());
+        writeString(dos, summaryDocument.getVersion());
+        writeString(dos, summaryDocument.getHostName());
+        writeStrings(dos, summaryDocument.getVerifiedHostNames());
+        writeStrings(dos, summaryDocument.getUnverifiedHostNames());
+        dos.writeLong(null != lineDigest ? lineDigest : 0L);
+      }
+    }
+  }
+
+  /* Returns the CRC32 checksum of the contents of the given file. */
+  private static long checksum(File file) throws IOException {
+    CRC32 crc32 = new CRC32();
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream is = new FileInputStream(file)) {
+      int read;
+      while ((read = is.read(buffer)) >= 0) {
+        crc32.update(buffer, 0, read);
+      }
+    }
+    return crc32.getValue();
+  }
+
+  private static void writeString(DataOutputStream dos, String string)
+      throws IOException {
+    if (null == string) {
+      dos.writeInt(-1);
+    } else {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      dos.writeInt(bytes.length);
+      dos.write(bytes);
+    }
+  }
+
+  private static void writeStrings(DataOutputStream dos,
+      Collection<String> strings) throws IOException {
+    if (null == strings) {
+      dos.writeInt(-1);
+    } else {
+      dos.writeInt(strings.size());
+      for (String string : strings) {
+        writeString(dos, string);
+      }
+    }
+  }
+
+  /** Memory-maps the given snapshot file and decodes all summary
+   * documents contained in it, or returns <code>null</code> if the
+   * snapshot file does not exist or was not written together with the
+   * given out/summary file. */
+  static List<SummaryDocument> read(File snapshotFile, File summaryFile)
+      throws IOException {
+    if (!snapshotFile.isFile()) {
+      return null;
+    }
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(snapshotFile.toPath(),
+        StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+          channel.size());
+    }
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt() != MAGIC
+        || buffer.getInt() != VERSION) {
+      throw new IOException("Snapshot file '"
+          + snapshotFile.getAbsolutePath() + "' has an unknown format.");
+    }
+    if (buffer.getLong() != summaryFile.length()
+        || buffer.getLong() != checksum(summaryFile)) {
+      /* The snapshot was written together with another out/summary
+       * file.  That's okay, it will be replaced during the next update. */
+      return null;
+    }
+    int count = buffer.getInt();
+    List<SummaryDocument> summaryDocuments = new ArrayList<>();
+    try {
+      for (int i = 0; i < count; i++) {
+        int flags = buffer.get();
+        SummaryDocument summaryDocument = new SummaryDocument();
+        summaryDocument.setRelay((flags & RELAY) != 0);
+        summaryDocument.setRunning((flags & RUNNING) != 0);
+        if ((flags & RECOMMENDED_VERSION_KNOWN) != 0) {
+          summaryDocument.setRecommendedVersion(
+              (flags & RECOMMENDED_VERSION) != 0);
+        }
+        summaryDocument.setFingerprint(readString(buffer));
+        summaryDocument.setNickname(readString(buffer));
+        summaryDocument.setAddresses(readStrings(buffer));
+        summaryDocument.setFirstSeenMillis(buffer.getLong());
+        summaryDocument.setLastSeenMillis(buffer.getLong());
+        summaryDocument.setRelayFlags(readSortedStrings(buffer));
+        summaryDocument.setConsensusWeight(buffer.getLong());
+        summaryDocument.setCountryCode(readString(buffer));
+        summaryDocument.setAsNumber(readString(buffer));
+        summaryDocument.setContact(readString(buffer));
+        summaryDocument.setFamilyFingerprints(readSortedStrings(buffer));
+        summaryDocument.setEffectiveFamily(readSortedStrings(buffer));
+        summaryDocument.setVersion(readString(buffer));
+        summaryDocument.setHostName(readString(buffer));
+        summaryDocument.setVerifiedHostNames(readStrings(buffer));
+        summaryDocument.setUnverifiedHostNames(readStrings(buffer));
+        long lineDigest = buffer.getLong();
+        if ((flags & LINE_DIGEST_KNOWN) != 0) {
+          summaryDocument.setLineDigest(lineDigest);
+        }
+        summaryDocuments.add(summaryDocument);
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Snapshot file '"
+          + snapshotFile.getAbsolutePath() + "' is corrupt.", e);
+    }
+    return summaryDocuments;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    } else if (length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static List<String> readStrings(ByteBuffer buffer) {
+    int size = buffer.getInt();
+    if (size < 0) {
+      return null;
+    } else if (size > buffer.remaining() / 4) {
+      throw new BufferUnderflowException();
+    }
+    String[] strings = new String[size];
+    for (int i = 0; i < size; i++) {
+      strings[i] = readString(buffer);
+    }
+    return new ArrayList<>(Arrays.asList(strings));
+  }
+
+  private static SortedSet<String> readSortedStrings(ByteBuffer buffer) {
+    List<String> strings = readStrings(buffer);
+    return null == strings ? null : new TreeSet<>(strings);
+  }
+}
@@ -0,0 +1,150 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/** Writer of a response that produces the next chunk of the response
+ * whenever the client is ready to receive more data, rather than blocking
+ * a request thread while slow clients receive large responses or holding
+ * complete responses in memory until they are written. */
+class AsyncResponseWriter implements WriteListener {
+
+  private static final Logger log = LoggerFactory.getLogger(
+      AsyncResponseWriter.class);
+
+  static final int CHUNK_SIZE = 32768;
+
+  /** Source of a response that writes it chunk by chunk. */
+  interface ChunkSource {
+
+    /** Writes the next chunk of the response, which contains at least
+     * the given number of bytes unless the response ends before, to the
+     * given output stream, which is the same for all chunks, and returns
+     * whether there are more chunks to write. */
+    boolean writeNextChunk(OutputStream os, int minBytes)
+        throws IOException;
+
+    /** Releases any resources held for writing further chunks, which is
+     * called once after writing the response completed or failed. */
+    void close();
+  }
+
+  private final AsyncContext asyncContext;
+
+  private final ServletOutputStream outputStream;
+
+  private final ChunkSource source;
+
+  private final ResponseBuffer chunk = new ResponseBuffer();
+
+  private int written = 0;
+
+  private boolean moreChunks = true;
+
+  private boolean completed = false;
+
+  AsyncResponseWriter(AsyncContext asyncContext,
+      ServletOutputStream outputStream, ChunkSource source) {
+    this.asyncContext = asyncContext;
+    this.outputStream = outputStream;
+    this.source = source;
+  }
+
+  /** Output stream for a chunk of a response, whose buffer can be written
+   * without copying it to an array of the exact size first. */
+  static class ResponseBuffer extends ByteArrayOutputStream {
+
+    byte[] getBuffer() {
+      return this.buf;
+    }
+  }
+
+  /** Starts writing the response produced by the given source to the
+   * output stream of the given asynchronous context and returns without
+   * waiting for the client to receive it. */
+  static void write(AsyncContext asyncContext, ChunkSource source)
+      throws IOException {
+    ServletOutputStream outputStream =
+        asyncContext.getResponse().getOutputStream();
+    outputStream.setWriteListener(new AsyncResponseWriter(asyncContext,
+        outputStream, source));
+  }
+
+  /** Returns a source of the given response that has been built
+   * completely in memory before. */
+  static ChunkSource createSource(final byte[] response) {
+    return new ChunkSource() {
+
+      private int offset = 0;
+
+      @Override
+      public boolean writeNextChunk(OutputStream os, int minBytes)
+          throws IOException {
+        int length = Math.min(minBytes, response.length - this.offset);
+        os.write(response, this.offset, length);
+        this.offset += length;
+        return this.offset < response.length;
+      }
+
+      @Override
+      public void close() {
+        /* Nothing to release. */
+      }
+    };
+  }
+
+  @Override
+  public void onWritePossible() throws IOException {
+    while (this.outputStream.isReady()) {
+      if (this.written < this.chunk.size()) {
+        int length = Math.min(CHUNK_SIZE, this.chunk.size() - this.written);
+        this.outputStream.write(this.chunk.getBuffer(), this.written,
+            length);
+        this.written += length;
+      } else if (this.moreChunks) {
+        this.chunk.reset();
+        this.written = 0;
+        try {
+          this.moreChunks = this.source.writeNextChunk(this.chunk,
+              CHUNK_SIZE);
+        } catch (IOException | RuntimeException e) {
+          /* The response status and possibly earlier chunks have been
+           * sent already, so that we can only cut off the response. */
+          log.error("Could not produce response.", e);
+          this.complete();
+          return;
+        }
+      } else {
+        this.complete();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    /* Most likely the client went away before receiving the complete
+     * response.  There's nothing we can do about that. */
+    log.debug("Could not write response.", throwable);
+    this.complete();
+  }
+
+  private void complete() {
+    if (!this.completed) {
+      this.completed = true;
+      this.source.close();
+      this.asyncContext.complete();
+    }
+  }
+}
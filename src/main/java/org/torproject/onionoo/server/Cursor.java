@@ -0,0 +1,113 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Position in the ordered results of a request that allows resuming
+ * the walk over precomputed orders of the same node index with the next
+ * page of results.
+ *
+ * <p>Cursors are handed out to clients as opaque strings.  They contain
+ * the generation of the node index they were created from, a hash of the
+ * filter parameters of the request that returned them, the order of
+ * results, and for both relays and bridges the position in the
+ * precomputed order where to resume and the number of results that come
+ * before that position.  Cursors are only accepted together with the
+ * same filter parameters and order as the request that returned
+ * them.</p> */
+class Cursor {
+
+  private final long generation;
+
+  private final String filterKey;
+
+  private final String orderKey;
+
+  private final int relaysPosition;
+
+  private final int relaysSkipped;
+
+  private final int bridgesPosition;
+
+  private final int bridgesSkipped;
+
+  Cursor(long generation, String filterKey, String orderKey,
+      int relaysPosition, int relaysSkipped, int bridgesPosition,
+      int bridgesSkipped) {
+    this.generation = generation;
+    this.filterKey = filterKey;
+    this.orderKey = orderKey;
+    this.relaysPosition = relaysPosition;
+    this.relaysSkipped = relaysSkipped;
+    this.bridgesPosition = bridgesPosition;
+    this.bridgesSkipped = bridgesSkipped;
+  }
+
+  long getGeneration() {
+    return this.generation;
+  }
+
+  String getFilterKey() {
+    return this.filterKey;
+  }
+
+  String getOrderKey() {
+    return this.orderKey;
+  }
+
+  int getRelaysPosition() {
+    return this.relaysPosition;
+  }
+
+  int getRelaysSkipped() {
+    return this.relaysSkipped;
+  }
+
+  int getBridgesPosition() {
+    return this.bridgesPosition;
+  }
+
+  int getBridgesSkipped() {
+    return this.bridgesSkipped;
+  }
+
+  private static Pattern cursorPattern = Pattern.compile(
+      "^([0-9]{1,19}):([0-9a-f]{16}):([0-9a-z_,-]*):([0-9]{1,9}):"
+      + "([0-9]{1,9}):([0-9]{1,9}):([0-9]{1,9})$");
+
+  /** Returns the cursor encoded in the given string, or
+   * <code>null</code> if the given string is not a valid cursor. */
+  static Cursor decode(String encodedCursor) {
+    String cursorString = new String(Base64.decodeBase64(encodedCursor),
+        StandardCharsets.US_ASCII);
+    Matcher cursorMatcher = cursorPattern.matcher(cursorString);
+    if (!cursorMatcher.matches()) {
+      return null;
+    }
+    try {
+      return new Cursor(Long.parseLong(cursorMatcher.group(1)),
+          cursorMatcher.group(2), cursorMatcher.group(3),
+          Integer.parseInt(cursorMatcher.group(4)),
+          Integer.parseInt(cursorMatcher.group(5)),
+          Integer.parseInt(cursorMatcher.group(6)),
+          Integer.parseInt(cursorMatcher.group(7)));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Returns this cursor encoded as URL-safe string. */
+  String encode() {
+    return Base64.encodeBase64URLSafeString(String.format(
+        "%d:%s:%s:%d:%d:%d:%d", this.generation, this.filterKey,
+        this.orderKey,
+        this.relaysPosition, this.relaysSkipped, this.bridgesPosition,
+        this.bridgesSkipped).getBytes(StandardCharsets.US_ASCII));
+  }
+}
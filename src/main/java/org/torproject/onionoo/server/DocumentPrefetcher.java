@@ -0,0 +1,123 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import org.torproject.onionoo.docs.SummaryDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Bounded read-ahead over the documents of a list of relays or bridges,
+ * which retrieves the next few documents concurrently on a shared pool of
+ * I/O threads while earlier documents are written to the response.
+ *
+ * <p>Documents are returned in the order of the given list, regardless
+ * of the order in which their retrieval completes.</p> */
+abstract class DocumentPrefetcher<T> implements Closeable {
+
+  /** Maximum number of documents retrieved ahead of the document that is
+   * currently written. */
+  static final int READ_AHEAD = 16;
+
+  private static final ExecutorService sharedExecutor =
+      Executors.newFixedThreadPool(32, new ThreadFactory() {
+        private int created = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable,
+              "DocumentPrefetcher-" + ++this.created);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final ExecutorService executor;
+
+  private final Iterator<SummaryDocument> entries;
+
+  private final int readAhead;
+
+  private final Deque<Future<T>> pending = new ArrayDeque<>();
+
+  DocumentPrefetcher(List<SummaryDocument> entries) {
+    this(sharedExecutor, entries, READ_AHEAD);
+  }
+
+  DocumentPrefetcher(List<SummaryDocument> entries, int readAhead) {
+    this(sharedExecutor, entries, readAhead);
+  }
+
+  DocumentPrefetcher(ExecutorService executor,
+      List<SummaryDocument> entries, int readAhead) {
+    this.executor = executor;
+    this.entries = entries.iterator();
+    this.readAhead = readAhead;
+  }
+
+  /** Retrieves the document of the given relay or bridge, which is called
+   * on one of the I/O threads. */
+  protected abstract T retrieve(SummaryDocument entry);
+
+  /** Returns whether there are more documents to be returned. */
+  boolean hasNext() {
+    this.fill();
+    return !this.pending.isEmpty();
+  }
+
+  /** Waits for the next document to be retrieved and returns it. */
+  T next() throws IOException {
+    this.fill();
+    Future<T> future = this.pending.poll();
+    if (null == future) {
+      throw new IllegalStateException("No more documents.");
+    }
+    /* Keep the read-ahead full while the caller writes this document. */
+    this.fill();
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while retrieving "
+          + "document.");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not retrieve document.", e.getCause());
+    }
+  }
+
+  /* Submits retrieval of further documents until the read-ahead limit is
+   * reached or there are no more documents. */
+  private void fill() {
+    while (this.pending.size() < this.readAhead && this.entries.hasNext()) {
+      final SummaryDocument entry = this.entries.next();
+      this.pending.add(this.executor.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          return retrieve(entry);
+        }
+      }));
+    }
+  }
+
+  /** Cancels retrieval of any documents that have not been returned yet,
+   * for example, because writing the response failed. */
+  @Override
+  public void close() {
+    for (Future<T> future : this.pending) {
+      future.cancel(false);
+    }
+    this.pending.clear();
+  }
+}
@@ -5,6 +5,7 @@ package org.torproject.onionoo.server;
 
 import java.util.Map;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 
 public class HttpServletRequestWrapper {
@@ -32,5 +33,19 @@ public class HttpServletRequestWrapper {
   protected String getQueryString() {
     return this.request.getQueryString();
   }
-}
 
+  protected String getHeader(String headerName) {
+    return this.request.getHeader(headerName);
+  }
+
+  /** Puts the request into asynchronous mode with the given timeout, or
+   * returns <code>null</code> if the request does not support it. */
+  protected AsyncContext startAsync(long timeoutMillis) {
+    if (!this.request.isAsyncSupported()) {
+      return null;
+    }
+    AsyncContext asyncContext = this.request.startAsync();
+    asyncContext.setTimeout(timeoutMillis);
+    return asyncContext;
+  }
+}
@@ -4,7 +4,7 @@
 package org.torproject.onionoo.server;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -24,6 +24,10 @@ public class HttpServletResponseWrapper {
     this.response.setHeader(headerName, headerValue);
   }
 
+  protected void setStatus(int statusCode) {
+    this.response.setStatus(statusCode);
+  }
+
   protected void setContentType(String contentType) {
     this.response.setContentType(contentType);
   }
@@ -32,8 +36,8 @@ public class HttpServletResponseWrapper {
     this.response.setCharacterEncoding(characterEncoding);
   }
 
-  protected PrintWriter getWriter() throws IOException {
-    return this.response.getWriter();
+  protected OutputStream getOutputStream() throws IOException {
+    return this.response.getOutputStream();
   }
 }
 
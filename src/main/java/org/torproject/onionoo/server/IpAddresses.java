@@ -0,0 +1,120 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Helper for converting IPv4 and IPv6 addresses and networks to
+ * fixed-length keys, so that all addresses in a network form a contiguous
+ * range of keys in a sorted index.
+ *
+ * <p>Keys consist of the character "4" or "6" for the address family
+ * followed by all address bytes in lower-case hex, that is, 8 hex
+ * characters for IPv4 and 32 hex characters for IPv6 addresses.  Sorting
+ * keys as strings is equivalent to sorting addresses numerically within
+ * each address family, which is what a binary radix tree over addresses
+ * would provide, too.</p> */
+class IpAddresses {
+
+  private IpAddresses() {
+  }
+
+  private static Pattern ipv4AddressPattern = Pattern.compile(
+      "^([0-9]{1,3})\\.([0-9]{1,3})\\.([0-9]{1,3})\\.([0-9]{1,3})$");
+
+  private static Pattern ipv6AddressPattern = Pattern.compile(
+      "^\\[?([0-9a-fA-F:\\.]*:[0-9a-fA-F:\\.]*)\\]?$");
+
+  /** Returns the key of the given IPv4 address or (possibly bracketed)
+   * IPv6 address, or <code>null</code> if the given string is not a valid
+   * address. */
+  static String toKey(String address) {
+    byte[] addressBytes = parseAddress(address);
+    return null == addressBytes ? null : toKey(addressBytes);
+  }
+
+  /** Returns the first and the last key of the given IPv4 or IPv6
+   * network in CIDR notation, like "192.0.2.0/24", or of the given single
+   * address without prefix length, or <code>null</code> if the given
+   * string is not a valid network. */
+  static String[] toKeyRange(String network) {
+    String address = network;
+    int prefixLength = -1;
+    int slash = network.indexOf('/');
+    if (slash >= 0) {
+      address = network.substring(0, slash);
+      String prefixLengthString = network.substring(slash + 1);
+      if (prefixLengthString.isEmpty() || prefixLengthString.length() > 3) {
+        return null;
+      }
+      try {
+        prefixLength = Integer.parseInt(prefixLengthString);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    byte[] firstAddress = parseAddress(address);
+    if (null == firstAddress) {
+      return null;
+    }
+    if (prefixLength < 0) {
+      prefixLength = firstAddress.length * 8;
+    } else if (prefixLength > firstAddress.length * 8) {
+      return null;
+    }
+    byte[] lastAddress = new byte[firstAddress.length];
+    for (int i = 0; i < firstAddress.length; i++) {
+      int networkBits = Math.max(0, Math.min(8, prefixLength - i * 8));
+      int hostMask = 0xff >> networkBits;
+      firstAddress[i] = (byte) (firstAddress[i] & ~hostMask);
+      lastAddress[i] = (byte) (firstAddress[i] | hostMask);
+    }
+    return new String[] { toKey(firstAddress), toKey(lastAddress) };
+  }
+
+  /* Parses the given IPv4 or IPv6 address into 4 or 16 bytes, or returns
+   * null if the given string is not a valid address.  IPv4-mapped IPv6
+   * addresses are returned as IPv4 addresses. */
+  private static byte[] parseAddress(String address) {
+    Matcher ipv4AddressMatcher = ipv4AddressPattern.matcher(address);
+    if (ipv4AddressMatcher.matches()) {
+      byte[] addressBytes = new byte[4];
+      for (int i = 0; i < 4; i++) {
+        int octet = Integer.parseInt(ipv4AddressMatcher.group(i + 1));
+        if (octet > 255) {
+          return null;
+        }
+        addressBytes[i] = (byte) octet;
+      }
+      return addressBytes;
+    }
+    Matcher ipv6AddressMatcher = ipv6AddressPattern.matcher(address);
+    if (ipv6AddressMatcher.matches()) {
+      /* Always pass a bracketed literal, which InetAddress parses without
+       * ever attempting a DNS lookup. */
+      try {
+        return InetAddress.getByName(
+            "[" + ipv6AddressMatcher.group(1) + "]").getAddress();
+      } catch (UnknownHostException e) {
+        /* Not a valid IPv6 address. */
+      }
+    }
+    return null;
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static String toKey(byte[] addressBytes) {
+    StringBuilder sb = new StringBuilder(1 + 2 * addressBytes.length);
+    sb.append(4 == addressBytes.length ? '4' : '6');
+    for (byte addressByte : addressBytes) {
+      sb.append(HEX_DIGITS[(addressByte >> 4) & 0xf]);
+      sb.append(HEX_DIGITS[addressByte & 0xf]);
+    }
+    return sb.toString();
+  }
+}
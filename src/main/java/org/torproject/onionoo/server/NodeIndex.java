@@ -3,16 +3,51 @@
 
 package org.torproject.onionoo.server;
 
+import org.torproject.onionoo.docs.DocumentSegments;
 import org.torproject.onionoo.docs.SummaryDocument;
 
 import java.text.SimpleDateFormat;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.TimeZone;
 
+/** In-memory index of all relays and bridges contained in the latest
+ * summary documents.
+ *
+ * <p>Each relay and each bridge is assigned a dense integer node
+ * identifier, with relays and bridges using separate identifier spaces.
+ * All lookup maps contain bit sets of node identifiers rather than sets
+ * of (hashed) fingerprint strings, so that filtering by them comes down
+ * to cheap bit set operations.</p> */
 class NodeIndex {
 
+  private long generation;
+
+  public void setGeneration(long generation) {
+    this.generation = generation;
+  }
+
+  /** Returns the update time of the summary documents that this index was
+   * built from, which identifies this index among all node indexes built
+   * by the same node indexer. */
+  public long getGeneration() {
+    return this.generation;
+  }
+
+  private DocumentSegments documentSegments;
+
+  public void setDocumentSegments(DocumentSegments documentSegments) {
+    this.documentSegments = documentSegments;
+  }
+
+  /** Returns the segment files written by the same update as the summary
+   * documents that this index was built from. */
+  public DocumentSegments getDocumentSegments() {
+    return this.documentSegments;
+  }
+
   private String relaysPublishedString;
 
   public void setRelaysPublishedMillis(long relaysPublishedMillis) {
@@ -41,184 +76,401 @@ class NodeIndex {
     return bridgesPublishedString;
   }
 
-  private Map<String, SummaryDocument> relayFingerprintSummaryLines;
+  private List<SummaryDocument> relaysByNodeId;
+
+  public void setRelaysByNodeId(List<SummaryDocument> relaysByNodeId) {
+    this.relaysByNodeId = relaysByNodeId;
+  }
+
+  public List<SummaryDocument> getRelaysByNodeId() {
+    return this.relaysByNodeId;
+  }
+
+  private List<SummaryDocument> bridgesByNodeId;
+
+  public void setBridgesByNodeId(List<SummaryDocument> bridgesByNodeId) {
+    this.bridgesByNodeId = bridgesByNodeId;
+  }
+
+  public List<SummaryDocument> getBridgesByNodeId() {
+    return this.bridgesByNodeId;
+  }
+
+  private Map<SummaryDocument, byte[]> summaryLines;
+
+  public void setSummaryLines(Map<SummaryDocument, byte[]> summaryLines) {
+    this.summaryLines = summaryLines;
+  }
+
+  /** Returns pre-rendered lines of summary responses, keyed by indexed
+   * relay and bridge summary documents using identity comparison. */
+  public Map<SummaryDocument, byte[]> getSummaryLines() {
+    return this.summaryLines;
+  }
+
+  private BitSet relayNodeIds;
+
+  public void setRelayNodeIds(BitSet relayNodeIds) {
+    this.relayNodeIds = relayNodeIds;
+  }
+
+  public BitSet getRelayNodeIds() {
+    return this.relayNodeIds;
+  }
+
+  private BitSet bridgeNodeIds;
+
+  public void setBridgeNodeIds(BitSet bridgeNodeIds) {
+    this.bridgeNodeIds = bridgeNodeIds;
+  }
+
+  public BitSet getBridgeNodeIds() {
+    return this.bridgeNodeIds;
+  }
+
+  private Map<String, Integer> relayNodeIdsByFingerprint;
+
+  public void setRelayNodeIdsByFingerprint(
+      Map<String, Integer> relayNodeIdsByFingerprint) {
+    this.relayNodeIdsByFingerprint = relayNodeIdsByFingerprint;
+  }
+
+  public Map<String, Integer> getRelayNodeIdsByFingerprint() {
+    return this.relayNodeIdsByFingerprint;
+  }
+
+  private Map<String, Integer> bridgeNodeIdsByFingerprint;
+
+  public void setBridgeNodeIdsByFingerprint(
+      Map<String, Integer> bridgeNodeIdsByFingerprint) {
+    this.bridgeNodeIdsByFingerprint = bridgeNodeIdsByFingerprint;
+  }
+
+  public Map<String, Integer> getBridgeNodeIdsByFingerprint() {
+    return this.bridgeNodeIdsByFingerprint;
+  }
+
+  private PrefixIndex relaysByFingerprintPrefix;
+
+  public void setRelaysByFingerprintPrefix(
+      PrefixIndex relaysByFingerprintPrefix) {
+    this.relaysByFingerprintPrefix = relaysByFingerprintPrefix;
+  }
+
+  /** Returns an index of upper-case fingerprints and hashed fingerprints
+   * of relays. */
+  public PrefixIndex getRelaysByFingerprintPrefix() {
+    return this.relaysByFingerprintPrefix;
+  }
+
+  private PrefixIndex relaysByBase64FingerprintPrefix;
 
-  public void setRelayFingerprintSummaryLines(
-      Map<String, SummaryDocument> relayFingerprintSummaryLines) {
-    this.relayFingerprintSummaryLines = relayFingerprintSummaryLines;
+  public void setRelaysByBase64FingerprintPrefix(
+      PrefixIndex relaysByBase64FingerprintPrefix) {
+    this.relaysByBase64FingerprintPrefix = relaysByBase64FingerprintPrefix;
   }
 
-  public Map<String, SummaryDocument> getRelayFingerprintSummaryLines() {
-    return this.relayFingerprintSummaryLines;
+  public PrefixIndex getRelaysByBase64FingerprintPrefix() {
+    return this.relaysByBase64FingerprintPrefix;
   }
 
-  private Map<String, SummaryDocument> bridgeFingerprintSummaryLines;
+  private Map<String, BitSet> relaysByFingerprintHexBlock;
 
-  public void setBridgeFingerprintSummaryLines(
-      Map<String, SummaryDocument> bridgeFingerprintSummaryLines) {
-    this.bridgeFingerprintSummaryLines = bridgeFingerprintSummaryLines;
+  public void setRelaysByFingerprintHexBlock(
+      Map<String, BitSet> relaysByFingerprintHexBlock) {
+    this.relaysByFingerprintHexBlock = relaysByFingerprintHexBlock;
   }
 
-  public Map<String, SummaryDocument> getBridgeFingerprintSummaryLines() {
-    return this.bridgeFingerprintSummaryLines;
+  /** Returns relays by blocks of 4 upper-case hex characters of their
+   * fingerprints. */
+  public Map<String, BitSet> getRelaysByFingerprintHexBlock() {
+    return this.relaysByFingerprintHexBlock;
   }
 
-  private Map<String, Set<String>> relaysByCountryCode = null;
+  private PrefixIndex bridgesByFingerprintPrefix;
+
+  public void setBridgesByFingerprintPrefix(
+      PrefixIndex bridgesByFingerprintPrefix) {
+    this.bridgesByFingerprintPrefix = bridgesByFingerprintPrefix;
+  }
+
+  /** Returns an index of upper-case hashed fingerprints and hashed hashed
+   * fingerprints of bridges. */
+  public PrefixIndex getBridgesByFingerprintPrefix() {
+    return this.bridgesByFingerprintPrefix;
+  }
+
+  private Map<String, BitSet> relaysByNicknameTrigram;
+
+  public void setRelaysByNicknameTrigram(
+      Map<String, BitSet> relaysByNicknameTrigram) {
+    this.relaysByNicknameTrigram = relaysByNicknameTrigram;
+  }
+
+  /** Returns relays by trigrams of their lower-case nicknames, using
+   * "unnamed" for relays without nickname. */
+  public Map<String, BitSet> getRelaysByNicknameTrigram() {
+    return this.relaysByNicknameTrigram;
+  }
+
+  private Map<String, BitSet> bridgesByNicknameTrigram;
+
+  public void setBridgesByNicknameTrigram(
+      Map<String, BitSet> bridgesByNicknameTrigram) {
+    this.bridgesByNicknameTrigram = bridgesByNicknameTrigram;
+  }
+
+  /** Returns bridges by trigrams of their lower-case nicknames, using
+   * "unnamed" for bridges without nickname. */
+  public Map<String, BitSet> getBridgesByNicknameTrigram() {
+    return this.bridgesByNicknameTrigram;
+  }
+
+  private PrefixIndex relaysByAddressPrefix;
+
+  public void setRelaysByAddressPrefix(PrefixIndex relaysByAddressPrefix) {
+    this.relaysByAddressPrefix = relaysByAddressPrefix;
+  }
+
+  /** Returns an index of relay addresses as contained in summary
+   * documents, with IPv6 addresses in square brackets. */
+  public PrefixIndex getRelaysByAddressPrefix() {
+    return this.relaysByAddressPrefix;
+  }
+
+  private PrefixIndex relaysByAddressKey;
+
+  public void setRelaysByAddressKey(PrefixIndex relaysByAddressKey) {
+    this.relaysByAddressKey = relaysByAddressKey;
+  }
+
+  /** Returns an index of relay addresses converted to keys by
+   * {@link IpAddresses}, for looking up relays in address ranges. */
+  public PrefixIndex getRelaysByAddressKey() {
+    return this.relaysByAddressKey;
+  }
+
+  private Map<String, int[]> relaysByOrder;
+
+  public void setRelaysByOrder(Map<String, int[]> relaysByOrder) {
+    this.relaysByOrder = relaysByOrder;
+  }
+
+  /** Returns node identifiers of all relays sorted by each supported
+   * combination of order parameter values, with keys being the
+   * comma-separated order parameter values and the empty string for the
+   * default order by fingerprint. */
+  public Map<String, int[]> getRelaysByOrder() {
+    return this.relaysByOrder;
+  }
+
+  private Map<String, int[]> bridgesByOrder;
+
+  public void setBridgesByOrder(Map<String, int[]> bridgesByOrder) {
+    this.bridgesByOrder = bridgesByOrder;
+  }
+
+  public Map<String, int[]> getBridgesByOrder() {
+    return this.bridgesByOrder;
+  }
+
+  private Map<Boolean, BitSet> relaysByRunning;
+
+  public void setRelaysByRunning(Map<Boolean, BitSet> relaysByRunning) {
+    this.relaysByRunning = relaysByRunning;
+  }
+
+  public Map<Boolean, BitSet> getRelaysByRunning() {
+    return this.relaysByRunning;
+  }
+
+  private Map<Boolean, BitSet> bridgesByRunning;
+
+  public void setBridgesByRunning(Map<Boolean, BitSet> bridgesByRunning) {
+    this.bridgesByRunning = bridgesByRunning;
+  }
+
+  public Map<Boolean, BitSet> getBridgesByRunning() {
+    return this.bridgesByRunning;
+  }
+
+  private Map<String, BitSet> relaysByCountryCode = null;
 
   public void setRelaysByCountryCode(
-      Map<String, Set<String>> relaysByCountryCode) {
+      Map<String, BitSet> relaysByCountryCode) {
     this.relaysByCountryCode = relaysByCountryCode;
   }
 
-  public Map<String, Set<String>> getRelaysByCountryCode() {
+  public Map<String, BitSet> getRelaysByCountryCode() {
     return relaysByCountryCode;
   }
 
-  private Map<String, Set<String>> relaysByAsNumber = null;
+  private Map<String, BitSet> relaysByAsNumber = null;
 
   public void setRelaysByAsNumber(
-      Map<String, Set<String>> relaysByAsNumber) {
+      Map<String, BitSet> relaysByAsNumber) {
     this.relaysByAsNumber = relaysByAsNumber;
   }
 
-  public Map<String, Set<String>> getRelaysByAsNumber() {
+  public Map<String, BitSet> getRelaysByAsNumber() {
     return relaysByAsNumber;
   }
 
-  private Map<String, Set<String>> relaysByFlag = null;
+  private Map<String, BitSet> relaysByFlag = null;
 
-  public void setRelaysByFlag(Map<String, Set<String>> relaysByFlag) {
+  public void setRelaysByFlag(Map<String, BitSet> relaysByFlag) {
     this.relaysByFlag = relaysByFlag;
   }
 
-  public Map<String, Set<String>> getRelaysByFlag() {
+  public Map<String, BitSet> getRelaysByFlag() {
     return relaysByFlag;
   }
 
-  private Map<String, Set<String>> bridgesByFlag = null;
+  private Map<String, BitSet> bridgesByFlag = null;
 
-  public void setBridgesByFlag(Map<String, Set<String>> bridgesByFlag) {
+  public void setBridgesByFlag(Map<String, BitSet> bridgesByFlag) {
     this.bridgesByFlag = bridgesByFlag;
   }
 
-  public Map<String, Set<String>> getBridgesByFlag() {
+  public Map<String, BitSet> getBridgesByFlag() {
     return bridgesByFlag;
   }
 
-  private Map<String, Set<String>> relaysByContact = null;
+  private Map<String, BitSet> relaysByContact = null;
 
   public void setRelaysByContact(
-      Map<String, Set<String>> relaysByContact) {
+      Map<String, BitSet> relaysByContact) {
     this.relaysByContact = relaysByContact;
   }
 
-  public Map<String, Set<String>> getRelaysByContact() {
+  public Map<String, BitSet> getRelaysByContact() {
     return relaysByContact;
   }
 
-  private Map<String, Set<String>> relaysByFamily = null;
+  private Map<String, BitSet> relaysByContactTrigram = null;
+
+  public void setRelaysByContactTrigram(
+      Map<String, BitSet> relaysByContactTrigram) {
+    this.relaysByContactTrigram = relaysByContactTrigram;
+  }
+
+  /** Returns relays by trigrams of their (already lower-case) contact
+   * lines. */
+  public Map<String, BitSet> getRelaysByContactTrigram() {
+    return this.relaysByContactTrigram;
+  }
+
+  private Map<String, BitSet> relaysByFamily = null;
 
-  public void setRelaysByFamily(Map<String, Set<String>> relaysByFamily) {
+  public void setRelaysByFamily(Map<String, BitSet> relaysByFamily) {
     this.relaysByFamily = relaysByFamily;
   }
 
-  public Map<String, Set<String>> getRelaysByFamily() {
+  public Map<String, BitSet> getRelaysByFamily() {
     return this.relaysByFamily;
   }
 
-  private SortedMap<Integer, Set<String>> relaysByFirstSeenDays;
+  private SortedMap<Integer, BitSet> relaysByFirstSeenDays;
 
   public void setRelaysByFirstSeenDays(
-      SortedMap<Integer, Set<String>> relaysByFirstSeenDays) {
+      SortedMap<Integer, BitSet> relaysByFirstSeenDays) {
     this.relaysByFirstSeenDays = relaysByFirstSeenDays;
   }
 
-  public SortedMap<Integer, Set<String>> getRelaysByFirstSeenDays() {
+  public SortedMap<Integer, BitSet> getRelaysByFirstSeenDays() {
     return relaysByFirstSeenDays;
   }
 
-  private SortedMap<Integer, Set<String>> bridgesByFirstSeenDays;
+  private SortedMap<Integer, BitSet> bridgesByFirstSeenDays;
 
   public void setBridgesByFirstSeenDays(
-      SortedMap<Integer, Set<String>> bridgesByFirstSeenDays) {
+      SortedMap<Integer, BitSet> bridgesByFirstSeenDays) {
     this.bridgesByFirstSeenDays = bridgesByFirstSeenDays;
   }
 
-  public SortedMap<Integer, Set<String>> getBridgesByFirstSeenDays() {
+  public SortedMap<Integer, BitSet> getBridgesByFirstSeenDays() {
     return bridgesByFirstSeenDays;
   }
 
-  private SortedMap<Integer, Set<String>> relaysByLastSeenDays;
+  private SortedMap<Integer, BitSet> relaysByLastSeenDays;
 
   public void setRelaysByLastSeenDays(
-      SortedMap<Integer, Set<String>> relaysByLastSeenDays) {
+      SortedMap<Integer, BitSet> relaysByLastSeenDays) {
     this.relaysByLastSeenDays = relaysByLastSeenDays;
   }
 
-  public SortedMap<Integer, Set<String>> getRelaysByLastSeenDays() {
+  public SortedMap<Integer, BitSet> getRelaysByLastSeenDays() {
     return relaysByLastSeenDays;
   }
 
-  private SortedMap<Integer, Set<String>> bridgesByLastSeenDays;
+  private SortedMap<Integer, BitSet> bridgesByLastSeenDays;
 
   public void setBridgesByLastSeenDays(
-      SortedMap<Integer, Set<String>> bridgesByLastSeenDays) {
+      SortedMap<Integer, BitSet> bridgesByLastSeenDays) {
     this.bridgesByLastSeenDays = bridgesByLastSeenDays;
   }
 
-  public SortedMap<Integer, Set<String>> getBridgesByLastSeenDays() {
+  public SortedMap<Integer, BitSet> getBridgesByLastSeenDays() {
     return bridgesByLastSeenDays;
   }
 
-  private Map<String, Set<String>> relaysByVersion;
+  private SortedMap<String, BitSet> relaysByVersion;
 
-  public void setRelaysByVersion(Map<String, Set<String>> relaysByVersion) {
+  public void setRelaysByVersion(
+      SortedMap<String, BitSet> relaysByVersion) {
     this.relaysByVersion = relaysByVersion;
   }
 
-  public Map<String, Set<String>> getRelaysByVersion() {
+  /** Returns relays by version, sorted by version string, so that all
+   * versions starting with a given prefix form a contiguous sub map. */
+  public SortedMap<String, BitSet> getRelaysByVersion() {
     return this.relaysByVersion;
   }
 
-  private Map<String, Set<String>> bridgesByVersion;
+  private SortedMap<String, BitSet> bridgesByVersion;
 
-  public void setBridgesByVersion(Map<String, Set<String>> bridgesByVersion) {
+  public void setBridgesByVersion(
+      SortedMap<String, BitSet> bridgesByVersion) {
     this.bridgesByVersion = bridgesByVersion;
   }
 
-  public Map<String, Set<String>> getBridgesByVersion() {
+  public SortedMap<String, BitSet> getBridgesByVersion() {
     return this.bridgesByVersion;
   }
 
-  private Map<String, Set<String>> relaysByHostName;
+  private PrefixIndex relaysByReversedHostName;
 
-  public void setRelaysByHostName(Map<String, Set<String>> relaysByHostName) {
-    this.relaysByHostName = relaysByHostName;
+  public void setRelaysByReversedHostName(
+      PrefixIndex relaysByReversedHostName) {
+    this.relaysByReversedHostName = relaysByReversedHostName;
   }
 
-  public Map<String, Set<String>> getRelaysByHostName() {
-    return this.relaysByHostName;
+  /** Returns an index of reversed lower-case host names of relays, so
+   * that all host names ending in a given suffix can be looked up by the
+   * reversed suffix. */
+  public PrefixIndex getRelaysByReversedHostName() {
+    return this.relaysByReversedHostName;
   }
 
-  private Map<Boolean, Set<String>> relaysByRecommendedVersion;
+  private Map<Boolean, BitSet> relaysByRecommendedVersion;
 
   public void setRelaysByRecommendedVersion(
-      Map<Boolean, Set<String>> relaysByRecommendedVersion) {
+      Map<Boolean, BitSet> relaysByRecommendedVersion) {
     this.relaysByRecommendedVersion = relaysByRecommendedVersion;
   }
 
-  public Map<Boolean, Set<String>> getRelaysByRecommendedVersion() {
+  public Map<Boolean, BitSet> getRelaysByRecommendedVersion() {
     return this.relaysByRecommendedVersion;
   }
 
-  private Map<Boolean, Set<String>> bridgesByRecommendedVersion;
+  private Map<Boolean, BitSet> bridgesByRecommendedVersion;
 
   public void setBridgesByRecommendedVersion(
-      Map<Boolean, Set<String>> bridgesByRecommendedVersion) {
+      Map<Boolean, BitSet> bridgesByRecommendedVersion) {
     this.bridgesByRecommendedVersion = bridgesByRecommendedVersion;
   }
 
-  public Map<Boolean, Set<String>> getBridgesByRecommendedVersion() {
+  public Map<Boolean, BitSet> getBridgesByRecommendedVersion() {
     return this.bridgesByRecommendedVersion;
   }
 }
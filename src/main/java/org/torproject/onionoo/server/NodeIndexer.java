@@ -15,15 +15,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -44,6 +56,7 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
     DocumentStore documentStore = DocumentStoreFactory.getDocumentStore();
     documentStore.setOutDir(outDir);
+    this.outDir = outDir;
     /* The servlet container created us, and we need to avoid that
      * ApplicationFactory creates another instance of us. */
     NodeIndexerFactory.setNodeIndexer(this);
@@ -55,41 +68,86 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     this.stopIndexing();
   }
 
-  private long lastIndexed = -1L;
+  /* The last known node index and its update time are read by request
+   * threads without acquiring this instance's monitor.  They are only
+   * replaced as a whole after a new node index has been built, and a node
+   * index is never modified after being published. */
+  private volatile long lastIndexed = -1L;
 
-  private NodeIndex latestNodeIndex = null;
+  private volatile NodeIndex latestNodeIndex = null;
+
+  /* The node index that was replaced by the latest node index, which is
+   * kept for a short grace period after being replaced, so that cursors
+   * created from it can still be used to request the next pages of
+   * results. */
+  private volatile NodeIndex previousNodeIndex = null;
+
+  private volatile long previousNodeIndexExpiresMillis = -1L;
+
+  private static final long PREVIOUS_NODE_INDEX_GRACE_PERIOD =
+      15L * ONE_MINUTE;
 
   private Thread nodeIndexerThread = null;
 
   /** Returns the creation time of the last known node index in
    * milliseconds since the epoch, or <code>-1</code> if no node index
    * could be retrieved within <code>timeoutMillis</code> milliseconds. */
-  public synchronized long getLastIndexed(long timeoutMillis) {
-    if (this.lastIndexed == -1L && this.nodeIndexerThread != null
-        && timeoutMillis > 0L) {
-      try {
-        this.wait(timeoutMillis);
-      } catch (InterruptedException e) {
-        /* Nothing that we could handle, just return what we have
-         * below. */
+  public long getLastIndexed(long timeoutMillis) {
+    long lastIndexed = this.lastIndexed;
+    if (lastIndexed == -1L) {
+      synchronized (this) {
+        if (this.lastIndexed == -1L && this.nodeIndexerThread != null
+            && timeoutMillis > 0L) {
+          try {
+            this.wait(timeoutMillis);
+          } catch (InterruptedException e) {
+            /* Nothing that we could handle, just return what we have
+             * below. */
+          }
+        }
+        lastIndexed = this.lastIndexed;
       }
     }
-    return this.lastIndexed;
+    return lastIndexed;
   }
 
   /** Returns the last known node index, or null if no node index could be
    * retrieved within <code>timeoutMillis</code> milliseconds. */
-  public synchronized NodeIndex getLatestNodeIndex(long timeoutMillis) {
-    if (this.latestNodeIndex == null && this.nodeIndexerThread != null
-        && timeoutMillis > 0L) {
-      try {
-        this.wait(timeoutMillis);
-      } catch (InterruptedException e) {
-        /* Nothing that we could handle, just return what we have
-         * below. */
+  public NodeIndex getLatestNodeIndex(long timeoutMillis) {
+    NodeIndex latestNodeIndex = this.latestNodeIndex;
+    if (latestNodeIndex == null) {
+      synchronized (this) {
+        if (this.latestNodeIndex == null && this.nodeIndexerThread != null
+            && timeoutMillis > 0L) {
+          try {
+            this.wait(timeoutMillis);
+          } catch (InterruptedException e) {
+            /* Nothing that we could handle, just return what we have
+             * below. */
+          }
+        }
+        latestNodeIndex = this.latestNodeIndex;
       }
     }
-    return this.latestNodeIndex;
+    return latestNodeIndex;
+  }
+
+  /** Returns the latest node index if it has the given generation, the
+   * previous node index if it has the given generation and was replaced
+   * less than 15 minutes ago, or null otherwise. */
+  public NodeIndex getNodeIndex(long generation) {
+    NodeIndex latestNodeIndex = this.latestNodeIndex;
+    if (null != latestNodeIndex
+        && latestNodeIndex.getGeneration() == generation) {
+      return latestNodeIndex;
+    }
+    NodeIndex previousNodeIndex = this.previousNodeIndex;
+    if (null != previousNodeIndex
+        && previousNodeIndex.getGeneration() == generation
+        && System.currentTimeMillis() < this.previousNodeIndexExpiresMillis) {
+      return previousNodeIndex;
+    }
+    return null;
   }
 
   /** Start reading the node index into memory periodically in a
@@ -102,13 +160,20 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
   }
 
+  /* Directory containing the update file written by the updater, or null
+   * if unknown, in which case we only check for new data once per
+   * minute. */
+  private File outDir;
+
+  private static final String UPDATE_FILE_NAME = "update";
+
   @Override
   public void run() {
-    try {
+    try (WatchService watchService = this.createWatchService()) {
       while (this.nodeIndexerThread != null) {
         this.indexNodeStatuses();
         try {
-          Thread.sleep(ONE_MINUTE);
+          this.waitForUpdate(watchService);
         } catch (InterruptedException e) {
           /* Nothing that we could handle, just check if there's new data
            * to index now. */
@@ -119,6 +184,69 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     }
   }
 
+  /* Returns a watch service that is notified whenever the updater writes
+   * the update file, or null if the out directory is unknown or cannot
+   * be watched.  The updater renames a complete temporary file to the
+   * update file, so we only watch for files being created and not for
+   * files being modified, which could happen while they're still being
+   * written. */
+  private WatchService createWatchService() {
+    if (null == this.outDir) {
+      return null;
+    }
+    WatchService watchService = null;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      this.outDir.toPath().register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE);
+      return watchService;
+    } catch (IOException | UnsupportedOperationException e) {
+      log.warn("Could not watch directory '{}' for updates.  Checking for "
+          + "updates once per minute instead.", this.outDir, e);
+      if (null != watchService) {
+        try {
+          watchService.close();
+        } catch (IOException e1) {
+          /* Already falling back to polling. */
+        }
+      }
+      return null;
+    }
+  }
+
+  /* Waits until the updater has written the update file, or until one
+   * minute has passed, so that updates are indexed immediately, while
+   * still checking for updates periodically in case notifications get
+   * lost. */
+  private void waitForUpdate(WatchService watchService)
+      throws InterruptedException {
+    if (null == watchService) {
+      Thread.sleep(ONE_MINUTE);
+      return;
+    }
+    long deadlineMillis = System.currentTimeMillis() + ONE_MINUTE;
+    long remainingMillis;
+    while ((remainingMillis = deadlineMillis
+        - System.currentTimeMillis()) > 0L) {
+      WatchKey watchKey = watchService.poll(remainingMillis,
+          TimeUnit.MILLISECONDS);
+      if (null == watchKey) {
+        return;
+      }
+      boolean updated = false;
+      for (WatchEvent<?> event : watchKey.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+            || UPDATE_FILE_NAME.equals(String.valueOf(event.context()))) {
+          updated = true;
+        }
+      }
+      watchKey.reset();
+      if (updated) {
+        return;
+      }
+    }
+  }
+
   /** Stop the background process that is periodically reading the node
    * index. */
   public synchronized void stopIndexing() {
@@ -130,6 +258,10 @@ public class NodeIndexer implements ServletContextListener, Runnable {
   /* specialTime is only used for testing, see ResourceServletTest */
   private long specialTime = -1L;
 
+  /* Bit sets that have been copied from the previous node index while
+   * building the new node index and that may therefore be modified. */
+  private Set<BitSet> copiedNodeIds;
+
   private void indexNodeStatuses() {
     long updateStatusMillis = -1L;
     DocumentStore documentStore = DocumentStoreFactory.getDocumentStore();
@@ -138,136 +270,479 @@ public class NodeIndexer implements ServletContextListener, Runnable {
     if (updateStatus != null) {
       updateStatusMillis = updateStatus.getUpdatedMillis();
     }
-    synchronized (this) {
-      if (updateStatusMillis <= this.lastIndexed) {
-        /* Index on disk is no more recent than the one in memory. */
-        return;
-      }
+    if (updateStatusMillis <= this.lastIndexed) {
+      /* Index on disk is no more recent than the one in memory. */
+      return;
     }
     documentStore.invalidateDocumentCache();
-    Map<String, SummaryDocument> newRelayFingerprintSummaryLines =
-        new HashMap<>();
-    Map<String, SummaryDocument> newBridgeFingerprintSummaryLines =
-        new HashMap<>();
-    Map<String, Set<String>> newRelaysByCountryCode = new HashMap<>();
-    Map<String, Set<String>> newRelaysByAsNumber = new HashMap<>();
-    Map<String, Set<String>> newRelaysByFlag = new HashMap<>();
-    Map<String, Set<String>> newBridgesByFlag = new HashMap<>();
-    Map<String, Set<String>> newRelaysByContact = new HashMap<>();
-    Map<String, Set<String>> newRelaysByFamily = new HashMap<>();
-    Map<String, Set<String>> newRelaysByVersion = new HashMap<>();
-    Map<String, Set<String>> newBridgesByVersion = new HashMap<>();
-    Map<String, Set<String>> newRelaysByHostName = new HashMap<>();
-    Map<Boolean, Set<String>> newRelaysByRecommendedVersion = new HashMap<>();
-    newRelaysByRecommendedVersion.put(true, new HashSet<>());
-    newRelaysByRecommendedVersion.put(false, new HashSet<>());
-    Map<Boolean, Set<String>> newBridgesByRecommendedVersion = new HashMap<>();
-    newBridgesByRecommendedVersion.put(true, new HashSet<>());
-    newBridgesByRecommendedVersion.put(false, new HashSet<>());
-    SortedMap<Integer, Set<String>> newRelaysByFirstSeenDays = new TreeMap<>();
-    SortedMap<Integer, Set<String>> newBridgesByFirstSeenDays = new TreeMap<>();
-    SortedMap<Integer, Set<String>> newRelaysByLastSeenDays = new TreeMap<>();
-    SortedMap<Integer, Set<String>> newBridgesByLastSeenDays = new TreeMap<>();
-    Set<SummaryDocument> currentRelays = new HashSet<>();
-    Set<SummaryDocument> currentBridges = new HashSet<>();
+
+    /* Start with a copy of the previous node index, or with an empty node
+     * index if there is none yet, and only patch lookup maps for nodes
+     * that have been added, removed, or changed since building that node
+     * index.  Maps and bit sets are copied on first modification, so that
+     * the previous node index remains unchanged while it's still used by
+     * requests.  All summary documents are still read and compared to
+     * the indexed ones, because the updater rewrites out/summary as a
+     * whole. */
+    NodeIndex previousNodeIndex = this.latestNodeIndex;
+    NodeIndex newNodeIndex = null == previousNodeIndex
+        ? createEmptyNodeIndex() : copyNodeIndex(previousNodeIndex);
+    this.copiedNodeIds = Collections.newSetFromMap(new IdentityHashMap<>());
+    BitSet unchangedRelays = new BitSet();
+    BitSet unchangedBridges = new BitSet();
+    List<SummaryDocument> addedRelays = new ArrayList<>();
+    List<SummaryDocument> addedBridges = new ArrayList<>();
     SortedSet<String> fingerprints = documentStore.list(
         SummaryDocument.class);
-    long relaysLastValidAfterMillis = 0L;
-    long bridgesLastPublishedMillis = 0L;
     for (String fingerprint : fingerprints) {
       SummaryDocument node = documentStore.retrieve(SummaryDocument.class,
           true, fingerprint);
       if (node.isRelay()) {
-        relaysLastValidAfterMillis = Math.max(
-            relaysLastValidAfterMillis, node.getLastSeenMillis());
-        currentRelays.add(node);
+        Integer nodeId = newNodeIndex.getRelayNodeIdsByFingerprint().get(
+            node.getFingerprint().toUpperCase());
+        if (null != nodeId && isUnchanged(
+            newNodeIndex.getRelaysByNodeId().get(nodeId), node)) {
+          unchangedRelays.set(nodeId);
+        } else {
+          addedRelays.add(node);
+        }
       } else {
-        bridgesLastPublishedMillis = Math.max(
-            bridgesLastPublishedMillis, node.getLastSeenMillis());
-        currentBridges.add(node);
+        Integer nodeId = newNodeIndex.getBridgeNodeIdsByFingerprint().get(
+            node.getFingerprint().toUpperCase());
+        if (null != nodeId && isUnchanged(
+            newNodeIndex.getBridgesByNodeId().get(nodeId), node)) {
+          unchangedBridges.set(nodeId);
+        } else {
+          addedBridges.add(node);
+        }
       }
     }
+    BitSet removedRelays =
+        (BitSet) newNodeIndex.getRelayNodeIds().clone();
+    removedRelays.andNot(unchangedRelays);
+    for (int nodeId = removedRelays.nextSetBit(0); nodeId >= 0;
+        nodeId = removedRelays.nextSetBit(nodeId + 1)) {
+      this.removeRelay(newNodeIndex, nodeId);
+    }
+    BitSet removedBridges =
+        (BitSet) newNodeIndex.getBridgeNodeIds().clone();
+    removedBridges.andNot(unchangedBridges);
+    for (int nodeId = removedBridges.nextSetBit(0); nodeId >= 0;
+        nodeId = removedBridges.nextSetBit(nodeId + 1)) {
+      this.removeBridge(newNodeIndex, nodeId);
+    }
+    BitSet addedRelayNodeIds = new BitSet();
+    for (SummaryDocument entry : addedRelays) {
+      int nodeId = newNodeIndex.getRelayNodeIds().nextClearBit(0);
+      this.addRelay(newNodeIndex, nodeId, entry);
+      addedRelayNodeIds.set(nodeId);
+    }
+    BitSet addedBridgeNodeIds = new BitSet();
+    for (SummaryDocument entry : addedBridges) {
+      int nodeId = newNodeIndex.getBridgeNodeIds().nextClearBit(0);
+      this.addBridge(newNodeIndex, nodeId, entry);
+      addedBridgeNodeIds.set(nodeId);
+    }
+    this.copiedNodeIds = null;
 
-    /* This variable can go away once all Onionoo services had their
-     * hourly updater write effective families to summary documents at
-     * least once.  Remove this code after September 8, 2015. */
-    SortedMap<String, Set<String>> computedEffectiveFamilies = new TreeMap<>();
-    for (SummaryDocument entry : currentRelays) {
-      String fingerprint = entry.getFingerprint().toUpperCase();
-      String hashedFingerprint = entry.getHashedFingerprint()
-          .toUpperCase();
-      newRelayFingerprintSummaryLines.put(fingerprint, entry);
-      newRelayFingerprintSummaryLines.put(hashedFingerprint, entry);
-      if (entry.getCountryCode() != null) {
-        String countryCode = entry.getCountryCode();
-        if (!newRelaysByCountryCode.containsKey(countryCode)) {
-          newRelaysByCountryCode.put(countryCode,
-              new HashSet<String>());
-        }
-        newRelaysByCountryCode.get(countryCode).add(fingerprint);
-        newRelaysByCountryCode.get(countryCode).add(hashedFingerprint);
-      }
-      if (entry.getAsNumber() != null) {
-        String asNumber = entry.getAsNumber();
-        if (!newRelaysByAsNumber.containsKey(asNumber)) {
-          newRelaysByAsNumber.put(asNumber, new HashSet<String>());
-        }
-        newRelaysByAsNumber.get(asNumber).add(fingerprint);
-        newRelaysByAsNumber.get(asNumber).add(hashedFingerprint);
-      }
-      for (String flag : entry.getRelayFlags()) {
-        String flagLowerCase = flag.toLowerCase();
-        if (!newRelaysByFlag.containsKey(flagLowerCase)) {
-          newRelaysByFlag.put(flagLowerCase, new HashSet<String>());
-        }
-        newRelaysByFlag.get(flagLowerCase).add(fingerprint);
-        newRelaysByFlag.get(flagLowerCase).add(hashedFingerprint);
-      }
-      /* This condition can go away once all Onionoo services had their
-       * hourly updater write effective families to summary documents at
-       * least once.  Remove this code after September 8, 2015. */
-      if (entry.getFamilyFingerprints() != null
-          && !entry.getFamilyFingerprints().isEmpty()) {
-        computedEffectiveFamilies.put(fingerprint,
-            entry.getFamilyFingerprints());
-      }
-      if (entry.getEffectiveFamily() != null) {
-        newRelaysByFamily.put(fingerprint, entry.getEffectiveFamily());
-      }
-      int daysSinceFirstSeen = (int) ((
-          (specialTime < 0 ? System.currentTimeMillis() : specialTime)
-          - entry.getFirstSeenMillis()) / ONE_DAY);
-      if (!newRelaysByFirstSeenDays.containsKey(daysSinceFirstSeen)) {
-        newRelaysByFirstSeenDays.put(daysSinceFirstSeen,
-            new HashSet<String>());
+    /* Sorted node identifiers are patched by merging added and changed
+     * nodes into the previous sort orders.  Prefix indexes and families
+     * are kept in structures that are cheaper to rebuild than to patch,
+     * so we're re-computing them for all relays or all bridges, unless
+     * none of them changed.  Published times and seen days depend on all
+     * nodes or on the current time, so we're always re-computing them. */
+    boolean relaysChanged = null == previousNodeIndex
+        || !removedRelays.isEmpty() || !addedRelayNodeIds.isEmpty();
+    boolean bridgesChanged = null == previousNodeIndex
+        || !removedBridges.isEmpty() || !addedBridgeNodeIds.isEmpty();
+    this.indexPublishedMillis(newNodeIndex);
+    if (relaysChanged) {
+      this.indexRelayFingerprintPrefixes(newNodeIndex);
+      this.indexAddresses(newNodeIndex);
+      this.indexHostNames(newNodeIndex);
+      this.indexRelayFamilies(newNodeIndex);
+    } else {
+      copyRelayPrefixIndexes(previousNodeIndex, newNodeIndex);
+    }
+    if (bridgesChanged) {
+      this.indexBridgeFingerprintPrefixes(newNodeIndex);
+    } else {
+      newNodeIndex.setBridgesByFingerprintPrefix(
+          previousNodeIndex.getBridgesByFingerprintPrefix());
+    }
+    this.indexSeenDays(newNodeIndex);
+    this.indexOrders(newNodeIndex, previousNodeIndex, removedRelays,
+        addedRelayNodeIds, removedBridges, addedBridgeNodeIds);
+    newNodeIndex.setGeneration(updateStatusMillis);
+    newNodeIndex.setDocumentSegments(documentStore.openSegments(
+        updateStatusMillis));
+    this.previousNodeIndexExpiresMillis = System.currentTimeMillis()
+        + PREVIOUS_NODE_INDEX_GRACE_PERIOD;
+    this.previousNodeIndex = previousNodeIndex;
+    this.lastIndexed = updateStatusMillis;
+    this.latestNodeIndex = newNodeIndex;
+    synchronized (this) {
+      this.notifyAll();
+    }
+  }
+
+  /* Returns whether the given newly read summary document is unchanged
+   * compared to the given indexed summary document, by comparing digests
+   * of their lines in out/summary. */
+  private static boolean isUnchanged(SummaryDocument indexedNode,
+      SummaryDocument node) {
+    return null != indexedNode && null != node.getLineDigest()
+        && node.getLineDigest().equals(indexedNode.getLineDigest());
+  }
+
+  private static NodeIndex createEmptyNodeIndex() {
+    NodeIndex nodeIndex = new NodeIndex();
+    nodeIndex.setRelaysByNodeId(new ArrayList<>());
+    nodeIndex.setBridgesByNodeId(new ArrayList<>());
+    nodeIndex.setSummaryLines(new IdentityHashMap<>());
+    nodeIndex.setRelayNodeIds(new BitSet());
+    nodeIndex.setBridgeNodeIds(new BitSet());
+    nodeIndex.setRelayNodeIdsByFingerprint(new HashMap<>());
+    nodeIndex.setBridgeNodeIdsByFingerprint(new HashMap<>());
+    Map<Boolean, BitSet> relaysByRunning = new HashMap<>();
+    relaysByRunning.put(true, new BitSet());
+    relaysByRunning.put(false, new BitSet());
+    nodeIndex.setRelaysByRunning(relaysByRunning);
+    Map<Boolean, BitSet> bridgesByRunning = new HashMap<>();
+    bridgesByRunning.put(true, new BitSet());
+    bridgesByRunning.put(false, new BitSet());
+    nodeIndex.setBridgesByRunning(bridgesByRunning);
+    nodeIndex.setRelaysByFingerprintHexBlock(new HashMap<>());
+    nodeIndex.setRelaysByNicknameTrigram(new HashMap<>());
+    nodeIndex.setBridgesByNicknameTrigram(new HashMap<>());
+    nodeIndex.setRelaysByCountryCode(new HashMap<>());
+    nodeIndex.setRelaysByAsNumber(new HashMap<>());
+    nodeIndex.setRelaysByFlag(new HashMap<>());
+    nodeIndex.setBridgesByFlag(new HashMap<>());
+    nodeIndex.setRelaysByContact(new HashMap<>());
+    nodeIndex.setRelaysByContactTrigram(new HashMap<>());
+    nodeIndex.setRelaysByVersion(new TreeMap<>());
+    nodeIndex.setBridgesByVersion(new TreeMap<>());
+    Map<Boolean, BitSet> relaysByRecommendedVersion = new HashMap<>();
+    relaysByRecommendedVersion.put(true, new BitSet());
+    relaysByRecommendedVersion.put(false, new BitSet());
+    nodeIndex.setRelaysByRecommendedVersion(relaysByRecommendedVersion);
+    Map<Boolean, BitSet> bridgesByRecommendedVersion = new HashMap<>();
+    bridgesByRecommendedVersion.put(true, new BitSet());
+    bridgesByRecommendedVersion.put(false, new BitSet());
+    nodeIndex.setBridgesByRecommendedVersion(bridgesByRecommendedVersion);
+    return nodeIndex;
+  }
+
+  /* Copies all maps and lists of the given node index that are patched
+   * when adding or removing nodes, but not yet the contained bit sets,
+   * which are only copied when being modified. */
+  private static NodeIndex copyNodeIndex(NodeIndex previous) {
+    NodeIndex nodeIndex = new NodeIndex();
+    nodeIndex.setRelaysByNodeId(
+        new ArrayList<>(previous.getRelaysByNodeId()));
+    nodeIndex.setBridgesByNodeId(
+        new ArrayList<>(previous.getBridgesByNodeId()));
+    nodeIndex.setSummaryLines(
+        new IdentityHashMap<>(previous.getSummaryLines()));
+    nodeIndex.setRelayNodeIds((BitSet) previous.getRelayNodeIds().clone());
+    nodeIndex.setBridgeNodeIds(
+        (BitSet) previous.getBridgeNodeIds().clone());
+    nodeIndex.setRelayNodeIdsByFingerprint(
+        new HashMap<>(previous.getRelayNodeIdsByFingerprint()));
+    nodeIndex.setBridgeNodeIdsByFingerprint(
+        new HashMap<>(previous.getBridgeNodeIdsByFingerprint()));
+    nodeIndex.setRelaysByRunning(
+        new HashMap<>(previous.getRelaysByRunning()));
+    nodeIndex.setBridgesByRunning(
+        new HashMap<>(previous.getBridgesByRunning()));
+    nodeIndex.setRelaysByFingerprintHexBlock(
+        new HashMap<>(previous.getRelaysByFingerprintHexBlock()));
+    nodeIndex.setRelaysByNicknameTrigram(
+        new HashMap<>(previous.getRelaysByNicknameTrigram()));
+    nodeIndex.setBridgesByNicknameTrigram(
+        new HashMap<>(previous.getBridgesByNicknameTrigram()));
+    nodeIndex.setRelaysByCountryCode(
+        new HashMap<>(previous.getRelaysByCountryCode()));
+    nodeIndex.setRelaysByAsNumber(
+        new HashMap<>(previous.getRelaysByAsNumber()));
+    nodeIndex.setRelaysByFlag(new HashMap<>(previous.getRelaysByFlag()));
+    nodeIndex.setBridgesByFlag(new HashMap<>(previous.getBridgesByFlag()));
+    nodeIndex.setRelaysByContact(
+        new HashMap<>(previous.getRelaysByContact()));
+    nodeIndex.setRelaysByContactTrigram(
+        new HashMap<>(previous.getRelaysByContactTrigram()));
+    nodeIndex.setRelaysByVersion(
+        new TreeMap<>(previous.getRelaysByVersion()));
+    nodeIndex.setBridgesByVersion(
+        new TreeMap<>(previous.getBridgesByVersion()));
+    nodeIndex.setRelaysByRecommendedVersion(
+        new HashMap<>(previous.getRelaysByRecommendedVersion()));
+    nodeIndex.setBridgesByRecommendedVersion(
+        new HashMap<>(previous.getBridgesByRecommendedVersion()));
+    return nodeIndex;
+  }
+
+  private void addRelay(NodeIndex nodeIndex, int nodeId,
+      SummaryDocument entry) {
+    List<SummaryDocument> relays = nodeIndex.getRelaysByNodeId();
+    while (relays.size() <= nodeId) {
+      relays.add(null);
+    }
+    relays.set(nodeId, entry);
+    nodeIndex.getSummaryLines().put(entry,
+        ResponseBuilder.formatSummaryLine(entry));
+    nodeIndex.getRelayNodeIds().set(nodeId);
+    nodeIndex.getRelayNodeIdsByFingerprint().put(
+        entry.getFingerprint().toUpperCase(), nodeId);
+    nodeIndex.getRelayNodeIdsByFingerprint().put(
+        entry.getHashedFingerprint().toUpperCase(), nodeId);
+    this.indexRelay(nodeIndex, nodeId, entry, true);
+  }
+
+  private void removeRelay(NodeIndex nodeIndex, int nodeId) {
+    SummaryDocument entry = nodeIndex.getRelaysByNodeId().get(nodeId);
+    this.indexRelay(nodeIndex, nodeId, entry, false);
+    nodeIndex.getRelayNodeIdsByFingerprint().remove(
+        entry.getFingerprint().toUpperCase());
+    nodeIndex.getRelayNodeIdsByFingerprint().remove(
+        entry.getHashedFingerprint().toUpperCase());
+    nodeIndex.getRelayNodeIds().clear(nodeId);
+    nodeIndex.getSummaryLines().remove(entry);
+    nodeIndex.getRelaysByNodeId().set(nodeId, null);
+  }
+
+  /* Adds the given relay to or removes it from all lookup maps that only
+   * depend on the relay itself. */
+  private void indexRelay(NodeIndex nodeIndex, int nodeId,
+      SummaryDocument entry, boolean add) {
+    for (String hexBlock : entry.getFingerprintSortedHexBlocks()) {
+      this.indexNodeId(nodeIndex.getRelaysByFingerprintHexBlock(),
+          hexBlock, nodeId, add);
+    }
+    for (String trigram : Trigrams.split(lowerCaseNickname(entry))) {
+      this.indexNodeId(nodeIndex.getRelaysByNicknameTrigram(), trigram,
+          nodeId, add);
+    }
+    this.indexNodeId(nodeIndex.getRelaysByRunning(), entry.isRunning(),
+        nodeId, add);
+    if (entry.getCountryCode() != null) {
+      this.indexNodeId(nodeIndex.getRelaysByCountryCode(),
+          entry.getCountryCode(), nodeId, add);
+    }
+    if (entry.getAsNumber() != null) {
+      this.indexNodeId(nodeIndex.getRelaysByAsNumber(),
+          entry.getAsNumber(), nodeId, add);
+    }
+    for (String flag : entry.getRelayFlags()) {
+      this.indexNodeId(nodeIndex.getRelaysByFlag(), flag.toLowerCase(),
+          nodeId, add);
+    }
+    this.indexNodeId(nodeIndex.getRelaysByContact(), entry.getContact(),
+        nodeId, add);
+    if (null != entry.getContact()) {
+      for (String trigram : Trigrams.split(entry.getContact())) {
+        this.indexNodeId(nodeIndex.getRelaysByContactTrigram(), trigram,
+            nodeId, add);
       }
-      newRelaysByFirstSeenDays.get(daysSinceFirstSeen).add(fingerprint);
-      newRelaysByFirstSeenDays.get(daysSinceFirstSeen).add(
-          hashedFingerprint);
-      int daysSinceLastSeen = (int) ((
-          (specialTime < 0 ? System.currentTimeMillis() : specialTime)
-          - entry.getLastSeenMillis()) / ONE_DAY);
-      if (!newRelaysByLastSeenDays.containsKey(daysSinceLastSeen)) {
-        newRelaysByLastSeenDays.put(daysSinceLastSeen,
-            new HashSet<String>());
+    }
+    String version = entry.getVersion();
+    if (null != version) {
+      this.indexNodeId(nodeIndex.getRelaysByVersion(), version, nodeId,
+          add);
+    }
+    Boolean recommendedVersion = entry.getRecommendedVersion();
+    if (null != recommendedVersion) {
+      this.indexNodeId(nodeIndex.getRelaysByRecommendedVersion(),
+          recommendedVersion, nodeId, add);
+    }
+  }
+
+  private void addBridge(NodeIndex nodeIndex, int nodeId,
+      SummaryDocument entry) {
+    List<SummaryDocument> bridges = nodeIndex.getBridgesByNodeId();
+    while (bridges.size() <= nodeId) {
+      bridges.add(null);
+    }
+    bridges.set(nodeId, entry);
+    nodeIndex.getSummaryLines().put(entry,
+        ResponseBuilder.formatSummaryLine(entry));
+    nodeIndex.getBridgeNodeIds().set(nodeId);
+    nodeIndex.getBridgeNodeIdsByFingerprint().put(
+        entry.getFingerprint().toUpperCase(), nodeId);
+    nodeIndex.getBridgeNodeIdsByFingerprint().put(
+        entry.getHashedFingerprint().toUpperCase(), nodeId);
+    this.indexBridge(nodeIndex, nodeId, entry, true);
+  }
+
+  private void removeBridge(NodeIndex nodeIndex, int nodeId) {
+    SummaryDocument entry = nodeIndex.getBridgesByNodeId().get(nodeId);
+    this.indexBridge(nodeIndex, nodeId, entry, false);
+    nodeIndex.getBridgeNodeIdsByFingerprint().remove(
+        entry.getFingerprint().toUpperCase());
+    nodeIndex.getBridgeNodeIdsByFingerprint().remove(
+        entry.getHashedFingerprint().toUpperCase());
+    nodeIndex.getBridgeNodeIds().clear(nodeId);
+    nodeIndex.getSummaryLines().remove(entry);
+    nodeIndex.getBridgesByNodeId().set(nodeId, null);
+  }
+
+  /* Adds the given bridge to or removes it from all lookup maps that only
+   * depend on the bridge itself. */
+  private void indexBridge(NodeIndex nodeIndex, int nodeId,
+      SummaryDocument entry, boolean add) {
+    for (String trigram : Trigrams.split(lowerCaseNickname(entry))) {
+      this.indexNodeId(nodeIndex.getBridgesByNicknameTrigram(), trigram,
+          nodeId, add);
+    }
+    this.indexNodeId(nodeIndex.getBridgesByRunning(), entry.isRunning(),
+        nodeId, add);
+    for (String flag : entry.getRelayFlags()) {
+      this.indexNodeId(nodeIndex.getBridgesByFlag(), flag.toLowerCase(),
+          nodeId, add);
+    }
+    String version = entry.getVersion();
+    if (null != version) {
+      this.indexNodeId(nodeIndex.getBridgesByVersion(), version, nodeId,
+          add);
+    }
+    Boolean recommendedVersion = entry.getRecommendedVersion();
+    if (null != recommendedVersion) {
+      this.indexNodeId(nodeIndex.getBridgesByRecommendedVersion(),
+          recommendedVersion, nodeId, add);
+    }
+  }
+
+  /* Returns the lower-case nickname of the given node, or "unnamed" if
+   * it doesn't have a nickname, which is what nickname searches match
+   * against. */
+  static String lowerCaseNickname(SummaryDocument entry) {
+    return entry.getNickname() != null
+        ? entry.getNickname().toLowerCase() : "unnamed";
+  }
+
+  /* Adds the given node identifier to or removes it from the bit set
+   * stored under the given key, copying that bit set first if it's still
+   * shared with the previous node index.  Bit sets of keys other than
+   * Boolean ones are removed as soon as they become empty. */
+  private <K> void indexNodeId(Map<K, BitSet> nodesByKey, K key,
+      int nodeId, boolean add) {
+    BitSet nodeIds = nodesByKey.get(key);
+    if (null == nodeIds) {
+      if (!add) {
+        return;
       }
-      newRelaysByLastSeenDays.get(daysSinceLastSeen).add(fingerprint);
-      newRelaysByLastSeenDays.get(daysSinceLastSeen).add(
-          hashedFingerprint);
-      String contact = entry.getContact();
-      if (!newRelaysByContact.containsKey(contact)) {
-        newRelaysByContact.put(contact, new HashSet<String>());
+      nodeIds = new BitSet();
+      this.copiedNodeIds.add(nodeIds);
+      nodesByKey.put(key, nodeIds);
+    } else if (!this.copiedNodeIds.contains(nodeIds)) {
+      nodeIds = (BitSet) nodeIds.clone();
+      this.copiedNodeIds.add(nodeIds);
+      nodesByKey.put(key, nodeIds);
+    }
+    if (add) {
+      nodeIds.set(nodeId);
+    } else {
+      nodeIds.clear(nodeId);
+      if (nodeIds.isEmpty() && !(key instanceof Boolean)) {
+        nodesByKey.remove(key);
       }
-      newRelaysByContact.get(contact).add(fingerprint);
-      newRelaysByContact.get(contact).add(hashedFingerprint);
-      String version = entry.getVersion();
-      if (null != version) {
-        if (!newRelaysByVersion.containsKey(version)) {
-          newRelaysByVersion.put(version, new HashSet<String>());
-        }
-        newRelaysByVersion.get(version).add(fingerprint);
-        newRelaysByVersion.get(version).add(hashedFingerprint);
+    }
+  }
+
+  private void indexPublishedMillis(NodeIndex nodeIndex) {
+    long relaysLastValidAfterMillis = 0L;
+    BitSet relayNodeIds = nodeIndex.getRelayNodeIds();
+    for (int nodeId = relayNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = relayNodeIds.nextSetBit(nodeId + 1)) {
+      relaysLastValidAfterMillis = Math.max(relaysLastValidAfterMillis,
+          nodeIndex.getRelaysByNodeId().get(nodeId).getLastSeenMillis());
+    }
+    long bridgesLastPublishedMillis = 0L;
+    BitSet bridgeNodeIds = nodeIndex.getBridgeNodeIds();
+    for (int nodeId = bridgeNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = bridgeNodeIds.nextSetBit(nodeId + 1)) {
+      bridgesLastPublishedMillis = Math.max(bridgesLastPublishedMillis,
+          nodeIndex.getBridgesByNodeId().get(nodeId).getLastSeenMillis());
+    }
+    nodeIndex.setRelaysPublishedMillis(relaysLastValidAfterMillis);
+    nodeIndex.setBridgesPublishedMillis(bridgesLastPublishedMillis);
+  }
+
+  /* Takes over all indexes of relays from the given previous node index
+   * that are not patched when adding or removing relays. */
+  private static void copyRelayPrefixIndexes(NodeIndex previous,
+      NodeIndex nodeIndex) {
+    nodeIndex.setRelaysByFingerprintPrefix(
+        previous.getRelaysByFingerprintPrefix());
+    nodeIndex.setRelaysByBase64FingerprintPrefix(
+        previous.getRelaysByBase64FingerprintPrefix());
+    nodeIndex.setRelaysByAddressPrefix(previous.getRelaysByAddressPrefix());
+    nodeIndex.setRelaysByAddressKey(previous.getRelaysByAddressKey());
+    nodeIndex.setRelaysByReversedHostName(
+        previous.getRelaysByReversedHostName());
+    nodeIndex.setRelaysByFamily(previous.getRelaysByFamily());
+  }
+
+  private void indexRelayFingerprintPrefixes(NodeIndex nodeIndex) {
+    PrefixIndex.Builder relaysByFingerprintPrefix =
+        new PrefixIndex.Builder();
+    PrefixIndex.Builder relaysByBase64FingerprintPrefix =
+        new PrefixIndex.Builder();
+    BitSet relayNodeIds = nodeIndex.getRelayNodeIds();
+    for (int nodeId = relayNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = relayNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getRelaysByNodeId().get(nodeId);
+      relaysByFingerprintPrefix
+          .add(entry.getFingerprint().toUpperCase(), nodeId)
+          .add(entry.getHashedFingerprint().toUpperCase(), nodeId);
+      relaysByBase64FingerprintPrefix.add(entry.getBase64Fingerprint(),
+          nodeId);
+    }
+    nodeIndex.setRelaysByFingerprintPrefix(
+        relaysByFingerprintPrefix.build());
+    nodeIndex.setRelaysByBase64FingerprintPrefix(
+        relaysByBase64FingerprintPrefix.build());
+  }
+
+  private void indexBridgeFingerprintPrefixes(NodeIndex nodeIndex) {
+    PrefixIndex.Builder bridgesByFingerprintPrefix =
+        new PrefixIndex.Builder();
+    BitSet bridgeNodeIds = nodeIndex.getBridgeNodeIds();
+    for (int nodeId = bridgeNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = bridgeNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getBridgesByNodeId().get(nodeId);
+      bridgesByFingerprintPrefix
+          .add(entry.getFingerprint().toUpperCase(), nodeId)
+          .add(entry.getHashedFingerprint().toUpperCase(), nodeId);
+    }
+    nodeIndex.setBridgesByFingerprintPrefix(
+        bridgesByFingerprintPrefix.build());
+  }
+
+  private void indexAddresses(NodeIndex nodeIndex) {
+    PrefixIndex.Builder relaysByAddressPrefix = new PrefixIndex.Builder();
+    PrefixIndex.Builder relaysByAddressKey = new PrefixIndex.Builder();
+    BitSet relayNodeIds = nodeIndex.getRelayNodeIds();
+    for (int nodeId = relayNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = relayNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getRelaysByNodeId().get(nodeId);
+      for (String address : entry.getAddresses()) {
+        relaysByAddressPrefix.add(address, nodeId);
+        relaysByAddressKey.add(IpAddresses.toKey(address), nodeId);
       }
+    }
+    nodeIndex.setRelaysByAddressPrefix(relaysByAddressPrefix.build());
+    nodeIndex.setRelaysByAddressKey(relaysByAddressKey.build());
+  }
+
+  private void indexHostNames(NodeIndex nodeIndex) {
+    PrefixIndex.Builder relaysByReversedHostName =
+        new PrefixIndex.Builder();
+    BitSet relayNodeIds = nodeIndex.getRelayNodeIds();
+    for (int nodeId = relayNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = relayNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getRelaysByNodeId().get(nodeId);
       List<String> allHostNames = new ArrayList<>();
       List<String> verifiedHostNames = entry.getVerifiedHostNames();
       if (null != verifiedHostNames) {
@@ -278,18 +753,191 @@ public class NodeIndexer implements ServletContextListener, Runnable {
         allHostNames.addAll(unverifiedHostNames);
       }
       for (String hostName : allHostNames) {
-        String hostNameLowerCase = hostName.toLowerCase();
-        if (!newRelaysByHostName.containsKey(hostNameLowerCase)) {
-          newRelaysByHostName.put(hostNameLowerCase, new HashSet<>());
+        relaysByReversedHostName.add(
+            reverse(hostName.toLowerCase()), nodeId);
+      }
+    }
+    nodeIndex.setRelaysByReversedHostName(relaysByReversedHostName.build());
+  }
+
+  static String reverse(String string) {
+    return new StringBuilder(string).reverse().toString();
+  }
+
+  private void indexSeenDays(NodeIndex nodeIndex) {
+    long now = specialTime < 0 ? System.currentTimeMillis() : specialTime;
+    SortedMap<Integer, BitSet> newRelaysByFirstSeenDays = new TreeMap<>();
+    SortedMap<Integer, BitSet> newRelaysByLastSeenDays = new TreeMap<>();
+    BitSet relayNodeIds = nodeIndex.getRelayNodeIds();
+    for (int nodeId = relayNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = relayNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getRelaysByNodeId().get(nodeId);
+      int daysSinceFirstSeen = (int) ((now - entry.getFirstSeenMillis())
+          / ONE_DAY);
+      addNodeId(newRelaysByFirstSeenDays, daysSinceFirstSeen, nodeId);
+      int daysSinceLastSeen = (int) ((now - entry.getLastSeenMillis())
+          / ONE_DAY);
+      addNodeId(newRelaysByLastSeenDays, daysSinceLastSeen, nodeId);
+    }
+    SortedMap<Integer, BitSet> newBridgesByFirstSeenDays = new TreeMap<>();
+    SortedMap<Integer, BitSet> newBridgesByLastSeenDays = new TreeMap<>();
+    BitSet bridgeNodeIds = nodeIndex.getBridgeNodeIds();
+    for (int nodeId = bridgeNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = bridgeNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getBridgesByNodeId().get(nodeId);
+      int daysSinceFirstSeen = (int) ((now - entry.getFirstSeenMillis())
+          / ONE_DAY);
+      addNodeId(newBridgesByFirstSeenDays, daysSinceFirstSeen, nodeId);
+      int daysSinceLastSeen = (int) ((now - entry.getLastSeenMillis())
+          / ONE_DAY);
+      addNodeId(newBridgesByLastSeenDays, daysSinceLastSeen, nodeId);
+    }
+    nodeIndex.setRelaysByFirstSeenDays(newRelaysByFirstSeenDays);
+    nodeIndex.setRelaysByLastSeenDays(newRelaysByLastSeenDays);
+    nodeIndex.setBridgesByFirstSeenDays(newBridgesByFirstSeenDays);
+    nodeIndex.setBridgesByLastSeenDays(newBridgesByLastSeenDays);
+  }
+
+  /* All combinations of order parameter values accepted by
+   * ResourceServlet, that is, each of the two order fields at most once
+   * in either direction, including no order parameter at all. */
+  private static final List<String[]> ORDERS = new ArrayList<>();
+
+  static {
+    String[] orderParameterValues = new String[] {
+        OrderParameterValues.CONSENSUS_WEIGHT_ASC,
+        OrderParameterValues.CONSENSUS_WEIGHT_DES,
+        OrderParameterValues.FIRST_SEEN_ASC,
+        OrderParameterValues.FIRST_SEEN_DES };
+    ORDERS.add(new String[0]);
+    for (String first : orderParameterValues) {
+      ORDERS.add(new String[] { first });
+      for (String second : orderParameterValues) {
+        if (!first.replaceFirst("^-", "").equals(
+            second.replaceFirst("^-", ""))) {
+          ORDERS.add(new String[] { first, second });
         }
-        newRelaysByHostName.get(hostNameLowerCase).add(fingerprint);
-        newRelaysByHostName.get(hostNameLowerCase).add(hashedFingerprint);
       }
-      Boolean recommendedVersion = entry.getRecommendedVersion();
-      if (null != recommendedVersion) {
-        newRelaysByRecommendedVersion.get(recommendedVersion).add(fingerprint);
-        newRelaysByRecommendedVersion.get(recommendedVersion).add(
-            hashedFingerprint);
+    }
+  }
+
+  /** Returns the key of the given order parameter values, or of the
+   * default order if <code>null</code>, in maps returned by
+   * {@link NodeIndex#getRelaysByOrder()} and
+   * {@link NodeIndex#getBridgesByOrder()}. */
+  static String orderKey(String[] order) {
+    return null == order ? "" : String.join(",", order);
+  }
+
+  /* Sorts relays and bridges in all supported orders, either from
+   * scratch if there is no previous node index, or by removing the given
+   * removed node identifiers from the previous sort orders and merging
+   * the given added node identifiers into them. */
+  private void indexOrders(NodeIndex nodeIndex, NodeIndex previous,
+      BitSet removedRelays, BitSet addedRelays, BitSet removedBridges,
+      BitSet addedBridges) {
+    Map<String, int[]> newRelaysByOrder = new HashMap<>();
+    Map<String, int[]> newBridgesByOrder = new HashMap<>();
+    for (String[] order : ORDERS) {
+      Comparator<SummaryDocument> comparator =
+          new SummaryDocumentComparator(order);
+      String orderKey = orderKey(order);
+      if (null == previous) {
+        newRelaysByOrder.put(orderKey, sortNodeIds(
+            nodeIndex.getRelayNodeIds(), nodeIndex.getRelaysByNodeId(),
+            comparator));
+        newBridgesByOrder.put(orderKey, sortNodeIds(
+            nodeIndex.getBridgeNodeIds(), nodeIndex.getBridgesByNodeId(),
+            comparator));
+      } else {
+        newRelaysByOrder.put(orderKey, mergeNodeIds(
+            previous.getRelaysByOrder().get(orderKey), removedRelays,
+            addedRelays, nodeIndex.getRelaysByNodeId(), comparator));
+        newBridgesByOrder.put(orderKey, mergeNodeIds(
+            previous.getBridgesByOrder().get(orderKey), removedBridges,
+            addedBridges, nodeIndex.getBridgesByNodeId(), comparator));
+      }
+    }
+    nodeIndex.setRelaysByOrder(newRelaysByOrder);
+    nodeIndex.setBridgesByOrder(newBridgesByOrder);
+  }
+
+  private static int[] sortNodeIds(BitSet nodeIds,
+      final List<SummaryDocument> nodesByNodeId,
+      final Comparator<SummaryDocument> comparator) {
+    List<Integer> sortedNodeIds = new ArrayList<>(nodeIds.cardinality());
+    for (int nodeId = nodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = nodeIds.nextSetBit(nodeId + 1)) {
+      sortedNodeIds.add(nodeId);
+    }
+    Collections.sort(sortedNodeIds, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer first, Integer second) {
+        return comparator.compare(nodesByNodeId.get(first),
+            nodesByNodeId.get(second));
+      }
+    });
+    int[] result = new int[sortedNodeIds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = sortedNodeIds.get(i);
+    }
+    return result;
+  }
+
+  /* Returns the given sorted node identifiers without the given removed
+   * ones and with the given added ones, which only requires sorting the
+   * added node identifiers.  Removed node identifiers may be re-used for
+   * added nodes. */
+  static int[] mergeNodeIds(int[] previousNodeIds, BitSet removedNodeIds,
+      BitSet addedNodeIds, List<SummaryDocument> nodesByNodeId,
+      Comparator<SummaryDocument> comparator) {
+    if (removedNodeIds.isEmpty() && addedNodeIds.isEmpty()) {
+      return previousNodeIds;
+    }
+    int[] sortedAddedNodeIds = sortNodeIds(addedNodeIds, nodesByNodeId,
+        comparator);
+    int[] result = new int[previousNodeIds.length
+        + sortedAddedNodeIds.length];
+    int written = 0;
+    int added = 0;
+    for (int nodeId : previousNodeIds) {
+      if (removedNodeIds.get(nodeId)) {
+        continue;
+      }
+      SummaryDocument node = nodesByNodeId.get(nodeId);
+      while (added < sortedAddedNodeIds.length && comparator.compare(
+          nodesByNodeId.get(sortedAddedNodeIds[added]), node) < 0) {
+        result[written++] = sortedAddedNodeIds[added++];
+      }
+      result[written++] = nodeId;
+    }
+    while (added < sortedAddedNodeIds.length) {
+      result[written++] = sortedAddedNodeIds[added++];
+    }
+    return Arrays.copyOf(result, written);
+  }
+
+  private void indexRelayFamilies(NodeIndex nodeIndex) {
+    /* This variable can go away once all Onionoo services had their
+     * hourly updater write effective families to summary documents at
+     * least once.  Remove this code after September 8, 2015. */
+    SortedMap<String, Set<String>> computedEffectiveFamilies = new TreeMap<>();
+    Map<String, Set<String>> effectiveFamilies = new HashMap<>();
+    BitSet relayNodeIds = nodeIndex.getRelayNodeIds();
+    for (int nodeId = relayNodeIds.nextSetBit(0); nodeId >= 0;
+        nodeId = relayNodeIds.nextSetBit(nodeId + 1)) {
+      SummaryDocument entry = nodeIndex.getRelaysByNodeId().get(nodeId);
+      String fingerprint = entry.getFingerprint().toUpperCase();
+      /* This condition can go away once all Onionoo services had their
+       * hourly updater write effective families to summary documents at
+       * least once.  Remove this code after September 8, 2015. */
+      if (entry.getFamilyFingerprints() != null
+          && !entry.getFamilyFingerprints().isEmpty()) {
+        computedEffectiveFamilies.put(fingerprint,
+            entry.getFamilyFingerprints());
+      }
+      if (entry.getEffectiveFamily() != null) {
+        effectiveFamilies.put(fingerprint, entry.getEffectiveFamily());
       }
     }
     /* This loop can go away once all Onionoo services had their hourly
@@ -306,89 +954,28 @@ public class NodeIndexer implements ServletContextListener, Runnable {
           inMutualFamilyRelation.add(otherFingerprint);
         }
       }
-      newRelaysByFamily.put(fingerprint, inMutualFamilyRelation);
-    }
-    for (SummaryDocument entry : currentBridges) {
-      String hashedFingerprint = entry.getFingerprint().toUpperCase();
-      String hashedHashedFingerprint = entry.getHashedFingerprint()
-          .toUpperCase();
-      newBridgeFingerprintSummaryLines.put(hashedFingerprint, entry);
-      newBridgeFingerprintSummaryLines.put(hashedHashedFingerprint,
-          entry);
-      for (String flag : entry.getRelayFlags()) {
-        String flagLowerCase = flag.toLowerCase();
-        if (!newBridgesByFlag.containsKey(flagLowerCase)) {
-          newBridgesByFlag.put(flagLowerCase, new HashSet<String>());
-        }
-        newBridgesByFlag.get(flagLowerCase).add(hashedFingerprint);
-        newBridgesByFlag.get(flagLowerCase).add(
-            hashedHashedFingerprint);
-      }
-      int daysSinceFirstSeen = (int) ((
-          (specialTime < 0 ? System.currentTimeMillis() : specialTime)
-          - entry.getFirstSeenMillis()) / ONE_DAY);
-      if (!newBridgesByFirstSeenDays.containsKey(daysSinceFirstSeen)) {
-        newBridgesByFirstSeenDays.put(daysSinceFirstSeen,
-            new HashSet<String>());
-      }
-      newBridgesByFirstSeenDays.get(daysSinceFirstSeen).add(
-          hashedFingerprint);
-      newBridgesByFirstSeenDays.get(daysSinceFirstSeen).add(
-          hashedHashedFingerprint);
-      int daysSinceLastSeen = (int) ((
-          (specialTime < 0 ? System.currentTimeMillis() : specialTime)
-          - entry.getLastSeenMillis()) / ONE_DAY);
-      if (!newBridgesByLastSeenDays.containsKey(daysSinceLastSeen)) {
-        newBridgesByLastSeenDays.put(daysSinceLastSeen,
-            new HashSet<String>());
-      }
-      newBridgesByLastSeenDays.get(daysSinceLastSeen).add(
-          hashedFingerprint);
-      newBridgesByLastSeenDays.get(daysSinceLastSeen).add(
-          hashedHashedFingerprint);
-      String version = entry.getVersion();
-      if (null != version) {
-        if (!newBridgesByVersion.containsKey(version)) {
-          newBridgesByVersion.put(version, new HashSet<>());
+      effectiveFamilies.put(fingerprint, inMutualFamilyRelation);
+    }
+    Map<String, BitSet> newRelaysByFamily = new HashMap<>();
+    for (Map.Entry<String, Set<String>> e : effectiveFamilies.entrySet()) {
+      BitSet familyMembers = new BitSet();
+      for (String familyFingerprint : e.getValue()) {
+        Integer nodeId = nodeIndex.getRelayNodeIdsByFingerprint().get(
+            familyFingerprint);
+        if (null != nodeId) {
+          familyMembers.set(nodeId);
         }
-        newBridgesByVersion.get(version).add(hashedFingerprint);
-        newBridgesByVersion.get(version).add(hashedHashedFingerprint);
-      }
-      Boolean recommendedVersion = entry.getRecommendedVersion();
-      if (null != recommendedVersion) {
-        newBridgesByRecommendedVersion.get(recommendedVersion).add(
-            hashedFingerprint);
-        newBridgesByRecommendedVersion.get(recommendedVersion).add(
-            hashedHashedFingerprint);
       }
+      newRelaysByFamily.put(e.getKey(), familyMembers);
     }
-    NodeIndex newNodeIndex = new NodeIndex();
-    newNodeIndex.setRelayFingerprintSummaryLines(
-        newRelayFingerprintSummaryLines);
-    newNodeIndex.setBridgeFingerprintSummaryLines(
-        newBridgeFingerprintSummaryLines);
-    newNodeIndex.setRelaysByCountryCode(newRelaysByCountryCode);
-    newNodeIndex.setRelaysByAsNumber(newRelaysByAsNumber);
-    newNodeIndex.setRelaysByFlag(newRelaysByFlag);
-    newNodeIndex.setBridgesByFlag(newBridgesByFlag);
-    newNodeIndex.setRelaysByContact(newRelaysByContact);
-    newNodeIndex.setRelaysByFamily(newRelaysByFamily);
-    newNodeIndex.setRelaysByFirstSeenDays(newRelaysByFirstSeenDays);
-    newNodeIndex.setRelaysByLastSeenDays(newRelaysByLastSeenDays);
-    newNodeIndex.setBridgesByFirstSeenDays(newBridgesByFirstSeenDays);
-    newNodeIndex.setBridgesByLastSeenDays(newBridgesByLastSeenDays);
-    newNodeIndex.setRelaysPublishedMillis(relaysLastValidAfterMillis);
-    newNodeIndex.setBridgesPublishedMillis(bridgesLastPublishedMillis);
-    newNodeIndex.setRelaysByVersion(newRelaysByVersion);
-    newNodeIndex.setBridgesByVersion(newBridgesByVersion);
-    newNodeIndex.setRelaysByHostName(newRelaysByHostName);
-    newNodeIndex.setRelaysByRecommendedVersion(newRelaysByRecommendedVersion);
-    newNodeIndex.setBridgesByRecommendedVersion(newBridgesByRecommendedVersion);
-    synchronized (this) {
-      this.lastIndexed = updateStatusMillis;
-      this.latestNodeIndex = newNodeIndex;
-      this.notifyAll();
+    nodeIndex.setRelaysByFamily(newRelaysByFamily);
+  }
+
+  private static <K> void addNodeId(Map<K, BitSet> nodesByKey, K key,
+      int nodeId) {
+    if (!nodesByKey.containsKey(key)) {
+      nodesByKey.put(key, new BitSet());
     }
+    nodesByKey.get(key).set(nodeId);
   }
 }
-
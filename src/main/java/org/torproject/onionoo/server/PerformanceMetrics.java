@@ -34,6 +34,9 @@ public class PerformanceMetrics {
   private static MostFrequentString requestsByParameters =
       new MostFrequentString();
 
+  private static MostFrequentString requestsByDetailsFields =
+      new MostFrequentString();
+
   private static IntegerDistribution matchingRelayDocuments =
       new IntegerDistribution();
 
@@ -50,11 +53,12 @@ public class PerformanceMetrics {
       new IntegerDistribution();
 
   /** Collects aggregate statistics on a given request for periodic
-   * request statistics, and logs requests taking longer than expected to
-   * process. */
+   * request statistics, including the requested set of details fields,
+   * if any, and logs requests taking longer than expected to process. */
   public static void logStatistics(long receivedRequestMillis,
       String resourceType, Collection<String> parameterKeys,
-      long parsedRequestMillis, int relayDocumentsWritten,
+      String detailsFields, long parsedRequestMillis,
+      int relayDocumentsWritten,
       int bridgeDocumentsWritten, int charsWritten,
       long writtenResponseMillis) {
     synchronized (lock) {
@@ -75,6 +79,8 @@ public class PerformanceMetrics {
             + requestsByResourceType);
         log.info("  Most frequently requested parameter "
             + "combinations: " + requestsByParameters);
+        log.info("  Most frequently requested details field sets: "
+            + requestsByDetailsFields);
         log.info("  Matching relays per request: "
             + matchingRelayDocuments);
         log.info("  Matching bridges per request: "
@@ -88,6 +94,7 @@ public class PerformanceMetrics {
         totalProcessedRequests.clear();
         requestsByResourceType.clear();
         requestsByParameters.clear();
+        requestsByDetailsFields.clear();
         matchingRelayDocuments.clear();
         matchingBridgeDocuments.clear();
         writtenChars.clear();
@@ -108,6 +115,9 @@ public class PerformanceMetrics {
       handleRequestMillis.addLong(handlingTime);
       requestsByResourceType.addString(resourceType);
       requestsByParameters.addString(parameterKeys.toString());
+      if (null != detailsFields) {
+        requestsByDetailsFields.addString(detailsFields);
+      }
       matchingRelayDocuments.addLong(relayDocumentsWritten);
       matchingBridgeDocuments.addLong(bridgeDocumentsWritten);
       writtenChars.addLong(charsWritten);
@@ -0,0 +1,108 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Immutable index of string keys to node identifiers that supports
+ * looking up all node identifiers with keys starting with a given prefix
+ * or with keys in a given range.
+ *
+ * <p>Keys are kept in a sorted array, so that all keys starting with a
+ * given prefix form a contiguous range that can be found using binary
+ * search.  The same key may be added for more than one node
+ * identifier.</p> */
+class PrefixIndex {
+
+  private final String[] keys;
+
+  private final int[] nodeIds;
+
+  private PrefixIndex(String[] keys, int[] nodeIds) {
+    this.keys = keys;
+    this.nodeIds = nodeIds;
+  }
+
+  /** Collects keys and node identifiers and builds an immutable prefix
+   * index from them. */
+  static class Builder {
+
+    private List<String> keys = new ArrayList<>();
+
+    private List<Integer> nodeIds = new ArrayList<>();
+
+    /** Adds the given key for the given node identifier, unless the key is
+     * <code>null</code>. */
+    Builder add(String key, int nodeId) {
+      if (null != key) {
+        this.keys.add(key);
+        this.nodeIds.add(nodeId);
+      }
+      return this;
+    }
+
+    PrefixIndex build() {
+      List<Integer> positions = new ArrayList<>(this.keys.size());
+      for (int i = 0; i < this.keys.size(); i++) {
+        positions.add(i);
+      }
+      Collections.sort(positions, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer first, Integer second) {
+          return keys.get(first).compareTo(keys.get(second));
+        }
+      });
+      String[] sortedKeys = new String[positions.size()];
+      int[] sortedNodeIds = new int[positions.size()];
+      for (int i = 0; i < positions.size(); i++) {
+        sortedKeys[i] = this.keys.get(positions.get(i));
+        sortedNodeIds[i] = this.nodeIds.get(positions.get(i));
+      }
+      return new PrefixIndex(sortedKeys, sortedNodeIds);
+    }
+  }
+
+  /** Returns a new bit set containing all node identifiers with at least
+   * one key starting with the given prefix. */
+  BitSet lookup(String prefix) {
+    BitSet result = new BitSet();
+    for (int i = this.findFirst(prefix); i < this.keys.length
+        && this.keys[i].startsWith(prefix); i++) {
+      result.set(this.nodeIds[i]);
+    }
+    return result;
+  }
+
+  /** Returns a new bit set containing all node identifiers with at least
+   * one key between the given first and last key, both inclusive. */
+  BitSet lookupRange(String firstKey, String lastKey) {
+    BitSet result = new BitSet();
+    for (int i = this.findFirst(firstKey); i < this.keys.length
+        && this.keys[i].compareTo(lastKey) <= 0; i++) {
+      result.set(this.nodeIds[i]);
+    }
+    return result;
+  }
+
+  /* Returns the position of the first key that is greater than or equal
+   * to the given prefix, which is also the first key that could start
+   * with it or that could be contained in a range starting with it. */
+  private int findFirst(String prefix) {
+    int low = 0;
+    int high = this.keys.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (this.keys[middle].compareTo(prefix) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
@@ -8,14 +8,11 @@ import org.torproject.onionoo.docs.DocumentStoreFactory;
 import org.torproject.onionoo.docs.SummaryDocument;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.SortedMap;
 
 public class RequestHandler {
@@ -103,6 +100,16 @@ public class RequestHandler {
     this.hostName = hostName;
   }
 
+  private String[] addressKeyRange;
+
+  /** Sets the first and last key of the requested address range as
+   * returned by {@link IpAddresses#toKeyRange(String)}. */
+  public void setAddressKeyRange(String[] addressKeyRange) {
+    this.addressKeyRange = new String[addressKeyRange.length];
+    System.arraycopy(addressKeyRange, 0, this.addressKeyRange, 0,
+        addressKeyRange.length);
+  }
+
   private Boolean recommendedVersion;
 
   public void setRecommendedVersion(Boolean recommendedVersion) {
@@ -118,6 +125,22 @@ public class RequestHandler {
 
   private String offset;
 
+  private Cursor cursor;
+
+  /** Sets the cursor returned by an earlier request to continue with the
+   * next page of results, which must not be combined with an offset. */
+  public void setCursor(Cursor cursor) {
+    this.cursor = cursor;
+  }
+
+  private String filterKey;
+
+  /** Sets the hash of the filter parameters of this request, which is
+   * included in the cursor for the next page of results. */
+  public void setFilterKey(String filterKey) {
+    this.filterKey = filterKey;
+  }
+
   public void setOffset(String offset) {
     this.offset = offset;
   }
@@ -152,44 +175,192 @@ public class RequestHandler {
     this.family = family;
   }
 
-  private Map<String, SummaryDocument> filteredRelays = new HashMap<>();
+  private BitSet filteredRelays;
 
-  private Map<String, SummaryDocument> filteredBridges = new HashMap<>();
+  private BitSet filteredBridges;
+
+  /* Relay or bridge that was requested by fingerprint but that is not
+   * contained in the node index, because it hasn't been running for a
+   * week.  There can only be at most one such relay or bridge. */
+  private SummaryDocument unindexedRelay;
+
+  private SummaryDocument unindexedBridge;
 
   /** Handles this request by filtering by all given parameters and then
    * possibly ordering, offsetting, and limiting results. */
   public void handleRequest() {
-    this.filteredRelays.putAll(
-        this.nodeIndex.getRelayFingerprintSummaryLines());
-    this.filteredBridges.putAll(
-        this.nodeIndex.getBridgeFingerprintSummaryLines());
+    this.filteredRelays = (BitSet) this.nodeIndex.getRelayNodeIds().clone();
+    this.filteredBridges =
+        (BitSet) this.nodeIndex.getBridgeNodeIds().clone();
     this.filterByResourceType();
     this.filterByType();
-    this.filterByRunning();
-    this.filterBySearchTerms();
-    this.filterByLookup();
-    this.filterByFingerprint();
-    this.filterByCountryCode();
-    this.filterByAsNumber();
-    this.filterByFlag();
-    this.filterNodesByFirstSeenDays();
-    this.filterNodesByLastSeenDays();
+    if (null != this.fingerprint) {
+      /* Filtering by fingerprint discards the results of filtering by
+       * resource type, type, running, search terms, and lookup, so there
+       * is no point in applying those filters first. */
+      this.filterByFingerprint();
+    } else {
+      this.filterByLookup();
+    }
+    for (PlannedFilter plannedFilter : this.planFilters()) {
+      if (this.filteredRelays.isEmpty() && this.filteredBridges.isEmpty()
+          && null == this.unindexedRelay && null == this.unindexedBridge) {
+        /* No filter can add nodes back, so we're done. */
+        break;
+      }
+      plannedFilter.filter.run();
+    }
+    if (null == this.fingerprint) {
+      this.filterBySearchTerms();
+    }
     this.filterByContact();
-    this.filterByFamily();
-    this.filterByVersion();
-    this.filterByHostName();
-    this.filterByRecommendedVersion();
-    this.order();
     this.offset();
     this.limit();
+    this.order();
+  }
+
+  /* Filter by a single parameter together with an estimate of how many
+   * nodes it retains at most. */
+  private static class PlannedFilter {
+
+    private final int estimatedNodes;
+
+    private final Runnable filter;
+
+    PlannedFilter(int estimatedNodes, Runnable filter) {
+      this.estimatedNodes = estimatedNodes;
+      this.filter = filter;
+    }
+  }
+
+  /* Returns all requested filters that can be evaluated using posting
+   * sets in the node index, ordered by the estimated number of nodes they
+   * retain, so that the most selective filter is applied first and all
+   * other filters are applied to the smallest possible candidate sets.
+   * All of these filters are intersections, which is why the order in
+   * which they are applied does not change the result.  Filters by search
+   * terms and contact information need to check contained strings of
+   * candidate nodes, so they are not planned here but applied last. */
+  private List<PlannedFilter> planFilters() {
+    int allNodes = this.filteredRelays.cardinality()
+        + this.filteredBridges.cardinality();
+    List<PlannedFilter> plannedFilters = new ArrayList<>();
+    if (null != this.running && null == this.fingerprint) {
+      boolean runningRequested = this.running.equals("true");
+      plannedFilters.add(new PlannedFilter(
+          cardinality(this.nodeIndex.getRelaysByRunning()
+          .get(runningRequested)) + cardinality(this.nodeIndex
+          .getBridgesByRunning().get(runningRequested)),
+          this::filterByRunning));
+    }
+    if (null != this.country) {
+      plannedFilters.add(new PlannedFilter(cardinality(this.nodeIndex
+          .getRelaysByCountryCode().get(this.country.toLowerCase())),
+          this::filterByCountryCode));
+    }
+    if (null != this.as) {
+      plannedFilters.add(new PlannedFilter(cardinality(this.nodeIndex
+          .getRelaysByAsNumber().get(this.asNumberKey())),
+          this::filterByAsNumber));
+    }
+    if (null != this.flag) {
+      String flag = this.flag.toLowerCase();
+      plannedFilters.add(new PlannedFilter(
+          cardinality(this.nodeIndex.getRelaysByFlag().get(flag))
+          + cardinality(this.nodeIndex.getBridgesByFlag().get(flag)),
+          this::filterByFlag));
+    }
+    if (null != this.firstSeenDays) {
+      plannedFilters.add(new PlannedFilter(allNodes,
+          this::filterNodesByFirstSeenDays));
+    }
+    if (null != this.lastSeenDays) {
+      plannedFilters.add(new PlannedFilter(allNodes,
+          this::filterNodesByLastSeenDays));
+    }
+    if (null != this.family) {
+      plannedFilters.add(new PlannedFilter(1 + cardinality(this.nodeIndex
+          .getRelaysByFamily().get(this.family)), this::filterByFamily));
+    }
+    if (null != this.version) {
+      int estimatedNodes = 0;
+      for (BitSet nodeIds : this.nodeIndex.getRelaysByVersion().subMap(
+          this.version, this.version + Character.MAX_VALUE).values()) {
+        estimatedNodes += nodeIds.cardinality();
+      }
+      for (BitSet nodeIds : this.nodeIndex.getBridgesByVersion().subMap(
+          this.version, this.version + Character.MAX_VALUE).values()) {
+        estimatedNodes += nodeIds.cardinality();
+      }
+      plannedFilters.add(new PlannedFilter(estimatedNodes,
+          this::filterByVersion));
+    }
+    if (null != this.hostName) {
+      plannedFilters.add(new PlannedFilter(allNodes,
+          this::filterByHostName));
+    }
+    if (null != this.addressKeyRange) {
+      plannedFilters.add(new PlannedFilter(allNodes,
+          this::filterByAddress));
+    }
+    if (null != this.recommendedVersion) {
+      plannedFilters.add(new PlannedFilter(
+          cardinality(this.nodeIndex.getRelaysByRecommendedVersion()
+          .get(this.recommendedVersion))
+          + cardinality(this.nodeIndex.getBridgesByRecommendedVersion()
+          .get(this.recommendedVersion)),
+          this::filterByRecommendedVersion));
+    }
+    Collections.sort(plannedFilters, new Comparator<PlannedFilter>() {
+      @Override
+      public int compare(PlannedFilter first, PlannedFilter second) {
+        return Integer.compare(first.estimatedNodes, second.estimatedNodes);
+      }
+    });
+    return plannedFilters;
+  }
+
+  private static int cardinality(BitSet nodeIds) {
+    return null == nodeIds ? 0 : nodeIds.cardinality();
+  }
+
+  private void clearRelays() {
+    this.filteredRelays.clear();
+    this.unindexedRelay = null;
+  }
+
+  private void clearBridges() {
+    this.filteredBridges.clear();
+    this.unindexedBridge = null;
+  }
+
+  /* Retains only relays contained in the given set of node identifiers,
+   * which also discards any unindexed relay, or removes all relays if the
+   * given set is null. */
+  private void retainRelays(BitSet relayNodeIds) {
+    if (null == relayNodeIds) {
+      this.clearRelays();
+    } else {
+      this.filteredRelays.and(relayNodeIds);
+      this.unindexedRelay = null;
+    }
+  }
+
+  private void retainBridges(BitSet bridgeNodeIds) {
+    if (null == bridgeNodeIds) {
+      this.clearBridges();
+    } else {
+      this.filteredBridges.and(bridgeNodeIds);
+      this.unindexedBridge = null;
+    }
   }
 
   private void filterByResourceType() {
     if (this.resourceType.equals("clients")) {
-      this.filteredRelays.clear();
+      this.clearRelays();
     }
     if (this.resourceType.equals("weights")) {
-      this.filteredBridges.clear();
+      this.clearBridges();
     }
   }
 
@@ -198,9 +369,9 @@ public class RequestHandler {
       /* Not filtering by type. */
       return;
     } else if (this.type.equals("relay")) {
-      this.filteredBridges.clear();
+      this.clearBridges();
     } else {
-      this.filteredRelays.clear();
+      this.clearRelays();
     }
   }
 
@@ -210,26 +381,10 @@ public class RequestHandler {
       return;
     }
     boolean runningRequested = this.running.equals("true");
-    Set<String> removeRelays = new HashSet<>();
-    for (Map.Entry<String, SummaryDocument> e
-        : filteredRelays.entrySet()) {
-      if (e.getValue().isRunning() != runningRequested) {
-        removeRelays.add(e.getKey());
-      }
-    }
-    for (String fingerprint : removeRelays) {
-      this.filteredRelays.remove(fingerprint);
-    }
-    Set<String> removeBridges = new HashSet<>();
-    for (Map.Entry<String, SummaryDocument> e
-        : filteredBridges.entrySet()) {
-      if (e.getValue().isRunning() != runningRequested) {
-        removeBridges.add(e.getKey());
-      }
-    }
-    for (String fingerprint : removeBridges) {
-      this.filteredBridges.remove(fingerprint);
-    }
+    this.retainRelays(
+        this.nodeIndex.getRelaysByRunning().get(runningRequested));
+    this.retainBridges(
+        this.nodeIndex.getBridgesByRunning().get(runningRequested));
   }
 
   private void filterBySearchTerms() {
@@ -243,89 +398,77 @@ public class RequestHandler {
   }
 
   private void filterBySearchTerm(String searchTerm) {
-    Set<String> removeRelays = new HashSet<>();
-    for (Map.Entry<String, SummaryDocument> e
-        : filteredRelays.entrySet()) {
-      String fingerprint = e.getKey();
-      SummaryDocument entry = e.getValue();
-      String base64Fingerprint = entry.isRelay()
-          ? entry.getBase64Fingerprint() : null;
-      String[] fingerprintSortedHexBlocks =
-          entry.getFingerprintSortedHexBlocks();
-      boolean lineMatches = false;
-      String nickname = entry.getNickname() != null
-          ? entry.getNickname().toLowerCase() : "unnamed";
-      if (searchTerm.startsWith("$")) {
-        /* Search is for $-prefixed fingerprint. */
-        if (fingerprint.startsWith(
-            searchTerm.substring(1).toUpperCase())) {
-          /* $-prefixed fingerprint matches. */
-          lineMatches = true;
-        }
-      } else if (nickname.contains(searchTerm.toLowerCase())) {
-        /* Nickname matches. */
-        lineMatches = true;
-      } else if (fingerprint.startsWith(searchTerm.toUpperCase())) {
-        /* Non-$-prefixed fingerprint matches. */
-        lineMatches = true;
-      } else if (base64Fingerprint != null
-          && base64Fingerprint.startsWith(searchTerm)) {
-        /* Base64-encoded fingerprint matches. */
-        lineMatches = true;
-      } else if (searchTerm.length() == 4
-          && fingerprintSortedHexBlocks != null
-          && Arrays.binarySearch(fingerprintSortedHexBlocks,
-          searchTerm.toUpperCase()) >= 0) {
-        /* 4-hex-character block of space-separated fingerprint
-         * matches. */
-        lineMatches = true;
-      } else {
-        List<String> addresses = entry.getAddresses();
-        for (String address : addresses) {
-          if (address.startsWith(searchTerm.toLowerCase())
-              || address.startsWith("[" + searchTerm.toLowerCase())) {
-            /* Address matches. */
-            lineMatches = true;
-            break;
-          }
-        }
-      }
-      if (!lineMatches) {
-        removeRelays.add(e.getKey());
+    String searchTermUpperCase = searchTerm.toUpperCase();
+    BitSet matchingRelays;
+    BitSet matchingBridges;
+    if (searchTerm.startsWith("$")) {
+      /* Search is for $-prefixed (hashed) fingerprint, which is a range
+       * lookup in the fingerprint prefix indexes. */
+      matchingRelays = this.nodeIndex.getRelaysByFingerprintPrefix()
+          .lookup(searchTermUpperCase.substring(1));
+      matchingBridges = this.nodeIndex.getBridgesByFingerprintPrefix()
+          .lookup(searchTermUpperCase.substring(1));
+    } else {
+      /* Search is for non-$-prefixed (hashed) fingerprint, base64-encoded
+       * fingerprint, or 4-hex-character block of space-separated
+       * fingerprint, or for address, all of which are looked up in
+       * prefix indexes, or for nickname, which is looked up in trigram
+       * indexes and only checked for relays and bridges that are not
+       * already matching. */
+      matchingRelays = this.nodeIndex.getRelaysByFingerprintPrefix()
+          .lookup(searchTermUpperCase);
+      matchingRelays.or(this.nodeIndex.getRelaysByBase64FingerprintPrefix()
+          .lookup(searchTerm));
+      if (searchTerm.length() == 4 && this.nodeIndex
+          .getRelaysByFingerprintHexBlock().containsKey(searchTermUpperCase)) {
+        matchingRelays.or(this.nodeIndex.getRelaysByFingerprintHexBlock()
+            .get(searchTermUpperCase));
       }
+      BitSet candidateRelays = (BitSet) this.filteredRelays.clone();
+      candidateRelays.andNot(matchingRelays);
+      List<SummaryDocument> relays = this.nodeIndex.getRelaysByNodeId();
+      matchingRelays.or(this.filterByNickname(relays,
+          this.nodeIndex.getRelaysByNicknameTrigram(), candidateRelays,
+          searchTerm.toLowerCase()));
+      matchingRelays.or(this.nodeIndex.getRelaysByAddressPrefix()
+          .lookup(searchTerm.toLowerCase()));
+      matchingRelays.or(this.nodeIndex.getRelaysByAddressPrefix()
+          .lookup("[" + searchTerm.toLowerCase()));
+      matchingBridges = this.nodeIndex.getBridgesByFingerprintPrefix()
+          .lookup(searchTermUpperCase);
+      BitSet candidateBridges = (BitSet) this.filteredBridges.clone();
+      candidateBridges.andNot(matchingBridges);
+      matchingBridges.or(this.filterByNickname(
+          this.nodeIndex.getBridgesByNodeId(),
+          this.nodeIndex.getBridgesByNicknameTrigram(), candidateBridges,
+          searchTerm.toLowerCase()));
+    }
+    this.filteredRelays.and(matchingRelays);
+    this.filteredBridges.and(matchingBridges);
+  }
+
+  /* Returns a new bit set of those candidate nodes with lower-case
+   * nicknames containing the given lower-case search term.  Candidates
+   * are first narrowed down using the trigram index, unless the search
+   * term is too short for that, and then verified one by one. */
+  private BitSet filterByNickname(List<SummaryDocument> nodes,
+      Map<String, BitSet> nodesByNicknameTrigram, BitSet candidates,
+      String searchTermLowerCase) {
+    BitSet matching = Trigrams.lookup(nodesByNicknameTrigram,
+        searchTermLowerCase);
+    if (null == matching) {
+      matching = (BitSet) candidates.clone();
+    } else {
+      matching.and(candidates);
     }
-    for (String fingerprint : removeRelays) {
-      this.filteredRelays.remove(fingerprint);
-    }
-    Set<String> removeBridges = new HashSet<>();
-    for (Map.Entry<String, SummaryDocument> e :
-        filteredBridges.entrySet()) {
-      String hashedFingerprint = e.getKey();
-      SummaryDocument entry = e.getValue();
-      boolean lineMatches = false;
-      String nickname = entry.getNickname() != null
-          ? entry.getNickname().toLowerCase() : "unnamed";
-      if (searchTerm.startsWith("$")) {
-        /* Search is for $-prefixed hashed fingerprint. */
-        if (hashedFingerprint.startsWith(
-            searchTerm.substring(1).toUpperCase())) {
-          /* $-prefixed hashed fingerprint matches. */
-          lineMatches = true;
-        }
-      } else if (nickname.contains(searchTerm.toLowerCase())) {
-        /* Nickname matches. */
-        lineMatches = true;
-      } else if (hashedFingerprint.startsWith(searchTerm.toUpperCase())) {
-        /* Non-$-prefixed hashed fingerprint matches. */
-        lineMatches = true;
+    for (int nodeId = matching.nextSetBit(0); nodeId >= 0;
+        nodeId = matching.nextSetBit(nodeId + 1)) {
+      if (!NodeIndexer.lowerCaseNickname(nodes.get(nodeId)).contains(
+          searchTermLowerCase)) {
+        matching.clear(nodeId);
       }
-      if (!lineMatches) {
-        removeBridges.add(e.getKey());
-      }
-    }
-    for (String fingerprint : removeBridges) {
-      this.filteredBridges.remove(fingerprint);
     }
+    return matching;
   }
 
   private void filterByLookup() {
@@ -334,15 +477,21 @@ public class RequestHandler {
       return;
     }
     String fingerprint = this.lookup;
-    SummaryDocument relayLine = this.filteredRelays.get(fingerprint);
+    Integer relayNodeId =
+        this.nodeIndex.getRelayNodeIdsByFingerprint().get(fingerprint);
+    boolean relayFound = null != relayNodeId
+        && this.filteredRelays.get(relayNodeId);
     this.filteredRelays.clear();
-    if (relayLine != null) {
-      this.filteredRelays.put(fingerprint, relayLine);
+    if (relayFound) {
+      this.filteredRelays.set(relayNodeId);
     }
-    SummaryDocument bridgeLine = this.filteredBridges.get(fingerprint);
+    Integer bridgeNodeId =
+        this.nodeIndex.getBridgeNodeIdsByFingerprint().get(fingerprint);
+    boolean bridgeFound = null != bridgeNodeId
+        && this.filteredBridges.get(bridgeNodeId);
     this.filteredBridges.clear();
-    if (bridgeLine != null) {
-      this.filteredBridges.put(fingerprint, bridgeLine);
+    if (bridgeFound) {
+      this.filteredBridges.set(bridgeNodeId);
     }
   }
 
@@ -351,16 +500,31 @@ public class RequestHandler {
       /* Not filtering by fingerprint. */
       return;
     }
-    this.filteredRelays.clear();
-    this.filteredBridges.clear();
+    this.clearRelays();
+    this.clearBridges();
     String fingerprint = this.fingerprint;
     SummaryDocument entry = this.documentStore.retrieve(
         SummaryDocument.class, true, fingerprint);
     if (entry != null) {
+      String entryFingerprint = entry.getFingerprint().toUpperCase();
       if (entry.isRelay()) {
-        this.filteredRelays.put(fingerprint, entry);
+        Integer nodeId = this.nodeIndex.getRelayNodeIdsByFingerprint()
+            .get(entryFingerprint);
+        if (null != nodeId && entryFingerprint.equals(this.nodeIndex
+            .getRelaysByNodeId().get(nodeId).getFingerprint())) {
+          this.filteredRelays.set(nodeId);
+        } else {
+          this.unindexedRelay = entry;
+        }
       } else {
-        this.filteredBridges.put(fingerprint, entry);
+        Integer nodeId = this.nodeIndex.getBridgeNodeIdsByFingerprint()
+            .get(entryFingerprint);
+        if (null != nodeId && entryFingerprint.equals(this.nodeIndex
+            .getBridgesByNodeId().get(nodeId).getFingerprint())) {
+          this.filteredBridges.set(nodeId);
+        } else {
+          this.unindexedBridge = entry;
+        }
       }
     }
   }
@@ -371,23 +535,9 @@ public class RequestHandler {
       return;
     }
     String countryCode = this.country.toLowerCase();
-    if (!this.nodeIndex.getRelaysByCountryCode().containsKey(
-        countryCode)) {
-      this.filteredRelays.clear();
-    } else {
-      Set<String> relaysWithCountryCode =
-          this.nodeIndex.getRelaysByCountryCode().get(countryCode);
-      Set<String> removeRelays = new HashSet<>();
-      for (String fingerprint : this.filteredRelays.keySet()) {
-        if (!relaysWithCountryCode.contains(fingerprint)) {
-          removeRelays.add(fingerprint);
-        }
-      }
-      for (String fingerprint : removeRelays) {
-        this.filteredRelays.remove(fingerprint);
-      }
-    }
-    this.filteredBridges.clear();
+    this.retainRelays(
+        this.nodeIndex.getRelaysByCountryCode().get(countryCode));
+    this.clearBridges();
   }
 
   private void filterByAsNumber() {
@@ -395,26 +545,17 @@ public class RequestHandler {
       /* Not filtering by AS number. */
       return;
     }
+    this.retainRelays(
+        this.nodeIndex.getRelaysByAsNumber().get(this.asNumberKey()));
+    this.clearBridges();
+  }
+
+  private String asNumberKey() {
     String asNumber = this.as.toUpperCase();
     if (!asNumber.startsWith("AS")) {
       asNumber = "AS" + asNumber;
     }
-    if (!this.nodeIndex.getRelaysByAsNumber().containsKey(asNumber)) {
-      this.filteredRelays.clear();
-    } else {
-      Set<String> relaysWithAsNumber =
-          this.nodeIndex.getRelaysByAsNumber().get(asNumber);
-      Set<String> removeRelays = new HashSet<>();
-      for (String fingerprint : this.filteredRelays.keySet()) {
-        if (!relaysWithAsNumber.contains(fingerprint)) {
-          removeRelays.add(fingerprint);
-        }
-      }
-      for (String fingerprint : removeRelays) {
-        this.filteredRelays.remove(fingerprint);
-      }
-    }
-    this.filteredBridges.clear();
+    return asNumber;
   }
 
   private void filterByFlag() {
@@ -423,36 +564,8 @@ public class RequestHandler {
       return;
     }
     String flag = this.flag.toLowerCase();
-    if (!this.nodeIndex.getRelaysByFlag().containsKey(flag)) {
-      this.filteredRelays.clear();
-    } else {
-      Set<String> relaysWithFlag = this.nodeIndex.getRelaysByFlag().get(
-          flag);
-      Set<String> removeRelays = new HashSet<>();
-      for (String fingerprint : this.filteredRelays.keySet()) {
-        if (!relaysWithFlag.contains(fingerprint)) {
-          removeRelays.add(fingerprint);
-        }
-      }
-      for (String fingerprint : removeRelays) {
-        this.filteredRelays.remove(fingerprint);
-      }
-    }
-    if (!this.nodeIndex.getBridgesByFlag().containsKey(flag)) {
-      this.filteredBridges.clear();
-    } else {
-      Set<String> bridgesWithFlag = this.nodeIndex.getBridgesByFlag().get(
-          flag);
-      Set<String> removeBridges = new HashSet<>();
-      for (String fingerprint : this.filteredBridges.keySet()) {
-        if (!bridgesWithFlag.contains(fingerprint)) {
-          removeBridges.add(fingerprint);
-        }
-      }
-      for (String fingerprint : removeBridges) {
-        this.filteredBridges.remove(fingerprint);
-      }
-    }
+    this.retainRelays(this.nodeIndex.getRelaysByFlag().get(flag));
+    this.retainBridges(this.nodeIndex.getBridgesByFlag().get(flag));
   }
 
   private void filterNodesByFirstSeenDays() {
@@ -477,22 +590,17 @@ public class RequestHandler {
         this.nodeIndex.getBridgesByLastSeenDays(), this.lastSeenDays);
   }
 
-  private void filterNodesByDays(
-      Map<String, SummaryDocument> filteredNodes,
-      SortedMap<Integer, Set<String>> nodesByDays, int[] days) {
-    Set<String> removeNodes = new HashSet<>();
-    for (Set<String> nodes : nodesByDays.headMap(days[0]).values()) {
-      removeNodes.addAll(nodes);
+  private void filterNodesByDays(BitSet filteredNodes,
+      SortedMap<Integer, BitSet> nodesByDays, int[] days) {
+    for (BitSet nodes : nodesByDays.headMap(days[0]).values()) {
+      filteredNodes.andNot(nodes);
     }
     if (days[1] < Integer.MAX_VALUE) {
-      for (Set<String> nodes :
+      for (BitSet nodes :
           nodesByDays.tailMap(days[1] + 1).values()) {
-        removeNodes.addAll(nodes);
+        filteredNodes.andNot(nodes);
       }
     }
-    for (String fingerprint : removeNodes) {
-      filteredNodes.remove(fingerprint);
-    }
   }
 
   private void filterByContact() {
@@ -500,22 +608,52 @@ public class RequestHandler {
       /* Not filtering by contact information. */
       return;
     }
-    Set<String> removeRelays = new HashSet<>();
-    for (Map.Entry<String, Set<String>> e :
-        this.nodeIndex.getRelaysByContact().entrySet()) {
-      String contact = e.getKey();
-      for (String contactPart : this.contact) {
-        if (contact == null
-            || !contact.contains(contactPart.toLowerCase())) {
-          removeRelays.addAll(e.getValue());
-          break;
-        }
+    /* Narrow down candidates by intersecting trigram postings of all
+     * contact parts that are long enough, and only check contact lines of
+     * remaining candidates. */
+    BitSet candidateRelays = null;
+    for (String contactPart : this.contact) {
+      BitSet contactPartRelays = Trigrams.lookup(
+          this.nodeIndex.getRelaysByContactTrigram(),
+          contactPart.toLowerCase());
+      if (null == contactPartRelays) {
+        continue;
+      } else if (null == candidateRelays) {
+        candidateRelays = contactPartRelays;
+      } else {
+        candidateRelays.and(contactPartRelays);
       }
     }
-    for (String fingerprint : removeRelays) {
-      this.filteredRelays.remove(fingerprint);
+    if (null == candidateRelays) {
+      /* All contact parts are too short for looking them up in the
+       * trigram index, so check all distinct contact lines instead. */
+      for (Map.Entry<String, BitSet> e :
+          this.nodeIndex.getRelaysByContact().entrySet()) {
+        String contact = e.getKey();
+        for (String contactPart : this.contact) {
+          if (contact == null
+              || !contact.contains(contactPart.toLowerCase())) {
+            this.filteredRelays.andNot(e.getValue());
+            break;
+          }
+        }
+      }
+    } else {
+      candidateRelays.and(this.filteredRelays);
+      List<SummaryDocument> relays = this.nodeIndex.getRelaysByNodeId();
+      for (int nodeId = candidateRelays.nextSetBit(0); nodeId >= 0;
+          nodeId = candidateRelays.nextSetBit(nodeId + 1)) {
+        String contact = relays.get(nodeId).getContact();
+        for (String contactPart : this.contact) {
+          if (!contact.contains(contactPart.toLowerCase())) {
+            candidateRelays.clear(nodeId);
+            break;
+          }
+        }
+      }
+      this.filteredRelays.and(candidateRelays);
     }
-    this.filteredBridges.clear();
+    this.clearBridges();
   }
 
   private void filterByFamily() {
@@ -523,16 +661,22 @@ public class RequestHandler {
       /* Not filtering by relay family. */
       return;
     }
-    Set<String> removeRelays = new HashSet<>(this.filteredRelays.keySet());
-    removeRelays.remove(this.family);
+    BitSet keepRelays = new BitSet();
+    Integer nodeId =
+        this.nodeIndex.getRelayNodeIdsByFingerprint().get(this.family);
+    if (null != nodeId) {
+      keepRelays.set(nodeId);
+    }
     if (this.nodeIndex.getRelaysByFamily().containsKey(this.family)) {
-      removeRelays.removeAll(this.nodeIndex.getRelaysByFamily()
-          .get(this.family));
+      keepRelays.or(this.nodeIndex.getRelaysByFamily().get(this.family));
     }
-    for (String fingerprint : removeRelays) {
-      this.filteredRelays.remove(fingerprint);
+    SummaryDocument unindexedRelay = this.unindexedRelay;
+    this.retainRelays(keepRelays);
+    if (null != unindexedRelay
+        && this.family.equals(unindexedRelay.getFingerprint())) {
+      this.unindexedRelay = unindexedRelay;
     }
-    this.filteredBridges.clear();
+    this.clearBridges();
   }
 
   private void filterByVersion() {
@@ -540,22 +684,24 @@ public class RequestHandler {
       /* Not filtering by version. */
       return;
     }
-    Set<String> keepRelays = new HashSet<>();
-    for (Map.Entry<String, Set<String>> e
-        : this.nodeIndex.getRelaysByVersion().entrySet()) {
-      if (e.getKey().startsWith(this.version)) {
-        keepRelays.addAll(e.getValue());
-      }
-    }
-    this.filteredRelays.keySet().retainAll(keepRelays);
-    Set<String> keepBridges = new HashSet<>();
-    for (Map.Entry<String, Set<String>> e
-        : this.nodeIndex.getBridgesByVersion().entrySet()) {
-      if (e.getKey().startsWith(this.version)) {
-        keepBridges.addAll(e.getValue());
-      }
+    this.retainRelays(this.unionOfVersionsStartingWith(
+        this.nodeIndex.getRelaysByVersion()));
+    this.retainBridges(this.unionOfVersionsStartingWith(
+        this.nodeIndex.getBridgesByVersion()));
+  }
+
+  /* Returns a new bit set of all nodes with a version starting with the
+   * requested version, which are all contained in the sub map from the
+   * requested version (inclusive) to the requested version followed by
+   * the greatest possible character (exclusive). */
+  private BitSet unionOfVersionsStartingWith(
+      SortedMap<String, BitSet> nodesByVersion) {
+    BitSet nodeIds = new BitSet();
+    for (BitSet versionNodeIds : nodesByVersion.subMap(this.version,
+        this.version + Character.MAX_VALUE).values()) {
+      nodeIds.or(versionNodeIds);
     }
-    this.filteredBridges.keySet().retainAll(keepBridges);
+    return nodeIds;
   }
 
   private void filterByHostName() {
@@ -563,18 +709,23 @@ public class RequestHandler {
       /* Not filtering by host name. */
       return;
     }
-    String hostName = this.hostName.toLowerCase();
-    Set<String> removeRelays = new HashSet<>(this.filteredRelays.keySet());
-    for (Map.Entry<String, Set<String>> e :
-        this.nodeIndex.getRelaysByHostName().entrySet()) {
-      if (e.getKey().endsWith(hostName)) {
-        removeRelays.removeAll(e.getValue());
-      }
-    }
-    for (String fingerprint : removeRelays) {
-      this.filteredRelays.remove(fingerprint);
+    /* Host names ending in the requested host name are those with
+     * reversed host names starting with the reversed requested host
+     * name. */
+    this.retainRelays(this.nodeIndex.getRelaysByReversedHostName().lookup(
+        NodeIndexer.reverse(this.hostName.toLowerCase())));
+    this.clearBridges();
+  }
+
+  private void filterByAddress() {
+    if (null == this.addressKeyRange) {
+      /* Not filtering by address. */
+      return;
     }
-    this.filteredBridges.clear();
+    this.retainRelays(this.nodeIndex.getRelaysByAddressKey().lookupRange(
+        this.addressKeyRange[0], this.addressKeyRange[1]));
+    /* Bridge addresses are sanitized and therefore never match. */
+    this.clearBridges();
   }
 
   private void filterByRecommendedVersion() {
@@ -582,33 +733,10 @@ public class RequestHandler {
       /* Not filtering by recommended version. */
       return;
     }
-    Set<String> keepRelays = this.nodeIndex.getRelaysByRecommendedVersion()
-        .get(this.recommendedVersion);
-    this.filteredRelays.keySet().retainAll(keepRelays);
-    Set<String> keepBridges = this.nodeIndex.getBridgesByRecommendedVersion()
-        .get(this.recommendedVersion);
-    this.filteredBridges.keySet().retainAll(keepBridges);
-  }
-
-  private void order() {
-    List<SummaryDocument> uniqueRelays = new ArrayList<>();
-    List<SummaryDocument> uniqueBridges = new ArrayList<>();
-    for (SummaryDocument relay : this.filteredRelays.values()) {
-      if (!uniqueRelays.contains(relay)) {
-        uniqueRelays.add(relay);
-      }
-    }
-    for (SummaryDocument bridge : this.filteredBridges.values()) {
-      if (!uniqueBridges.contains(bridge)) {
-        uniqueBridges.add(bridge);
-      }
-    }
-    Comparator<SummaryDocument> comparator
-        = new SummaryDocumentComparator(this.order);
-    Collections.sort(uniqueRelays, comparator);
-    Collections.sort(uniqueBridges, comparator);
-    this.orderedRelays.addAll(uniqueRelays);
-    this.orderedBridges.addAll(uniqueBridges);
+    this.retainRelays(this.nodeIndex.getRelaysByRecommendedVersion()
+        .get(this.recommendedVersion));
+    this.retainBridges(this.nodeIndex.getBridgesByRecommendedVersion()
+        .get(this.recommendedVersion));
   }
 
   private int relaysSkipped = 0;
@@ -624,22 +752,22 @@ public class RequestHandler {
   }
 
   private void offset() {
+    if (null != this.cursor) {
+      /* Skipping all results up to the cursor position. */
+      this.relaysSkipped = Math.min(this.cursor.getRelaysSkipped(),
+          this.countRelays());
+      this.bridgesSkipped = Math.min(this.cursor.getBridgesSkipped(),
+          this.countBridges());
+      return;
+    }
     if (this.offset == null) {
       /* Not skipping first results. */
       return;
     }
-    int offsetValue = Integer.parseInt(this.offset);
-    while (offsetValue-- > 0
-        && (!this.orderedRelays.isEmpty()
-        || !this.orderedBridges.isEmpty())) {
-      if (!this.orderedRelays.isEmpty()) {
-        this.orderedRelays.remove(0);
-        this.relaysSkipped++;
-      } else {
-        this.orderedBridges.remove(0);
-        this.bridgesSkipped++;
-      }
-    }
+    int offsetValue = Math.max(0, Integer.parseInt(this.offset));
+    this.relaysSkipped = Math.min(offsetValue, this.countRelays());
+    this.bridgesSkipped = Math.min(offsetValue - this.relaysSkipped,
+        this.countBridges());
   }
 
   private int relaysTruncated = 0;
@@ -660,17 +788,97 @@ public class RequestHandler {
       return;
     }
     int limitValue = Integer.parseInt(this.limit);
-    while (!this.orderedRelays.isEmpty()
-        && limitValue < this.orderedRelays.size()) {
-      this.orderedRelays.remove(this.orderedRelays.size() - 1);
-      this.relaysTruncated++;
-    }
-    limitValue -= this.orderedRelays.size();
-    while (!this.orderedBridges.isEmpty()
-        && limitValue < this.orderedBridges.size()) {
-      this.orderedBridges.remove(this.orderedBridges.size() - 1);
-      this.bridgesTruncated++;
+    int relaysRemaining = this.countRelays() - this.relaysSkipped;
+    int relaysLimited = Math.max(0, Math.min(limitValue, relaysRemaining));
+    this.relaysTruncated = relaysRemaining - relaysLimited;
+    limitValue -= relaysLimited;
+    int bridgesRemaining = this.countBridges() - this.bridgesSkipped;
+    int bridgesLimited = Math.max(0,
+        Math.min(limitValue, bridgesRemaining));
+    this.bridgesTruncated = bridgesRemaining - bridgesLimited;
+  }
+
+  private int countRelays() {
+    return this.filteredRelays.cardinality()
+        + (null == this.unindexedRelay ? 0 : 1);
+  }
+
+  private int countBridges() {
+    return this.filteredBridges.cardinality()
+        + (null == this.unindexedBridge ? 0 : 1);
+  }
+
+  /* Collects only those relays and bridges that have not been skipped or
+   * truncated, in the requested order, and creates a cursor for the next
+   * page of results if results were truncated. */
+  private void order() {
+    int relaysPosition = null == this.cursor ? 0
+        : this.cursor.getRelaysPosition();
+    relaysPosition = this.collectOrdered(this.orderedRelays,
+        this.filteredRelays, this.unindexedRelay,
+        this.nodeIndex.getRelaysByNodeId(),
+        this.nodeIndex.getRelaysByOrder(), relaysPosition,
+        null == this.cursor ? this.relaysSkipped : 0,
+        this.countRelays() - this.relaysSkipped - this.relaysTruncated);
+    int bridgesPosition = null == this.cursor ? 0
+        : this.cursor.getBridgesPosition();
+    bridgesPosition = this.collectOrdered(this.orderedBridges,
+        this.filteredBridges, this.unindexedBridge,
+        this.nodeIndex.getBridgesByNodeId(),
+        this.nodeIndex.getBridgesByOrder(), bridgesPosition,
+        null == this.cursor ? this.bridgesSkipped : 0,
+        this.countBridges() - this.bridgesSkipped - this.bridgesTruncated);
+    if (this.relaysTruncated + this.bridgesTruncated > 0
+        && null == this.unindexedRelay && null == this.unindexedBridge) {
+      this.nextCursor = new Cursor(this.nodeIndex.getGeneration(),
+          this.filterKey, NodeIndexer.orderKey(this.order), relaysPosition,
+          this.relaysSkipped + this.orderedRelays.size(), bridgesPosition,
+          this.bridgesSkipped + this.orderedBridges.size());
+    }
+  }
+
+  /* Walks the precomputed order of all nodes starting at the given
+   * position, skips the first filtered nodes, stops as soon as enough
+   * filtered nodes are collected, and returns the position after the
+   * last visited node.  An unindexed node is not contained in precomputed
+   * orders, so that filtered nodes are sorted on the fly in that rare
+   * case. */
+  private int collectOrdered(List<SummaryDocument> result,
+      BitSet filtered, SummaryDocument unindexed,
+      List<SummaryDocument> nodesByNodeId, Map<String, int[]> nodesByOrder,
+      int position, int skip, int take) {
+    if (take <= 0) {
+      return position;
+    }
+    if (null != unindexed) {
+      List<SummaryDocument> unordered = new ArrayList<>();
+      for (int nodeId = filtered.nextSetBit(0); nodeId >= 0;
+          nodeId = filtered.nextSetBit(nodeId + 1)) {
+        unordered.add(nodesByNodeId.get(nodeId));
+      }
+      unordered.add(unindexed);
+      Collections.sort(unordered, new SummaryDocumentComparator(this.order));
+      result.addAll(unordered.subList(skip, skip + take));
+      return position;
+    }
+    int[] ordered = nodesByOrder.get(NodeIndexer.orderKey(this.order));
+    int taken = 0;
+    while (position < ordered.length && taken < take) {
+      int nodeId = ordered[position++];
+      if (filtered.get(nodeId) && skip-- <= 0) {
+        result.add(nodesByNodeId.get(nodeId));
+        taken++;
+      }
     }
+    return position;
+  }
+
+  private Cursor nextCursor;
+
+  /** Returns the cursor for requesting the next page of results, or
+   * <code>null</code> if results were not truncated. */
+  public Cursor getNextCursor() {
+    return this.nextCursor;
   }
 
   private List<SummaryDocument> orderedRelays = new ArrayList<>();
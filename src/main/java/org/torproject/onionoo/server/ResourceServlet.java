@@ -3,20 +3,32 @@
 
 package org.torproject.onionoo.server;
 
+import org.torproject.onionoo.util.FieldProjection;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,26 +41,37 @@ public class ResourceServlet extends HttpServlet {
 
   private boolean maintenanceMode = false;
 
+  private static final long DEFAULT_RESPONSE_CACHE_MEGABYTES = 64L;
+
+  private ResponseCache responseCache =
+      new ResponseCache(DEFAULT_RESPONSE_CACHE_MEGABYTES << 20);
+
+  /* Whether to write responses asynchronously, so that slow clients do
+   * not block request threads. */
+  private boolean asyncWriting = false;
+
+  private static final long ASYNC_WRITING_TIMEOUT = 10L * 60L * 1000L;
+
   /* Called by servlet container, not by test class. */
   @Override
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
     this.maintenanceMode = config.getInitParameter("maintenance") != null
         && config.getInitParameter("maintenance").equals("1");
+    this.asyncWriting = config.getInitParameter("asyncwriting") != null
+        && config.getInitParameter("asyncwriting").equals("1");
+    if (config.getInitParameter("responsecachemegabytes") != null) {
+      try {
+        this.responseCache = new ResponseCache(Long.parseLong(
+            config.getInitParameter("responsecachemegabytes")) << 20);
+      } catch (NumberFormatException e) {
+        throw new ServletException("Invalid response cache size.", e);
+      }
+    }
   }
 
   private static final long INDEX_WAITING_TIME = 10L * 1000L;
 
-  @Override
-  public long getLastModified(HttpServletRequest request) {
-    if (this.maintenanceMode) {
-      return super.getLastModified(request);
-    } else {
-      return NodeIndexerFactory.getNodeIndexer().getLastIndexed(
-          INDEX_WAITING_TIME);
-    }
-  }
-
   @Override
   public void doGet(HttpServletRequest request,
       HttpServletResponse response) throws IOException, ServletException {
@@ -69,11 +92,16 @@ public class ResourceServlet extends HttpServlet {
       Arrays.asList("type", "running", "search", "lookup", "fingerprint",
           "country", "as", "flag", "first_seen_days", "last_seen_days",
           "contact", "order", "limit", "offset", "fields", "family", "version",
-          "host_name", "recommended_version"));
+          "host_name", "recommended_version", "address", "cursor"));
+
+  /* Parameters that do not filter relays and bridges, which are
+   * therefore not covered by cursors. */
+  private static Set<String> nonFilterParameters = new HashSet<>(
+      Arrays.asList("order", "limit", "offset", "fields", "cursor"));
 
   private static Set<String> illegalSearchQualifiers =
       new HashSet<>(Arrays.asList(("search,fingerprint,order,limit,"
-          + "offset,fields").split(",")));
+          + "offset,fields,cursor").split(",")));
 
   private static String ipv6AddressPatternString =
       "^\\[?[0-9a-fA-F:\\.]{1,39}\\]?$";
@@ -127,9 +155,6 @@ public class ResourceServlet extends HttpServlet {
       return;
     }
 
-    RequestHandler rh = new RequestHandler(nodeIndex);
-    rh.setResourceType(resourceType);
-
     /* Extract parameters either from the old-style URI or from request
      * parameters. */
     Map<String, String> parameterMap = new HashMap<>();
@@ -148,7 +173,28 @@ public class ResourceServlet extends HttpServlet {
       }
     }
 
+    /* Continue with the node index that a given cursor was created from,
+     * as long as that node index is still available. */
+    Cursor cursor = null;
+    if (parameterMap.containsKey("cursor")) {
+      cursor = this.parseCursorParameter(parameterMap.get("cursor"));
+      if (null == cursor || parameterMap.containsKey("offset")) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+      nodeIndex = NodeIndexerFactory.getNodeIndexer().getNodeIndex(
+          cursor.getGeneration());
+      if (null == nodeIndex) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+    }
+
+    RequestHandler rh = new RequestHandler(nodeIndex);
+    rh.setResourceType(resourceType);
+
     /* Filter relays and bridges matching the request. */
+    String[] unqualifiedSearchTermsArray = null;
     if (parameterMap.containsKey("search")) {
       String[] searchTerms = parseSearchParameters(
           request.getQueryString());
@@ -184,8 +230,9 @@ public class ResourceServlet extends HttpServlet {
           unqualifiedSearchTerms.add(searchTerm);
         }
       }
-      rh.setSearch(unqualifiedSearchTerms.toArray(
-          new String[unqualifiedSearchTerms.size()]));
+      unqualifiedSearchTermsArray = unqualifiedSearchTerms.toArray(
+          new String[unqualifiedSearchTerms.size()]);
+      rh.setSearch(unqualifiedSearchTermsArray);
     }
     if (parameterMap.containsKey("type")) {
       String typeParameterValue = parameterMap.get("type").toLowerCase();
@@ -302,6 +349,15 @@ public class ResourceServlet extends HttpServlet {
       }
       rh.setHostName(hostNameParameter);
     }
+    if (parameterMap.containsKey("address")) {
+      String[] addressKeyRange = this.parseAddressParameter(
+          parameterMap.get("address"));
+      if (null == addressKeyRange) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+      rh.setAddressKeyRange(addressKeyRange);
+    }
     if (parameterMap.containsKey("recommended_version")) {
       String recommendedVersionParameterValue =
           parameterMap.get("recommended_version").toLowerCase();
@@ -314,14 +370,31 @@ public class ResourceServlet extends HttpServlet {
       }
       rh.setRecommendedVersion(recommendedVersionRequested);
     }
+    String[] order = null;
     if (parameterMap.containsKey("order")) {
-      String[] order = this.parseOrderParameter(parameterMap.get("order"));
+      order = this.parseOrderParameter(parameterMap.get("order"));
       if (order == null) {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST);
         return;
       }
       rh.setOrder(order);
     }
+    String filterKey = hashFilterParameters(parameterMap,
+        unqualifiedSearchTermsArray);
+    rh.setFilterKey(filterKey);
+    if (null != cursor) {
+      if (!cursor.getFilterKey().equals(filterKey)) {
+        /* Cursor was created for other filter parameters. */
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+      if (!cursor.getOrderKey().equals(NodeIndexer.orderKey(order))) {
+        /* Cursor was created for another order. */
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+      }
+      rh.setCursor(cursor);
+    }
     if (parameterMap.containsKey("offset")) {
       String offsetParameter = parameterMap.get("offset");
       if (offsetParameter.length() > 6) {
@@ -360,19 +433,6 @@ public class ResourceServlet extends HttpServlet {
       String family = familyParameter.toUpperCase();
       rh.setFamily(family);
     }
-    rh.handleRequest();
-    long parsedRequestMillis = System.currentTimeMillis();
-
-    ResponseBuilder rb = new ResponseBuilder();
-    rb.setResourceType(resourceType);
-    rb.setRelaysPublishedString(rh.getRelaysPublishedString());
-    rb.setBridgesPublishedString(rh.getBridgesPublishedString());
-    rb.setOrderedRelays(rh.getOrderedRelays());
-    rb.setOrderedBridges(rh.getOrderedBridges());
-    rb.setRelaysSkipped(rh.getRelaysSkipped());
-    rb.setBridgesSkipped(rh.getBridgesSkipped());
-    rb.setRelaysTruncated(rh.getRelaysTruncated());
-    rb.setBridgesTruncated(rh.getBridgesTruncated());
     String[] fields = null;
     if (parameterMap.containsKey("fields")) {
       fields = this.parseFieldsParameter(parameterMap.get("fields"));
@@ -380,9 +440,12 @@ public class ResourceServlet extends HttpServlet {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST);
         return;
       }
-      rb.setFields(fields);
     }
 
+    boolean gzipAccepted = acceptsGzip(request.getHeader("Accept-Encoding"));
+    String cacheKey = canonicalizeRequest(resourceType, parameterMap,
+        unqualifiedSearchTermsArray) + (gzipAccepted ? "&gzip" : "");
+
     long indexWrittenMillis =
         NodeIndexerFactory.getNodeIndexer().getLastIndexed(
         INDEX_WAITING_TIME);
@@ -392,20 +455,318 @@ public class ResourceServlet extends HttpServlet {
         / CACHE_INTERVAL) * CACHE_INTERVAL);
 
     response.setHeader("Access-Control-Allow-Origin", "*");
-    response.setContentType("application/json");
-    response.setCharacterEncoding("utf-8");
     response.setHeader("Cache-Control", "public, max-age="
         + (cacheMaxAgeMillis / 1000L));
-    try (PrintWriter pw = response.getWriter()) {
-      rb.buildResponse(pw);
+    response.setHeader("Vary", "Accept-Encoding");
+
+    /* Tell the client that it already has the current response if it
+     * sent us the entity tag of that response or, only if it did not send
+     * any entity tags as required by RFC 7232, section 6, if the node
+     * index has not changed since the given time.  Do this before
+     * filtering and formatting any documents. */
+    String entityTag = computeEntityTag(nodeIndex.getGeneration(),
+        cacheKey);
+    response.setHeader("ETag", entityTag);
+    response.setHeader("Last-Modified", formatHttpDate(indexWrittenMillis));
+    String detailsFields = null != fields && "details".equals(resourceType)
+        ? new FieldProjection(fields).getName() : null;
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (null != ifNoneMatch ? matchesEntityTag(ifNoneMatch, entityTag)
+        : isNotModifiedSince(request.getHeader("If-Modified-Since"),
+        indexWrittenMillis)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      /* Count the request in the statistics, too, without any documents
+       * or characters written. */
+      long notModifiedMillis = System.currentTimeMillis();
+      PerformanceMetrics.logStatistics(receivedRequestMillis, resourceType,
+          parameterMap.keySet(), detailsFields, notModifiedMillis, 0, 0, 0,
+          notModifiedMillis);
+      return;
+    }
+
+    /* Look up the response in the cache before filtering and formatting
+     * any documents. */
+    ResponseCache.Entry cachedResponse = this.responseCache.get(
+        nodeIndex.getGeneration(), cacheKey);
+    ResponseBuilder rb = null;
+    if (null == cachedResponse) {
+      rh.handleRequest();
+      rb = new ResponseBuilder();
+      rb.setResourceType(resourceType);
+      rb.setSummaryLines(nodeIndex.getSummaryLines());
+      rb.setDocumentSegments(nodeIndex.getDocumentSegments());
+      rb.setRelaysPublishedString(rh.getRelaysPublishedString());
+      rb.setBridgesPublishedString(rh.getBridgesPublishedString());
+      rb.setOrderedRelays(rh.getOrderedRelays());
+      rb.setOrderedBridges(rh.getOrderedBridges());
+      rb.setRelaysSkipped(rh.getRelaysSkipped());
+      rb.setBridgesSkipped(rh.getBridgesSkipped());
+      rb.setRelaysTruncated(rh.getRelaysTruncated());
+      rb.setBridgesTruncated(rh.getBridgesTruncated());
+      if (null != rh.getNextCursor()) {
+        rb.setNextCursor(rh.getNextCursor().encode());
+      }
+      if (null != fields) {
+        rb.setFields(fields);
+      }
+    }
+    long parsedRequestMillis = System.currentTimeMillis();
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("utf-8");
+    if (gzipAccepted) {
+      /* Setting the content encoding tells AsyncGzipFilter not to
+       * compress this response once more. */
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    /* In asynchronous mode, produce the response chunk by chunk whenever
+     * the client is ready to receive more data, without blocking this
+     * thread and without holding the whole response in memory. */
+    AsyncContext asyncContext = this.startAsyncWriting(request);
+    if (null != asyncContext && null == cachedResponse) {
+      AsyncResponseWriter.write(asyncContext, this.createChunkSource(rb,
+          gzipAccepted, nodeIndex.getGeneration(), cacheKey,
+          rh.getOrderedRelays().size(), rh.getOrderedBridges().size(),
+          receivedRequestMillis, resourceType, parameterMap.keySet(),
+          detailsFields, parsedRequestMillis));
+      return;
+    }
+    int relayDocumentsWritten;
+    int bridgeDocumentsWritten;
+    long bytesWritten;
+    if (null == cachedResponse) {
+      /* Keep a copy of the response for the cache, unless it's too large
+       * to be cached anyway. */
+      ResponseCache.CapturingOutputStream capturingOutputStream =
+          new ResponseCache.CapturingOutputStream(response.getOutputStream(),
+          this.responseCache.getMaxResponseBytes());
+      try (OutputStream os = capturingOutputStream) {
+        if (gzipAccepted) {
+          rb.buildCompressedResponse(os);
+        } else {
+          rb.buildResponse(os);
+        }
+      }
+      relayDocumentsWritten = rh.getOrderedRelays().size();
+      bridgeDocumentsWritten = rh.getOrderedBridges().size();
+      bytesWritten = rb.getBytesWritten();
+      byte[] responseToCache = capturingOutputStream.getCaptured();
+      if (null != responseToCache) {
+        this.responseCache.put(nodeIndex.getGeneration(), cacheKey,
+            new ResponseCache.Entry(responseToCache, relayDocumentsWritten,
+            bridgeDocumentsWritten, bytesWritten));
+      }
+    } else {
+      if (null != asyncContext) {
+        AsyncResponseWriter.write(asyncContext,
+            AsyncResponseWriter.createSource(cachedResponse.getResponse()));
+      } else {
+        try (OutputStream os = response.getOutputStream()) {
+          os.write(cachedResponse.getResponse());
+        }
+      }
+      relayDocumentsWritten = cachedResponse.getRelayDocumentsWritten();
+      bridgeDocumentsWritten = cachedResponse.getBridgeDocumentsWritten();
+      bytesWritten = cachedResponse.getBytesWritten();
     }
-    int relayDocumentsWritten = rh.getOrderedRelays().size();
-    int bridgeDocumentsWritten = rh.getOrderedBridges().size();
-    int charsWritten = rb.getCharsWritten();
     long writtenResponseMillis = System.currentTimeMillis();
     PerformanceMetrics.logStatistics(receivedRequestMillis, resourceType,
-        parameterMap.keySet(), parsedRequestMillis, relayDocumentsWritten,
-        bridgeDocumentsWritten, charsWritten, writtenResponseMillis);
+        parameterMap.keySet(), detailsFields, parsedRequestMillis,
+        relayDocumentsWritten, bridgeDocumentsWritten,
+        (int) Math.min(Integer.MAX_VALUE, bytesWritten),
+        writtenResponseMillis);
+  }
+
+  /* Returns a source of the response built by the given response builder,
+   * which puts the response into the cache unless it's too large and logs
+   * statistics after producing the last chunk.  The time to build the
+   * response only includes the time spent producing chunks, not the time
+   * waiting for the client to receive them. */
+  private AsyncResponseWriter.ChunkSource createChunkSource(
+      final ResponseBuilder rb, final boolean gzipAccepted,
+      final long generation, final String cacheKey,
+      final int relayDocumentsWritten, final int bridgeDocumentsWritten,
+      final long receivedRequestMillis, final String resourceType,
+      final Collection<String> parameterKeys, final String detailsFields,
+      final long parsedRequestMillis) {
+    return new AsyncResponseWriter.ChunkSource() {
+
+      private ResponseCache.CapturingOutputStream capturingOutputStream;
+
+      private long buildingMillis = 0L;
+
+      @Override
+      public boolean writeNextChunk(OutputStream os, int minBytes)
+          throws IOException {
+        long startedMillis = System.currentTimeMillis();
+        if (null == this.capturingOutputStream) {
+          this.capturingOutputStream =
+              new ResponseCache.CapturingOutputStream(os,
+              responseCache.getMaxResponseBytes());
+          rb.startResponse(this.capturingOutputStream, gzipAccepted);
+        }
+        boolean moreChunks = rb.writeNextChunk(minBytes);
+        this.buildingMillis += System.currentTimeMillis() - startedMillis;
+        if (!moreChunks) {
+          long bytesWritten = rb.getBytesWritten();
+          byte[] responseToCache = this.capturingOutputStream.getCaptured();
+          if (null != responseToCache) {
+            responseCache.put(generation, cacheKey, new ResponseCache.Entry(
+                responseToCache, relayDocumentsWritten,
+                bridgeDocumentsWritten, bytesWritten));
+          }
+          PerformanceMetrics.logStatistics(receivedRequestMillis,
+              resourceType, parameterKeys, detailsFields,
+              parsedRequestMillis, relayDocumentsWritten,
+              bridgeDocumentsWritten,
+              (int) Math.min(Integer.MAX_VALUE, bytesWritten),
+              parsedRequestMillis + this.buildingMillis);
+        }
+        return moreChunks;
+      }
+
+      @Override
+      public void close() {
+        rb.close();
+      }
+    };
+  }
+
+  /* Puts the given request into asynchronous mode and returns its
+   * asynchronous context, or returns null if asynchronous writing is
+   * disabled or not supported, in which case the response is written
+   * synchronously. */
+  private AsyncContext startAsyncWriting(
+      HttpServletRequestWrapper request) {
+    if (!this.asyncWriting) {
+      return null;
+    }
+    return request.startAsync(ASYNC_WRITING_TIMEOUT);
+  }
+
+  /* Returns whether the given Accept-Encoding header value contains gzip
+   * with a non-zero quality value. */
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (null == acceptEncoding) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")
+            && parameter.substring(2).matches("0(\\.0{0,3})?")) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /* Returns a strong entity tag for the response to the given canonical
+   * request built from the node index with the given generation, which
+   * changes whenever the response could change. */
+  private static String computeEntityTag(long generation,
+      String canonicalRequest) {
+    return "\"" + Base64.encodeBase64URLSafeString(DigestUtils.sha256(
+        generation + "\n" + canonicalRequest)) + "\"";
+  }
+
+  /* Returns whether the given If-None-Match header value contains the
+   * given entity tag or is a wildcard, using weak comparison as required
+   * for this header. */
+  private static boolean matchesEntityTag(String ifNoneMatch,
+      String entityTag) {
+    if (null == ifNoneMatch) {
+      return false;
+    }
+    for (String listedEntityTag : ifNoneMatch.split(",")) {
+      listedEntityTag = listedEntityTag.trim();
+      if (listedEntityTag.startsWith("W/")) {
+        listedEntityTag = listedEntityTag.substring(2);
+      }
+      if (listedEntityTag.equals("*")
+          || listedEntityTag.equals(entityTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final String HTTP_DATE_FORMAT =
+      "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  /* Formats the given time in milliseconds since the epoch as HTTP date,
+   * which has a resolution of seconds. */
+  private static String formatHttpDate(long millis) {
+    SimpleDateFormat dateFormat = new SimpleDateFormat(HTTP_DATE_FORMAT,
+        Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return dateFormat.format(millis);
+  }
+
+  /* Returns whether the given If-Modified-Since header value is a valid
+   * HTTP date that is not older than the given last-modified time in
+   * milliseconds since the epoch, or false if the header is missing or
+   * invalid. */
+  private static boolean isNotModifiedSince(String ifModifiedSince,
+      long lastModifiedMillis) {
+    if (null == ifModifiedSince) {
+      return false;
+    }
+    SimpleDateFormat dateFormat = new SimpleDateFormat(HTTP_DATE_FORMAT,
+        Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return lastModifiedMillis / 1000L
+          <= dateFormat.parse(ifModifiedSince.trim()).getTime() / 1000L;
+    } catch (ParseException e) {
+      return false;
+    }
+  }
+
+  /* Returns a canonical form of the given request that does not depend
+   * on the order of parameters or on whether parameters were given
+   * directly or as qualified search terms. */
+  private static String canonicalizeRequest(String resourceType,
+      Map<String, String> parameterMap, String[] unqualifiedSearchTerms) {
+    StringBuilder sb = new StringBuilder(resourceType);
+    for (Map.Entry<String, String> e
+        : new TreeMap<>(parameterMap).entrySet()) {
+      if (!e.getKey().equals("search")) {
+        appendParameter(sb, e.getKey(), e.getValue());
+      }
+    }
+    if (null != unqualifiedSearchTerms) {
+      appendParameter(sb, "search",
+          StringUtils.join(unqualifiedSearchTerms, ' '));
+    }
+    return sb.toString();
+  }
+
+  /* Returns a hash of the canonical form of all parameters of the given
+   * request that filter relays and bridges, so that a cursor can only be
+   * used with the same filter parameters as the request that returned
+   * it. */
+  private static String hashFilterParameters(
+      Map<String, String> parameterMap, String[] unqualifiedSearchTerms) {
+    Map<String, String> filterParameters = new HashMap<>(parameterMap);
+    filterParameters.keySet().removeAll(nonFilterParameters);
+    return DigestUtils.sha256Hex(canonicalizeRequest("", filterParameters,
+        unqualifiedSearchTerms)).substring(0, 16);
+  }
+
+  /* Appends the given parameter with its value prefixed by its length,
+   * so that values containing separator characters cannot be confused
+   * with other parameters. */
+  private static void appendParameter(StringBuilder sb, String key,
+      String value) {
+    sb.append('&').append(key).append('=').append(value.length())
+        .append(':').append(value);
   }
 
   private static Pattern searchQueryStringPattern =
@@ -617,5 +978,28 @@ public class ResourceServlet extends HttpServlet {
     }
     return parameter;
   }
-}
 
+  private static Pattern addressParameterPattern =
+      Pattern.compile("^\\[?[0-9a-fA-F:\\.]{1,45}\\]?(/[0-9]{1,3})?$");
+
+  private String[] parseAddressParameter(String parameter) {
+    if (!addressParameterPattern.matcher(parameter).matches()) {
+      /* Address contains illegal character(s). */
+      return null;
+    }
+    /* Returns null if the address or prefix length is invalid. */
+    return IpAddresses.toKeyRange(parameter);
+  }
+
+  private static Pattern cursorParameterPattern =
+      Pattern.compile("^[0-9a-zA-Z_-]{1,200}$");
+
+  private Cursor parseCursorParameter(String parameter) {
+    if (!cursorParameterPattern.matcher(parameter).matches()) {
+      /* Cursor contains illegal character(s). */
+      return null;
+    }
+    /* Returns null if the cursor is invalid. */
+    return Cursor.decode(parameter);
+  }
+}
@@ -6,41 +6,37 @@ package org.torproject.onionoo.server;
 import org.torproject.onionoo.docs.BandwidthDocument;
 import org.torproject.onionoo.docs.ClientsDocument;
 import org.torproject.onionoo.docs.DetailsDocument;
-import org.torproject.onionoo.docs.DetailsDocumentFields;
+import org.torproject.onionoo.docs.Document;
+import org.torproject.onionoo.docs.DocumentSegments;
 import org.torproject.onionoo.docs.DocumentStore;
 import org.torproject.onionoo.docs.DocumentStoreFactory;
 import org.torproject.onionoo.docs.SummaryDocument;
 import org.torproject.onionoo.docs.UptimeDocument;
 import org.torproject.onionoo.docs.WeightsDocument;
-import org.torproject.onionoo.util.FormattingUtils;
-
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import org.torproject.onionoo.util.FieldProjection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
 
 public class ResponseBuilder {
 
   private static final Logger logger =
       LoggerFactory.getLogger(ResponseBuilder.class);
 
-  private static ObjectMapper objectMapper = new ObjectMapper()
-      .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
-      .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
-      .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
-      .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-
   private DocumentStore documentStore;
   private String buildRevision;
 
@@ -114,90 +110,482 @@ public class ResponseBuilder {
     this.bridgesTruncated = bridgesTruncated;
   }
 
+  private String nextCursor;
+
+  public void setNextCursor(String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+
+  private Map<SummaryDocument, byte[]> summaryLines;
+
+  /** Sets pre-rendered lines of summary responses, which are used for
+   * all relays and bridges contained in them. */
+  public void setSummaryLines(Map<SummaryDocument, byte[]> summaryLines) {
+    this.summaryLines = summaryLines;
+  }
+
+  private DocumentSegments documentSegments;
+
+  /** Sets the segment files to retrieve documents from before falling
+   * back to document files. */
+  public void setDocumentSegments(DocumentSegments documentSegments) {
+    this.documentSegments = documentSegments;
+  }
+
   private String[] fields;
 
+  private FieldProjection fieldProjection;
+
+  /** Sets the fields to include in details documents, which are copied
+   * from stored details documents without parsing them. */
   public void setFields(String[] fields) {
     this.fields = new String[fields.length];
     System.arraycopy(fields, 0, this.fields, 0, fields.length);
+    this.fieldProjection = new FieldProjection(this.fields);
+  }
+
+  /** Writes the uncompressed response to the given output stream. */
+  public void buildResponse(OutputStream os) throws IOException {
+    this.buildResponse(os, false);
+  }
+
+  private OutputStream compressedOutputStream;
+
+  private ByteArrayOutputStream pendingMember;
+
+  private long compressedDocumentBytesWritten = 0L;
+
+  /** Writes the response to the given output stream as a sequence of
+   * gzip members, which together form a valid gzip stream.
+   *
+   * <p>Documents that are available in compressed form are copied as
+   * they are, and only the remaining parts of the response in between
+   * are compressed.</p> */
+  public void buildCompressedResponse(OutputStream os) throws IOException {
+    this.buildResponse(os, true);
+  }
+
+  private void buildResponse(OutputStream os, boolean compressed)
+      throws IOException {
+    this.startResponse(os, compressed);
+    try {
+      while (this.writeNextChunk(Long.MAX_VALUE)) {
+        /* Write the whole response at once. */
+      }
+    } finally {
+      this.close();
+    }
+  }
+
+  private ResponseWriter writer;
+
+  /* Parts of the response, which are written one after another. */
+  private static final int RELAYS_HEADER = 0;
+
+  private static final int RELAYS = 1;
+
+  private static final int BRIDGES = 2;
+
+  private static final int DONE = 3;
+
+  private int part = RELAYS_HEADER;
+
+  private NodeStatuses nodeStatuses;
+
+  /** Starts writing the response to the given output stream, either
+   * uncompressed or as a sequence of gzip members, which continues chunk
+   * by chunk whenever {@link #writeNextChunk(long)} is called. */
+  void startResponse(OutputStream os, boolean compressed) {
+    if (compressed) {
+      this.compressedOutputStream = os;
+      this.pendingMember = new ByteArrayOutputStream();
+      this.writer = new ResponseWriter(this.pendingMember);
+    } else {
+      this.writer = new ResponseWriter(os);
+    }
   }
 
-  public void buildResponse(PrintWriter pw) {
-    writeRelays(this.orderedRelays, pw);
-    writeBridges(this.orderedBridges, pw);
+  /** Writes the next chunk of the response, which contains at least the
+   * given number of uncompressed bytes unless the response ends before,
+   * and returns whether there are more chunks to write. */
+  boolean writeNextChunk(long minBytes) throws IOException {
+    long chunkStart = this.getUncompressedBytesWritten();
+    while (this.part != DONE
+        && this.getUncompressedBytesWritten() - chunkStart < minBytes) {
+      this.writeNextPart();
+    }
+    if (null != this.compressedOutputStream) {
+      this.writePendingMember(this.writer);
+    } else {
+      this.writer.flush();
+    }
+    this.bytesWritten = this.getUncompressedBytesWritten();
+    return this.part != DONE;
+  }
+
+  /** Stops retrieving documents ahead for chunks that will not be
+   * written anymore, for example, because the client went away. */
+  void close() {
+    if (null != this.nodeStatuses) {
+      this.nodeStatuses.close();
+      this.nodeStatuses = null;
+    }
+  }
+
+  private long getUncompressedBytesWritten() {
+    return this.writer.getBytesWritten()
+        + this.compressedDocumentBytesWritten;
+  }
+
+  /* Writes the next document, or the part of the response following the
+   * last document of relays or bridges. */
+  private void writeNextPart() throws IOException {
+    if (this.part == RELAYS_HEADER) {
+      this.writeRelaysHeader(this.writer);
+      this.nodeStatuses = new NodeStatuses(this.orderedRelays);
+      this.part = RELAYS;
+    } else if (this.nodeStatuses.writeNext(this.writer)) {
+      return;
+    } else if (this.part == RELAYS) {
+      this.nodeStatuses.close();
+      this.writeRelaysFooter(this.writer);
+      this.writeBridgesHeader(this.writer);
+      this.nodeStatuses = new NodeStatuses(this.orderedBridges);
+      this.part = BRIDGES;
+    } else {
+      this.close();
+      this.writeBridgesFooter(this.writer);
+      this.part = DONE;
+    }
+  }
+
+  /* Compresses everything written to the given writer since writing the
+   * last gzip member and writes it as a new gzip member. */
+  private void writePendingMember(ResponseWriter writer)
+      throws IOException {
+    writer.flush();
+    if (this.pendingMember.size() == 0) {
+      return;
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzos = new GZIPOutputStream(baos)) {
+      this.pendingMember.writeTo(gzos);
+    }
+    baos.writeTo(this.compressedOutputStream);
+    this.pendingMember.reset();
+  }
+
+  /* Writes the given compressed document as its own gzip member. */
+  private void writeCompressedLines(ResponseWriter writer,
+      ByteBuffer compressedLines) throws IOException {
+    this.writePendingMember(writer);
+    /* The last four bytes of a gzip member contain the uncompressed size
+     * in little-endian order. */
+    int limit = compressedLines.limit();
+    this.compressedDocumentBytesWritten +=
+        (compressedLines.get(limit - 4) & 0xffL)
+        | (compressedLines.get(limit - 3) & 0xffL) << 8
+        | (compressedLines.get(limit - 2) & 0xffL) << 16
+        | (compressedLines.get(limit - 1) & 0xffL) << 24;
+    if (compressedLines.hasArray()) {
+      this.compressedOutputStream.write(compressedLines.array(),
+          compressedLines.arrayOffset() + compressedLines.position(),
+          compressedLines.remaining());
+    } else {
+      /* Copy documents sliced out of memory-mapped segment files in
+       * chunks, rather than copying each of them to the heap first. */
+      if (null == this.transferBuffer) {
+        this.transferBuffer = new byte[8192];
+      }
+      ByteBuffer remaining = compressedLines.duplicate();
+      while (remaining.hasRemaining()) {
+        int length = Math.min(remaining.remaining(),
+            this.transferBuffer.length);
+        remaining.get(this.transferBuffer, 0, length);
+        this.compressedOutputStream.write(this.transferBuffer, 0, length);
+      }
+    }
   }
 
-  private int charsWritten = 0;
+  private byte[] transferBuffer;
 
-  public int getCharsWritten() {
-    return this.charsWritten;
+  /* Returns the type of documents contained in the response, or null if
+   * the response contains summary documents or only some fields of
+   * details documents, so that documents cannot be copied as they
+   * are. */
+  private Class<? extends Document> getCopiedDocumentType() {
+    if (null != this.fields || null == this.resourceType) {
+      return null;
+    } else if (this.resourceType.equals("details")) {
+      return DetailsDocument.class;
+    } else if (this.resourceType.equals("bandwidth")) {
+      return BandwidthDocument.class;
+    } else if (this.resourceType.equals("weights")) {
+      return WeightsDocument.class;
+    } else if (this.resourceType.equals("clients")) {
+      return ClientsDocument.class;
+    } else if (this.resourceType.equals("uptime")) {
+      return UptimeDocument.class;
+    } else {
+      return null;
+    }
+  }
+
+  /* Returns the compressed form of the document of the given node from
+   * the compressed segment file of its type, or null if the response is
+   * not compressed, if only some fields are requested, or if the document
+   * is not contained in such a segment file. */
+  private ByteBuffer retrieveCompressedSegmentLines(SummaryDocument entry) {
+    Class<? extends Document> documentType =
+        this.getCopiedDocumentType();
+    if (null == this.compressedOutputStream || null == documentType) {
+      return null;
+    }
+    ByteBuffer compressedLines = this.documentStore.retrievePacked(
+        this.documentSegments, documentType, entry.getFingerprint(),
+        true);
+    return null != compressedLines && compressedLines.remaining() >= 18
+        ? compressedLines : null;
   }
 
-  private static final String PROTOCOL_VERSION = "6.0";
+  /* Returns the compressed form of the document of the given node from
+   * its compressed document file, or null if the response is not
+   * compressed, if only some fields are requested, or if there is no
+   * compressed document file. */
+  private ByteBuffer retrieveCompressedFileLines(SummaryDocument entry) {
+    Class<? extends Document> documentType =
+        this.getCopiedDocumentType();
+    if (null == this.compressedOutputStream || null == documentType) {
+      return null;
+    }
+    byte[] compressedBytes = this.documentStore.retrieveCompressed(
+        documentType, entry.getFingerprint());
+    return null != compressedBytes && compressedBytes.length >= 18
+        ? ByteBuffer.wrap(compressedBytes) : null;
+  }
+
+  /* Returns the document of the given node from the packed segment file
+   * of its type, or the requested fields of its details document from a
+   * segment file materializing them, or null if the document is not
+   * contained in such a segment file. */
+  private ByteBuffer retrievePackedLines(SummaryDocument entry) {
+    Class<? extends Document> documentType =
+        this.getCopiedDocumentType();
+    if (null != documentType) {
+      return this.documentStore.retrievePacked(this.documentSegments,
+          documentType, entry.getFingerprint(), false);
+    } else if (null != this.fieldProjection
+        && "details".equals(this.resourceType)) {
+      return this.documentStore.retrieveProjected(this.documentSegments,
+          this.fieldProjection, entry.getFingerprint());
+    } else {
+      return null;
+    }
+  }
+
+  private int readAhead = DocumentPrefetcher.READ_AHEAD;
+
+  /* Sets the maximum number of documents read from document files ahead
+   * of the document that is currently written, which is only changed for
+   * benchmarking. */
+  void setReadAhead(int readAhead) {
+    this.readAhead = readAhead;
+  }
+
+  private long bytesWritten = 0L;
+
+  /** Returns the number of uncompressed bytes in the response. */
+  public long getBytesWritten() {
+    return this.bytesWritten;
+  }
+
+  private static final String PROTOCOL_VERSION = "6.2";
 
   private static final String NEXT_MAJOR_VERSION_SCHEDULED = null;
 
-  private void writeRelays(List<SummaryDocument> relays, PrintWriter pw) {
-    this.write(pw, "{\"version\":\"%s\",\n", PROTOCOL_VERSION);
+  private void writeRelaysHeader(ResponseWriter writer)
+      throws IOException {
+    writer.append("{\"version\":\"").append(PROTOCOL_VERSION)
+        .append("\",\n");
     if (null != NEXT_MAJOR_VERSION_SCHEDULED) {
-      this.write(pw, "\"next_major_version_scheduled\":\"%s\",\n",
-          NEXT_MAJOR_VERSION_SCHEDULED);
+      writer.append("\"next_major_version_scheduled\":\"")
+          .append(NEXT_MAJOR_VERSION_SCHEDULED).append("\",\n");
     }
     if (null != buildRevision) {
-      this.write(pw, "\"build_revision\":\"%s\",\n", buildRevision);
+      writer.append("\"build_revision\":\"").append(buildRevision)
+          .append("\",\n");
     }
-    this.write(pw, "\"relays_published\":\"%s\",\n",
-        this.relaysPublishedString);
+    writer.append("\"relays_published\":\"")
+        .append(this.relaysPublishedString).append("\",\n");
     if (this.relaysSkipped > 0) {
-      this.write(pw, "\"relays_skipped\":%d,\n", this.relaysSkipped);
+      writer.append("\"relays_skipped\":").append(this.relaysSkipped)
+          .append(",\n");
     }
-    this.write(pw, "\"relays\":[");
+    writer.append("\"relays\":[");
+  }
 
-    int written = 0;
-    for (SummaryDocument entry : relays) {
-      String lines = this.formatNodeStatus(entry);
-      if (lines.length() > 0) {
-        this.write(pw, "%s%s", written++ > 0 ? ",\n" : "\n", lines);
-      }
-    }
-    this.write(pw, "\n],\n");
+  private void writeRelaysFooter(ResponseWriter writer) throws IOException {
+    writer.append("\n],\n");
     if (this.relaysTruncated > 0) {
-      this.write(pw, "\"relays_truncated\":%d,\n", this.relaysTruncated);
+      writer.append("\"relays_truncated\":").append(this.relaysTruncated)
+          .append(",\n");
     }
   }
 
-  private void writeBridges(List<SummaryDocument> bridges,
-      PrintWriter pw) {
-    this.write(pw, "\"bridges_published\":\"" + bridgesPublishedString
-        + "\",\n");
+  private void writeBridgesHeader(ResponseWriter writer)
+      throws IOException {
+    writer.append("\"bridges_published\":\"")
+        .append(this.bridgesPublishedString).append("\",\n");
     if (this.bridgesSkipped > 0) {
-      this.write(pw, "\"bridges_skipped\":%d,\n", this.bridgesSkipped);
+      writer.append("\"bridges_skipped\":").append(this.bridgesSkipped)
+          .append(",\n");
     }
-    this.write(pw, "\"bridges\":[");
-    int written = 0;
-    for (SummaryDocument entry : bridges) {
-      String lines = this.formatNodeStatus(entry);
-      if (lines.length() > 0) {
-        this.write(pw, (written++ > 0 ? ",\n" : "\n") + lines);
+    writer.append("\"bridges\":[");
+  }
+
+  private void writeBridgesFooter(ResponseWriter writer)
+      throws IOException {
+    writer.append("\n]");
+    if (this.bridgesTruncated > 0) {
+      writer.append(",\n\"bridges_truncated\":")
+          .append(this.bridgesTruncated);
+    }
+    if (null != this.nextCursor) {
+      writer.append(",\n\"next_cursor\":\"").append(this.nextCursor)
+          .append('"');
+    }
+    writer.append("}\n");
+  }
+
+  /* Writer of the documents of the given nodes, one at a time and
+   * separated by commas and newlines, skipping nodes without document. */
+  private class NodeStatuses implements Closeable {
+
+    private final Iterator<SummaryDocument> entries;
+
+    private NodeStatusLines[] segmentLines;
+
+    private DocumentPrefetcher<NodeStatusLines> prefetcher;
+
+    private int index = 0;
+
+    private int written = 0;
+
+    private NodeStatuses(List<SummaryDocument> entries) {
+      this.entries = entries.iterator();
+      if ("summary".equals(resourceType)) {
+        return;
+      }
+      /* Look up documents in segment files, which were loaded into memory
+       * when opening them, on the writing thread, and only retrieve the
+       * next few documents that need to be read from document files
+       * concurrently while writing earlier ones, rather than waiting for
+       * one blocking read after another. */
+      this.segmentLines = new NodeStatusLines[entries.size()];
+      List<SummaryDocument> fileEntries = new ArrayList<>();
+      int position = 0;
+      for (SummaryDocument entry : entries) {
+        this.segmentLines[position] = retrieveSegmentLines(entry);
+        if (null == this.segmentLines[position++]) {
+          fileEntries.add(entry);
+        }
       }
+      this.prefetcher = new DocumentPrefetcher<NodeStatusLines>(
+          fileEntries, readAhead) {
+        @Override
+        protected NodeStatusLines retrieve(SummaryDocument entry) {
+          return retrieveFileLines(entry);
+        }
+      };
     }
-    this.write(pw, "\n]");
-    if (this.bridgesTruncated > 0) {
-      this.write(pw, ",\n\"bridges_truncated\":%d", this.bridgesTruncated);
+
+    /* Writes the document of the next node and returns true, or returns
+     * false if there are no more nodes. */
+    private boolean writeNext(ResponseWriter writer) throws IOException {
+      if (!this.entries.hasNext()) {
+        return false;
+      }
+      SummaryDocument entry = this.entries.next();
+      if (null == this.prefetcher) {
+        writer.append(this.written++ > 0 ? ",\n" : "\n");
+        byte[] summaryLine = null == summaryLines ? null
+            : summaryLines.get(entry);
+        if (null != summaryLine) {
+          writer.append(summaryLine);
+        } else {
+          writeSummaryLine(entry, writer);
+        }
+        return true;
+      }
+      NodeStatusLines lines = this.segmentLines[this.index];
+      this.segmentLines[this.index++] = null;
+      if (null == lines) {
+        lines = this.prefetcher.next();
+      }
+      if (null != lines.compressedLines) {
+        writer.append(this.written++ > 0 ? ",\n" : "\n");
+        writeCompressedLines(writer, lines.compressedLines);
+      } else if (null != lines.packedLines) {
+        writer.append(this.written++ > 0 ? ",\n" : "\n")
+            .append(lines.packedLines);
+      } else if (lines.lines.length() > 0) {
+        writer.append(this.written++ > 0 ? ",\n" : "\n")
+            .append(lines.lines);
+      }
+      return true;
+    }
+
+    @Override
+    public void close() {
+      if (null != this.prefetcher) {
+        this.prefetcher.close();
+      }
     }
-    this.write(pw, "}\n");
   }
 
-  private void write(PrintWriter pw, String format, Object ... args) {
-    String stringToWrite = String.format(format, args);
-    this.charsWritten += stringToWrite.length();
-    pw.write(stringToWrite);
+  /* Document of a single node in one of the forms in which it can be
+   * written to the response. */
+  private static class NodeStatusLines {
+
+    private ByteBuffer compressedLines;
+
+    private ByteBuffer packedLines;
+
+    private String lines;
+  }
+
+  /* Retrieves the document of the given node in its compressed or packed
+   * form from segment files, or returns null if it is not contained in
+   * segment files. */
+  private NodeStatusLines retrieveSegmentLines(SummaryDocument entry) {
+    NodeStatusLines lines = new NodeStatusLines();
+    lines.compressedLines = this.retrieveCompressedSegmentLines(entry);
+    if (null != lines.compressedLines) {
+      return lines;
+    }
+    lines.packedLines = this.retrievePackedLines(entry);
+    if (null != lines.packedLines) {
+      return lines;
+    }
+    return null;
+  }
+
+  /* Retrieves the document of the given node in its compressed or
+   * formatted form from document files, which may be called concurrently
+   * for different nodes. */
+  private NodeStatusLines retrieveFileLines(SummaryDocument entry) {
+    NodeStatusLines lines = new NodeStatusLines();
+    lines.compressedLines = this.retrieveCompressedFileLines(entry);
+    if (null != lines.compressedLines) {
+      return lines;
+    }
+    lines.lines = this.formatNodeStatus(entry);
+    return lines;
   }
 
   private String formatNodeStatus(SummaryDocument entry) {
     if (this.resourceType == null) {
       return "";
-    } else if (this.resourceType.equals("summary")) {
-      return this.writeSummaryLine(entry);
     } else if (this.resourceType.equals("details")) {
       return this.writeDetailsLines(entry);
     } else if (this.resourceType.equals("bandwidth")) {
@@ -213,175 +601,81 @@ public class ResponseBuilder {
     }
   }
 
-  private String writeSummaryLine(SummaryDocument entry) {
-    return entry.isRelay() ? writeRelaySummaryLine(entry)
-        : writeBridgeSummaryLine(entry);
+  /** Returns the line of the given relay or bridge in summary responses,
+   * which can be rendered once and then be reused for all responses. */
+  static byte[] formatSummaryLine(SummaryDocument entry) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ResponseWriter writer = new ResponseWriter(baos)) {
+      writeSummaryLine(entry, writer);
+    } catch (IOException e) {
+      /* Writing to a byte array never fails. */
+      return null;
+    }
+    return baos.toByteArray();
   }
 
-  private String writeRelaySummaryLine(SummaryDocument entry) {
-    String nickname = entry.getNickname();
-    String fingerprint = entry.getFingerprint();
-    String running = entry.isRunning() ? "true" : "false";
-    List<String> addresses = entry.getAddresses();
-    StringBuilder addressesBuilder = new StringBuilder();
+  private static void writeSummaryLine(SummaryDocument entry,
+      ResponseWriter writer) throws IOException {
+    if (entry.isRelay()) {
+      writeRelaySummaryLine(entry, writer);
+    } else {
+      writeBridgeSummaryLine(entry, writer);
+    }
+  }
+
+  private static void writeRelaySummaryLine(SummaryDocument entry,
+      ResponseWriter writer) throws IOException {
+    writer.append("{\"n\":\"").append(entry.getNickname())
+        .append("\",\"f\":\"").append(entry.getFingerprint())
+        .append("\",\"a\":[");
     int written = 0;
-    for (String address : addresses) {
-      addressesBuilder.append((written++ > 0 ? "," : "") + "\""
-          + address.toLowerCase() + "\"");
+    for (String address : entry.getAddresses()) {
+      if (written++ > 0) {
+        writer.append(',');
+      }
+      writer.append('"').append(address.toLowerCase()).append('"');
     }
-    return String.format("{\"n\":\"%s\",\"f\":\"%s\",\"a\":[%s],\"r\":%s}",
-        nickname, fingerprint, addressesBuilder.toString(), running);
+    writer.append("],\"r\":").append(entry.isRunning() ? "true" : "false")
+        .append('}');
   }
 
-  private String writeBridgeSummaryLine(SummaryDocument entry) {
-    String nickname = entry.getNickname();
-    String hashedFingerprint = entry.getFingerprint();
-    String running = entry.isRunning() ? "true" : "false";
-    return String.format("{\"n\":\"%s\",\"h\":\"%s\",\"r\":%s}",
-        nickname, hashedFingerprint, running);
+  private static void writeBridgeSummaryLine(SummaryDocument entry,
+      ResponseWriter writer) throws IOException {
+    writer.append("{\"n\":\"").append(entry.getNickname())
+        .append("\",\"h\":\"").append(entry.getFingerprint())
+        .append("\",\"r\":").append(entry.isRunning() ? "true" : "false")
+        .append('}');
   }
 
   private String writeDetailsLines(SummaryDocument entry) {
     String fingerprint = entry.getFingerprint();
-    if (this.fields != null) {
-      /* TODO Maybe there's a more elegant way (more maintainable, more
-       * efficient, etc.) to implement this? */
-      DetailsDocument detailsDocument = documentStore.retrieve(
-          DetailsDocument.class, true, fingerprint);
-      if (detailsDocument != null) {
-        DetailsDocument dd = new DetailsDocument();
-        for (String field : this.fields) {
-          if (field.equals("nickname")) {
-            dd.setNickname(detailsDocument.getNickname());
-          } else if (field.equals("fingerprint")) {
-            dd.setFingerprint(detailsDocument.getFingerprint());
-          } else if (field.equals("hashed_fingerprint")) {
-            dd.setHashedFingerprint(
-                detailsDocument.getHashedFingerprint());
-          } else if (field.equals("or_addresses")) {
-            dd.setOrAddresses(detailsDocument.getOrAddresses());
-          } else if (field.equals("exit_addresses")) {
-            dd.setExitAddresses(detailsDocument.getExitAddresses());
-          } else if (field.equals("dir_address")) {
-            dd.setDirAddress(detailsDocument.getDirAddress());
-          } else if (field.equals("last_seen")) {
-            dd.setLastSeen(detailsDocument.getLastSeen());
-          } else if (field.equals("last_changed_address_or_port")) {
-            dd.setLastChangedAddressOrPort(
-                detailsDocument.getLastChangedAddressOrPort());
-          } else if (field.equals(DetailsDocumentFields.FIRST_SEEN)) {
-            dd.setFirstSeen(detailsDocument.getFirstSeen());
-          } else if (field.equals("running")) {
-            dd.setRunning(detailsDocument.getRunning());
-          } else if (field.equals("flags")) {
-            dd.setFlags(detailsDocument.getFlags());
-          } else if (field.equals("country")) {
-            dd.setCountry(detailsDocument.getCountry());
-          } else if (field.equals("country_name")) {
-            dd.setCountryName(detailsDocument.getCountryName());
-          } else if (field.equals("region_name")) {
-            dd.setRegionName(detailsDocument.getRegionName());
-          } else if (field.equals("city_name")) {
-            dd.setCityName(detailsDocument.getCityName());
-          } else if (field.equals("latitude")) {
-            dd.setLatitude(detailsDocument.getLatitude());
-          } else if (field.equals("longitude")) {
-            dd.setLongitude(detailsDocument.getLongitude());
-          } else if (field.equals("as_number")) {
-            dd.setAsNumber(detailsDocument.getAsNumber());
-          } else if (field.equals("as_name")) {
-            dd.setAsName(detailsDocument.getAsName());
-          } else if (field.equals(DetailsDocumentFields.CONSENSUS_WEIGHT)) {
-            dd.setConsensusWeight(detailsDocument.getConsensusWeight());
-          } else if (field.equals("host_name")) {
-            dd.setHostName(detailsDocument.getHostName());
-          } else if (field.equals("verified_host_names")) {
-            dd.setVerifiedHostNames(detailsDocument.getVerifiedHostNames());
-          } else if (field.equals("unverified_host_names")) {
-            dd.setUnverifiedHostNames(detailsDocument.getUnverifiedHostNames());
-          } else if (field.equals("last_restarted")) {
-            dd.setLastRestarted(detailsDocument.getLastRestarted());
-          } else if (field.equals("bandwidth_rate")) {
-            dd.setBandwidthRate(detailsDocument.getBandwidthRate());
-          } else if (field.equals("bandwidth_burst")) {
-            dd.setBandwidthBurst(detailsDocument.getBandwidthBurst());
-          } else if (field.equals("observed_bandwidth")) {
-            dd.setObservedBandwidth(
-                detailsDocument.getObservedBandwidth());
-          } else if (field.equals("advertised_bandwidth")) {
-            dd.setAdvertisedBandwidth(
-                detailsDocument.getAdvertisedBandwidth());
-          } else if (field.equals("exit_policy")) {
-            dd.setExitPolicy(detailsDocument.getExitPolicy());
-          } else if (field.equals("exit_policy_summary")) {
-            dd.setExitPolicySummary(
-                detailsDocument.getExitPolicySummary());
-          } else if (field.equals("exit_policy_v6_summary")) {
-            dd.setExitPolicyV6Summary(
-                detailsDocument.getExitPolicyV6Summary());
-          } else if (field.equals("contact")) {
-            dd.setContact(detailsDocument.getContact());
-          } else if (field.equals("platform")) {
-            dd.setPlatform(detailsDocument.getPlatform());
-          } else if (field.equals("consensus_weight_fraction")) {
-            dd.setConsensusWeightFraction(
-                detailsDocument.getConsensusWeightFraction());
-          } else if (field.equals("guard_probability")) {
-            dd.setGuardProbability(detailsDocument.getGuardProbability());
-          } else if (field.equals("middle_probability")) {
-            dd.setMiddleProbability(
-                detailsDocument.getMiddleProbability());
-          } else if (field.equals("exit_probability")) {
-            dd.setExitProbability(detailsDocument.getExitProbability());
-          } else if (field.equals("recommended_version")) {
-            dd.setRecommendedVersion(
-                detailsDocument.getRecommendedVersion());
-          } else if (field.equals("hibernating")) {
-            dd.setHibernating(detailsDocument.getHibernating());
-          } else if (field.equals("transports")) {
-            dd.setTransports(detailsDocument.getTransports());
-          } else if (field.equals("effective_family")) {
-            dd.setEffectiveFamily(detailsDocument.getEffectiveFamily());
-          } else if (field.equals("measured")) {
-            dd.setMeasured(detailsDocument.getMeasured());
-          } else if (field.equals("alleged_family")) {
-            dd.setAllegedFamily(detailsDocument.getAllegedFamily());
-          } else if (field.equals("indirect_family")) {
-            dd.setIndirectFamily(detailsDocument.getIndirectFamily());
-          } else if (field.equals("unreachable_or_addresses")) {
-            dd.setUnreachableOrAddresses(
-                detailsDocument.getUnreachableOrAddresses());
-          } else if (field.equals("version")) {
-            dd.setVersion(detailsDocument.getVersion());
-          } else if (field.equals("version_status")) {
-            dd.setVersionStatus(detailsDocument.getVersionStatus());
-          }
-        }
-        /* Whenever we provide Jackson with a string containing an escaped
-         * non-ASCII character like \u00F2, it escapes the \ to \\, which
-         * we need to undo before including the string in a response. */
-        try {
-          return FormattingUtils.replaceValidUtf(
-              objectMapper.writeValueAsString(dd));
-        } catch (JsonProcessingException e) {
-          return "";
-        }
-      } else {
-        // TODO We should probably log that we didn't find a details
-        // document that we expected to exist.
-        return "";
-      }
+    String documentString = null;
+    ByteBuffer packedLines = this.fieldProjection == null ? null
+        : this.documentStore.retrievePacked(this.documentSegments,
+        DetailsDocument.class, fingerprint, false);
+    if (packedLines != null) {
+      documentString = StandardCharsets.US_ASCII.decode(packedLines)
+          .toString();
     } else {
       DetailsDocument detailsDocument = documentStore.retrieve(
           DetailsDocument.class, false, fingerprint);
       if (detailsDocument != null) {
-        return detailsDocument.getDocumentString();
-      } else {
-        // TODO We should probably log that we didn't find a details
-        // document that we expected to exist.
-        return "";
+        documentString = detailsDocument.getDocumentString();
       }
     }
+    if (documentString == null) {
+      // TODO We should probably log that we didn't find a details
+      // document that we expected to exist.
+      return "";
+    } else if (this.fieldProjection != null) {
+      /* Copy only the requested fields from the stored details document
+       * rather than parsing it and serializing the requested fields. */
+      String projectedDocument = this.fieldProjection.project(
+          documentString);
+      return projectedDocument == null ? "" : projectedDocument;
+    } else {
+      return documentString;
+    }
   }
 
   private String writeBandwidthLines(SummaryDocument entry) {
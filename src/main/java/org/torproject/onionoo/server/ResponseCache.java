@@ -0,0 +1,166 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Cache of complete responses built from the latest node index, keyed
+ * by a canonical form of request parameters.
+ *
+ * <p>Responses only change when a new node index replaces the current
+ * one, so that all cached responses are discarded as soon as a response
+ * built from a newer node index is put into the cache.  Entries are
+ * evicted in least-recently-used order as soon as the total size of
+ * cached responses exceeds the configured number of bytes.</p> */
+class ResponseCache {
+
+  /** Cached response body, either uncompressed or gzip-compressed,
+   * together with the numbers of relay and bridge documents and of
+   * uncompressed bytes it contains, which are needed for request
+   * statistics. */
+  static class Entry {
+
+    private final byte[] response;
+
+    private final int relayDocumentsWritten;
+
+    private final int bridgeDocumentsWritten;
+
+    private final long bytesWritten;
+
+    Entry(byte[] response, int relayDocumentsWritten,
+        int bridgeDocumentsWritten, long bytesWritten) {
+      this.response = response;
+      this.relayDocumentsWritten = relayDocumentsWritten;
+      this.bridgeDocumentsWritten = bridgeDocumentsWritten;
+      this.bytesWritten = bytesWritten;
+    }
+
+    byte[] getResponse() {
+      return this.response;
+    }
+
+    int getRelayDocumentsWritten() {
+      return this.relayDocumentsWritten;
+    }
+
+    int getBridgeDocumentsWritten() {
+      return this.bridgeDocumentsWritten;
+    }
+
+    long getBytesWritten() {
+      return this.bytesWritten;
+    }
+  }
+
+  private final long maxBytes;
+
+  private long cachedBytes = 0L;
+
+  private long generation = -1L;
+
+  private final Map<String, Entry> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  ResponseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the largest response in bytes that may be cached at all,
+   * which is a quarter of the configured size, so that a single response
+   * cannot evict most other responses. */
+  int getMaxResponseBytes() {
+    return (int) Math.min(Integer.MAX_VALUE, this.maxBytes / 4L);
+  }
+
+  /** Returns the cached response for the given canonical request built
+   * from the node index with the given generation, or <code>null</code>
+   * if there is no such response in the cache. */
+  synchronized Entry get(long generation, String key) {
+    if (generation != this.generation) {
+      return null;
+    }
+    return this.entries.get(key);
+  }
+
+  /** Puts the given response for the given canonical request built from
+   * the node index with the given generation into the cache, unless the
+   * cache already contains responses built from a newer node index. */
+  synchronized void put(long generation, String key, Entry entry) {
+    if (generation < this.generation
+        || entry.getResponse().length > this.getMaxResponseBytes()) {
+      return;
+    } else if (generation > this.generation) {
+      this.entries.clear();
+      this.cachedBytes = 0L;
+      this.generation = generation;
+    }
+    Entry previousEntry = this.entries.put(key, entry);
+    if (null != previousEntry) {
+      this.cachedBytes -= previousEntry.getResponse().length;
+    }
+    this.cachedBytes += entry.getResponse().length;
+    Iterator<Entry> iterator = this.entries.values().iterator();
+    while (this.cachedBytes > this.maxBytes && iterator.hasNext()) {
+      this.cachedBytes -= iterator.next().getResponse().length;
+      iterator.remove();
+    }
+  }
+
+  /** Output stream that passes all bytes on to another output stream and
+   * keeps a copy of them for putting the response into the cache
+   * afterwards, as long as the response does not exceed the given
+   * number of bytes. */
+  static class CapturingOutputStream extends OutputStream {
+
+    private final OutputStream outputStream;
+
+    private final int maxBytes;
+
+    private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+    CapturingOutputStream(OutputStream outputStream, int maxBytes) {
+      this.outputStream = outputStream;
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+      this.write(new byte[] { (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      this.outputStream.write(bytes, off, len);
+      if (null != this.captured) {
+        if (this.captured.size() + len > this.maxBytes) {
+          this.captured = null;
+        } else {
+          this.captured.write(bytes, off, len);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      this.outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.outputStream.close();
+    }
+
+    /** Returns all written bytes, or <code>null</code> if there were too
+     * many of them to keep a copy. */
+    byte[] getCaptured() {
+      return null == this.captured ? null : this.captured.toByteArray();
+    }
+  }
+}
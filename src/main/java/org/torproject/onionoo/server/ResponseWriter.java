@@ -0,0 +1,175 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** Writer of response bytes to an output stream that encodes strings and
+ * numbers as UTF-8 directly into a reusable buffer, without creating
+ * intermediate strings or byte arrays, and that counts written bytes. */
+class ResponseWriter implements Closeable {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final OutputStream outputStream;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  private int position = 0;
+
+  private long bytesWritten = 0L;
+
+  ResponseWriter(OutputStream outputStream) {
+    this.outputStream = outputStream;
+  }
+
+  /** Returns the number of bytes written so far, including those that
+   * are still buffered. */
+  long getBytesWritten() {
+    return this.bytesWritten;
+  }
+
+  /** Appends the given string encoded as UTF-8. */
+  ResponseWriter append(String string) throws IOException {
+    int length = string.length();
+    for (int i = 0; i < length; i++) {
+      char character = string.charAt(i);
+      if (character < 0x80) {
+        if (this.position == BUFFER_SIZE) {
+          this.flushBuffer();
+        }
+        this.buffer[this.position++] = (byte) character;
+        this.bytesWritten++;
+      } else if (Character.isHighSurrogate(character) && i + 1 < length
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        this.appendCodePoint(Character.toCodePoint(character,
+            string.charAt(++i)));
+      } else if (Character.isSurrogate(character)) {
+        /* Unpaired surrogates cannot be encoded, which is also how
+         * String.getBytes() handles them. */
+        this.appendCodePoint('?');
+      } else {
+        this.appendCodePoint(character);
+      }
+    }
+    return this;
+  }
+
+  /** Appends the given ASCII character. */
+  ResponseWriter append(char character) throws IOException {
+    if (character >= 0x80) {
+      return this.append(String.valueOf(character));
+    }
+    if (this.position == BUFFER_SIZE) {
+      this.flushBuffer();
+    }
+    this.buffer[this.position++] = (byte) character;
+    this.bytesWritten++;
+    return this;
+  }
+
+  /** Appends the decimal representation of the given number. */
+  ResponseWriter append(long number) throws IOException {
+    if (number == Long.MIN_VALUE) {
+      return this.append(Long.toString(number));
+    } else if (number < 0L) {
+      this.append('-');
+      number = -number;
+    }
+    int digits = 1;
+    for (long rest = number / 10L; rest > 0L; rest /= 10L) {
+      digits++;
+    }
+    if (this.position + digits > BUFFER_SIZE) {
+      this.flushBuffer();
+    }
+    for (int i = this.position + digits - 1; i >= this.position; i--) {
+      this.buffer[i] = (byte) ('0' + number % 10L);
+      number /= 10L;
+    }
+    this.position += digits;
+    this.bytesWritten += digits;
+    return this;
+  }
+
+  /** Appends the given bytes as they are. */
+  ResponseWriter append(byte[] bytes) throws IOException {
+    if (this.position + bytes.length > BUFFER_SIZE) {
+      this.flushBuffer();
+    }
+    if (bytes.length > BUFFER_SIZE) {
+      this.outputStream.write(bytes);
+    } else {
+      System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+      this.position += bytes.length;
+    }
+    this.bytesWritten += bytes.length;
+    return this;
+  }
+
+  /** Appends the remaining bytes of the given buffer as they are, without
+   * changing its position. */
+  ResponseWriter append(ByteBuffer bytes) throws IOException {
+    ByteBuffer remaining = bytes.duplicate();
+    while (remaining.hasRemaining()) {
+      if (this.position == BUFFER_SIZE) {
+        this.flushBuffer();
+      }
+      int length = Math.min(remaining.remaining(),
+          BUFFER_SIZE - this.position);
+      remaining.get(this.buffer, this.position, length);
+      this.position += length;
+      this.bytesWritten += length;
+    }
+    return this;
+  }
+
+  private void appendCodePoint(int codePoint) throws IOException {
+    if (this.position + 4 > BUFFER_SIZE) {
+      this.flushBuffer();
+    }
+    int start = this.position;
+    if (codePoint < 0x80) {
+      this.buffer[this.position++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      this.buffer[this.position++] = (byte) (0xc0 | (codePoint >> 6));
+      this.buffer[this.position++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      this.buffer[this.position++] = (byte) (0xe0 | (codePoint >> 12));
+      this.buffer[this.position++] =
+          (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      this.buffer[this.position++] = (byte) (0x80 | (codePoint & 0x3f));
+    } else {
+      this.buffer[this.position++] = (byte) (0xf0 | (codePoint >> 18));
+      this.buffer[this.position++] =
+          (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+      this.buffer[this.position++] =
+          (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      this.buffer[this.position++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+    this.bytesWritten += this.position - start;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (this.position > 0) {
+      this.outputStream.write(this.buffer, 0, this.position);
+      this.position = 0;
+    }
+  }
+
+  /** Writes all buffered bytes to the output stream and flushes it. */
+  void flush() throws IOException {
+    this.flushBuffer();
+    this.outputStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.flushBuffer();
+    this.outputStream.close();
+  }
+}
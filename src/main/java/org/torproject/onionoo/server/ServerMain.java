@@ -5,23 +5,41 @@ package org.torproject.onionoo.server;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.eclipse.jetty.xml.XmlConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class ServerMain {
 
   private static final Logger log = LoggerFactory.getLogger(
       ServerMain.class);
 
-  /** Starts the web server listening for incoming client connections. */
+  /** Starts the web server listening for incoming client connections,
+   * handling requests on virtual threads rather than on the thread pool
+   * configured in jetty.xml if the system property
+   * <code>onionoo.virtualthreads</code> is set to <code>true</code>. */
   public static void main(String[] args) {
     try {
       Resource onionooXml = Resource.newSystemResource("jetty.xml");
       log.info("Reading configuration from '" + onionooXml + "'.");
       XmlConfiguration configuration = new XmlConfiguration(
           onionooXml.getInputStream());
-      Server server = (Server) configuration.configure();
+      ThreadPool virtualThreadPool =
+          Boolean.getBoolean("onionoo.virtualthreads")
+          ? createVirtualThreadPool() : null;
+      Server server;
+      if (null != virtualThreadPool) {
+        log.info("Handling requests on virtual threads.");
+        server = new Server(virtualThreadPool);
+        configuration.configure(server);
+      } else {
+        server = (Server) configuration.configure();
+      }
       server.start();
       server.join();
     } catch (Exception ex) {
@@ -29,5 +47,21 @@ public class ServerMain {
       System.exit(1);
     }
   }
-}
 
+  /** Returns a thread pool that starts a new virtual thread for each
+   * task, or <code>null</code> if the Java runtime does not support
+   * virtual threads. */
+  static ThreadPool createVirtualThreadPool() {
+    try {
+      /* Look up the executor at runtime, because virtual threads are not
+       * available in the Java version we compile against. */
+      ExecutorService executorService = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      return new ExecutorThreadPool(executorService);
+    } catch (ReflectiveOperationException e) {
+      log.warn("Virtual threads are not supported by this Java runtime.  "
+          + "Using the configured thread pool instead.");
+      return null;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Helper for indexing nodes by all substrings of three characters of a
+ * string, which is used to look up nodes by arbitrary substrings of that
+ * string without checking every node. */
+class Trigrams {
+
+  private Trigrams() {
+  }
+
+  /** Returns the set of distinct substrings of three characters contained
+   * in the given string, which is empty for strings shorter than three
+   * characters. */
+  static Set<String> split(String string) {
+    Set<String> trigrams = new HashSet<>();
+    for (int i = 0; i + 3 <= string.length(); i++) {
+      trigrams.add(string.substring(i, i + 3));
+    }
+    return trigrams;
+  }
+
+  /** Returns a new bit set of nodes with indexed strings containing all
+   * trigrams of the given substring, or <code>null</code> if the
+   * substring is too short to contain any trigram.
+   *
+   * <p>The result contains all nodes with indexed strings containing the
+   * given substring, but it may also contain nodes with indexed strings
+   * containing its trigrams in another order, so that the caller needs to
+   * verify them.</p> */
+  static BitSet lookup(Map<String, BitSet> nodesByTrigram,
+      String substring) {
+    BitSet candidates = null;
+    for (String trigram : split(substring)) {
+      BitSet nodeIds = nodesByTrigram.get(trigram);
+      if (null == nodeIds) {
+        return new BitSet();
+      } else if (null == candidates) {
+        candidates = (BitSet) nodeIds.clone();
+      } else {
+        candidates.and(nodeIds);
+      }
+    }
+    return candidates;
+  }
+}
@@ -0,0 +1,97 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Projection of JSON objects to a given set of top-level fields, which
+ * streams over the tokens of a JSON object and copies the requested
+ * fields verbatim, without parsing the object into a document and
+ * serializing it again.
+ *
+ * <p>Fields are copied in the order in which they appear in the JSON
+ * object, not in the order in which they were requested.</p> */
+public class FieldProjection {
+
+  private static Logger log = LoggerFactory.getLogger(
+      FieldProjection.class);
+
+  private static JsonFactory jsonFactory = new JsonFactory();
+
+  private final Set<String> fields;
+
+  private final String name;
+
+  /** Initializes a projection to the given top-level fields. */
+  public FieldProjection(String[] fields) {
+    this.fields = new HashSet<>(Arrays.asList(fields));
+    StringBuilder sb = new StringBuilder();
+    for (String field : new TreeSet<>(this.fields)) {
+      sb.append(sb.length() > 0 ? "," : "").append(field);
+    }
+    this.name = sb.toString();
+  }
+
+  /** Returns the sorted, comma-separated list of distinct fields, which
+   * is the same for all projections with the same result. */
+  public String getName() {
+    return this.name;
+  }
+
+  /** Returns a JSON object containing only those top-level fields of the
+   * given JSON object that are contained in this projection, or
+   * <code>null</code> if the given string is not a valid JSON
+   * object. */
+  public String project(String document) {
+    StringBuilder sb = new StringBuilder("{");
+    try (JsonParser parser = jsonFactory.createParser(document)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      JsonToken token = parser.nextToken();
+      while (token == JsonToken.FIELD_NAME) {
+        boolean included = this.fields.contains(parser.getCurrentName());
+        int start = (int) parser.getTokenLocation().getCharOffset();
+        parser.nextToken();
+        parser.skipChildren();
+        token = parser.nextToken();
+        if (token != JsonToken.FIELD_NAME
+            && token != JsonToken.END_OBJECT) {
+          return null;
+        }
+        if (included) {
+          /* The value ends where the next token starts, except for any
+           * whitespace and the comma in between. */
+          int end = (int) parser.getTokenLocation().getCharOffset();
+          while (end > start && (document.charAt(end - 1) == ','
+              || Character.isWhitespace(document.charAt(end - 1)))) {
+            end--;
+          }
+          if (sb.length() > 1) {
+            sb.append(',');
+          }
+          sb.append(document, start, end);
+        }
+      }
+      if (token != JsonToken.END_OBJECT) {
+        return null;
+      }
+    } catch (IOException e) {
+      log.debug("Couldn't project input '{}'.", document, e);
+      return null;
+    }
+    return sb.append('}').toString();
+  }
+}
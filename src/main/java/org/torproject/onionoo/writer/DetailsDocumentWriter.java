@@ -8,6 +8,7 @@ import org.torproject.onionoo.docs.DetailsStatus;
 import org.torproject.onionoo.docs.DocumentStore;
 import org.torproject.onionoo.docs.DocumentStoreFactory;
 import org.torproject.onionoo.docs.UpdateStatus;
+import org.torproject.onionoo.util.FieldProjection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 public class DetailsDocumentWriter implements DocumentWriter {
 
@@ -27,8 +29,40 @@ public class DetailsDocumentWriter implements DocumentWriter {
 
   private DocumentStore documentStore;
 
+  /** Initializes the document store and configures which field sets of
+   * details documents to materialize, if any. */
   public DetailsDocumentWriter() {
     this.documentStore = DocumentStoreFactory.getDocumentStore();
+    this.documentStore.setMaterializedFieldProjections(
+        parseMaterializedFields(System.getProperty(
+        "onionoo.materializedfields")));
+  }
+
+  private static final Pattern fieldsPattern =
+      Pattern.compile("^[0-9a-zA-Z_]+(,[0-9a-zA-Z_]+)*$");
+
+  /* Parses field sets separated by semicolons, like
+   * "fingerprint,nickname,or_addresses,flags;fingerprint,consensus_weight,
+   * exit_probability", which are best picked from the most frequently
+   * requested details field sets in the server's request statistics. */
+  static List<FieldProjection> parseMaterializedFields(
+      String materializedFields) {
+    List<FieldProjection> fieldProjections = new ArrayList<>();
+    if (null == materializedFields) {
+      return fieldProjections;
+    }
+    for (String fields : materializedFields.split(";")) {
+      fields = fields.trim();
+      if (fields.isEmpty()) {
+        continue;
+      } else if (!fieldsPattern.matcher(fields).matches()) {
+        log.warn("Ignoring invalid field set '{}' to materialize.", fields);
+        continue;
+      }
+      fieldProjections.add(new FieldProjection(
+          fields.toLowerCase().split(",")));
+    }
+    return fieldProjections;
   }
 
   @Override
@@ -0,0 +1,133 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class DocumentSegmentTest {
+
+  private static final String FINGERPRINT_A =
+      "000C5F55BD4814B917CC474BD537F1A3B33CCE2A";
+
+  private static final String FINGERPRINT_B =
+      "5EDA26A7F5F7D4FE4AA2E2D51FCF63DDD8ED0A55";
+
+  private static final String FINGERPRINT_C =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static byte[] bytes(String document) {
+    return document.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String toString(ByteBuffer document) {
+    byte[] bytes = new byte[document.remaining()];
+    document.get(bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void testWriteAndOpen() throws IOException {
+    File segmentFile = new File(this.tempFolder.getRoot(), "details.seg");
+    try (DocumentSegment.Writer writer = new DocumentSegment.Writer(
+        segmentFile, 3)) {
+      writer.append(FINGERPRINT_A, bytes("{\"nickname\":\"TorkaZ\"}"));
+      writer.append(FINGERPRINT_B, bytes(""));
+      writer.append(FINGERPRINT_C, bytes("{\"fingerprint\":\""
+          + FINGERPRINT_C + "\"}"));
+    }
+    DocumentSegment segment = DocumentSegment.open(segmentFile);
+    assertEquals(3, segment.getDocuments());
+    assertEquals("{\"nickname\":\"TorkaZ\"}",
+        toString(segment.get(FINGERPRINT_A)));
+    assertEquals(0, segment.get(FINGERPRINT_B).remaining());
+    assertEquals("{\"fingerprint\":\"" + FINGERPRINT_C + "\"}",
+        toString(segment.get(FINGERPRINT_C)));
+    assertTrue(segment.get(FINGERPRINT_A).isReadOnly());
+    assertNull(segment.get("0000000000000000000000000000000000000000"));
+    assertNull(segment.get("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF"));
+    assertNull(segment.get(FINGERPRINT_A.substring(1)));
+  }
+
+  @Test
+  public void testWriteAndOpenEmpty() throws IOException {
+    File segmentFile = new File(this.tempFolder.getRoot(), "uptimes.seg");
+    new DocumentSegment.Writer(segmentFile, 0).close();
+    DocumentSegment segment = DocumentSegment.open(segmentFile);
+    assertEquals(0, segment.getDocuments());
+    assertNull(segment.get(FINGERPRINT_A));
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteUnordered() throws IOException {
+    File segmentFile = new File(this.tempFolder.getRoot(), "details.seg");
+    try (DocumentSegment.Writer writer = new DocumentSegment.Writer(
+        segmentFile, 2)) {
+      writer.append(FINGERPRINT_B, bytes("{}"));
+      writer.append(FINGERPRINT_A, bytes("{}"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteTooFew() throws IOException {
+    File segmentFile = new File(this.tempFolder.getRoot(), "details.seg");
+    try (DocumentSegment.Writer writer = new DocumentSegment.Writer(
+        segmentFile, 2)) {
+      writer.append(FINGERPRINT_A, bytes("{}"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenUnknownFormat() throws IOException {
+    File segmentFile = this.tempFolder.newFile(FINGERPRINT_A);
+    Files.write(segmentFile.toPath(), bytes("{\"nickname\":\"TorkaZ\"}"));
+    DocumentSegment.open(segmentFile);
+  }
+
+  @Test
+  public void testWriteAndOpenChunks() throws IOException {
+    File segmentFile = new File(this.tempFolder.getRoot(), "details.seg");
+    char[] padding = new char[58];
+    Arrays.fill(padding, ' ');
+    String document = "{" + new String(padding) + "}";
+    try (DocumentSegment.Writer writer = new DocumentSegment.Writer(
+        segmentFile, 3, 256)) {
+      writer.append(FINGERPRINT_A, bytes(document));
+      writer.append(FINGERPRINT_B, bytes(document));
+      writer.append(FINGERPRINT_C, bytes(document));
+    }
+    /* The second document would span the first two chunks, so it starts
+     * at the beginning of the second chunk. */
+    assertEquals(256L + 2L * document.length(), segmentFile.length());
+    DocumentSegment segment = DocumentSegment.open(segmentFile);
+    assertEquals(3, segment.getDocuments());
+    assertEquals(document, toString(segment.get(FINGERPRINT_A)));
+    assertEquals(document, toString(segment.get(FINGERPRINT_B)));
+    assertEquals(document, toString(segment.get(FINGERPRINT_C)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteLargerThanChunk() throws IOException {
+    File segmentFile = new File(this.tempFolder.getRoot(), "details.seg");
+    try (DocumentSegment.Writer writer = new DocumentSegment.Writer(
+        segmentFile, 1, 256)) {
+      writer.append(FINGERPRINT_A, new byte[257]);
+    }
+  }
+}
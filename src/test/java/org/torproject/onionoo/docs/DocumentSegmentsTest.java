@@ -0,0 +1,175 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class DocumentSegmentsTest {
+
+  private static final String FINGERPRINT_A =
+      "000C5F55BD4814B917CC474BD537F1A3B33CCE2A";
+
+  private static final String FINGERPRINT_C =
+      "F2044413DAC2E02E3D6BCF4735A19BCA1DE97281";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File outDir;
+
+  private DocumentStore documentStore;
+
+  @Before
+  public void createDocumentStore() throws IOException {
+    this.outDir = this.tempFolder.newFolder("out");
+    this.documentStore = new DocumentStore();
+    this.documentStore.setOutDir(this.outDir);
+  }
+
+  private void storeDetails(String fingerprint, String documentString) {
+    DetailsDocument detailsDocument = new DetailsDocument();
+    detailsDocument.setDocumentString(documentString);
+    this.documentStore.store(detailsDocument, fingerprint);
+  }
+
+  private long flush() {
+    /* Only flush if summary documents are cached, which they are during
+     * an update. */
+    this.documentStore.list(SummaryDocument.class);
+    this.documentStore.flushDocumentCache();
+    UpdateStatus updateStatus = this.documentStore.retrieve(
+        UpdateStatus.class, true);
+    this.documentStore.invalidateDocumentCache();
+    return updateStatus.getUpdatedMillis();
+  }
+
+  private void setDocumentsLastModified(long lastModifiedMillis)
+      throws IOException {
+    for (File documentFile : new File(this.outDir, "details")
+        .listFiles()) {
+      Files.setLastModifiedTime(documentFile.toPath(),
+          FileTime.fromMillis(lastModifiedMillis));
+    }
+  }
+
+  private static String toString(ByteBuffer document) {
+    return null == document ? null
+        : StandardCharsets.US_ASCII.decode(document).toString();
+  }
+
+  @Test
+  public void testWriteReadManifest() throws IOException {
+    File manifestFile = DocumentSegments.getManifestFile(this.outDir, 42L);
+    SortedMap<String, String> fileNames = new TreeMap<>();
+    fileNames.put("details.0", "details.0.42.seg");
+    fileNames.put("details.0.fingerprint,nickname",
+        "details.0.fingerprint,nickname.42.seg");
+    DocumentSegments.writeManifest(manifestFile, fileNames);
+    assertEquals("segments.42", manifestFile.getName());
+    assertEquals(fileNames, DocumentSegments.readManifest(manifestFile));
+    assertEquals(42L,
+        DocumentSegments.getManifestGeneration(manifestFile.getName()));
+    assertEquals(-1L, DocumentSegments.getManifestGeneration("summary"));
+  }
+
+  @Test
+  public void testListObsoleteFiles() throws IOException {
+    for (long generation = 1L; generation <= 4L; generation++) {
+      SortedMap<String, String> fileNames = new TreeMap<>();
+      fileNames.put("details.0", "details.0." + generation + ".seg");
+      DocumentSegments.writeManifest(DocumentSegments.getManifestFile(
+          this.outDir, generation), fileNames);
+    }
+    List<String> obsoleteFiles = DocumentSegments.listObsoleteFiles(
+        this.outDir, Arrays.asList("segments.1", "segments.2",
+        "segments.3", "segments.4", "details.0.1.seg", "details.0.2.seg",
+        "details.0.3.seg", "details.0.4.seg", "details.seg", "summary",
+        "update"), 3);
+    assertEquals(Arrays.asList("segments.1", "details.0.1.seg",
+        "details.seg"), obsoleteFiles);
+  }
+
+  @Test
+  public void testOpenMissingManifest() {
+    DocumentSegments segments = this.documentStore.openSegments(42L);
+    assertNull(this.documentStore.retrievePacked(segments,
+        DetailsDocument.class, FINGERPRINT_A, false));
+  }
+
+  @Test
+  public void testRewriteChangedSegmentsOnly() throws Exception {
+    this.storeDetails(FINGERPRINT_A, "{\"nickname\":\"A1\"}");
+    this.storeDetails(FINGERPRINT_C, "{\"nickname\":\"C1\"}");
+    this.setDocumentsLastModified(System.currentTimeMillis() - 60000L);
+    long firstGeneration = this.flush();
+    DocumentSegments firstSegments = this.documentStore.openSegments(
+        firstGeneration);
+    assertEquals("{\"nickname\":\"A1\"}", toString(
+        this.documentStore.retrievePacked(firstSegments,
+        DetailsDocument.class, FINGERPRINT_A, false)));
+    Thread.sleep(5L);
+    this.storeDetails(FINGERPRINT_A, "{\"nickname\":\"A2\"}");
+    long secondGeneration = this.flush();
+    assertNotEquals(firstGeneration, secondGeneration);
+    DocumentSegments secondSegments = this.documentStore.openSegments(
+        secondGeneration);
+    assertEquals("{\"nickname\":\"A2\"}", toString(
+        this.documentStore.retrievePacked(secondSegments,
+        DetailsDocument.class, FINGERPRINT_A, false)));
+    assertEquals("{\"nickname\":\"C1\"}", toString(
+        this.documentStore.retrievePacked(secondSegments,
+        DetailsDocument.class, FINGERPRINT_C, false)));
+    assertNotEquals(firstSegments.getFileName("details.0"),
+        secondSegments.getFileName("details.0"));
+    assertEquals(firstSegments.getFileName("details.F"),
+        secondSegments.getFileName("details.F"));
+    /* Segments opened for the first update still contain the documents
+     * as of that update. */
+    assertEquals("{\"nickname\":\"A1\"}", toString(
+        this.documentStore.retrievePacked(firstSegments,
+        DetailsDocument.class, FINGERPRINT_A, false)));
+    assertTrue(new File(this.outDir,
+        firstSegments.getFileName("details.0")).exists());
+    assertNotNull(secondSegments.get("details.F"));
+  }
+
+  @Test
+  public void testDeleteObsoleteSegments() throws Exception {
+    this.storeDetails(FINGERPRINT_A, "{\"nickname\":\"A0\"}");
+    DocumentSegments firstSegments = this.documentStore.openSegments(
+        this.flush());
+    for (int i = 1; i <= 3; i++) {
+      Thread.sleep(5L);
+      this.storeDetails(FINGERPRINT_A, "{\"nickname\":\"A" + i + "\"}");
+      this.flush();
+    }
+    assertFalse(new File(this.outDir,
+        firstSegments.getFileName("details.0")).exists());
+    /* Segment files that are still mapped remain readable. */
+    assertEquals("{\"nickname\":\"A0\"}", toString(
+        this.documentStore.retrievePacked(firstSegments,
+        DetailsDocument.class, FINGERPRINT_A, false)));
+  }
+}
@@ -3,12 +3,16 @@
 
 package org.torproject.onionoo.docs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
 
 public class DummyDocumentStore extends DocumentStore {
 
@@ -106,6 +110,25 @@ public class DummyDocumentStore extends DocumentStore {
         .get(fingerprint == null ? FINGERPRINT_NULL : fingerprint));
   }
 
+  @Override
+  public <T extends Document> byte[] retrieveCompressed(
+      Class<T> documentType, String fingerprint) {
+    this.performedRetrieveOperations++;
+    Document document = this.getStoredDocumentsByClass(documentType)
+        .get(fingerprint);
+    if (null == document || null == document.getDocumentString()) {
+      return null;
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzos = new GZIPOutputStream(baos)) {
+      gzos.write(document.getDocumentString().getBytes(
+          StandardCharsets.US_ASCII));
+    } catch (IOException e) {
+      return null;
+    }
+    return baos.toByteArray();
+  }
+
   private int performedStoreOperations = 0;
 
   public int getPerformedStoreOperations() {
@@ -0,0 +1,160 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+public class SummarySnapshotTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static SummaryDocument createRelayTorkaZ() {
+    return new SummaryDocument(true, "TorkaZ",
+        "000C5F55BD4814B917CC474BD537F1A3B33CCE2A", Arrays.asList(
+        "62.216.201.221", "62.216.201.222"),
+        DateTimeHelper.parse("2013-04-19 05:00:00"), true,
+        new TreeSet<>(Arrays.asList("Running", "Valid")), 20L, "de",
+        DateTimeHelper.parse("2013-04-18 05:00:00"), "AS8767",
+        "torkaz <klaus dot zufall at gmx dot de>", null,
+        new TreeSet<>(Arrays.asList(
+        "001C13B3A55A71B977CA65EC85539D79C653A3FC")), "0.2.3.25",
+        "ip-62-216-201-221.example.com",
+        Arrays.asList("ip-62-216-201-221.example.com"), null, true);
+  }
+
+  private static SummaryDocument createBridgeGummy() {
+    return new SummaryDocument(false, "Unnamed",
+        "1FEDE50ED8DBA1DD9F9165F78C8131E4A44AB756", Arrays.asList(
+        "10.153.163.200"), DateTimeHelper.parse("2013-04-21 18:07:03"),
+        false, new TreeSet<String>(), -1L, null,
+        DateTimeHelper.parse("2013-04-20 15:37:04"), null, null, null,
+        null, null, null, null, null, null);
+  }
+
+  private static SummaryDocument withLineDigest(
+      SummaryDocument summaryDocument, String line) {
+    summaryDocument.setLineDigest(SummaryDocument.computeLineDigest(line));
+    return summaryDocument;
+  }
+
+  private File writeSummaryFile(String content) throws IOException {
+    File summaryFile = new File(this.tempFolder.getRoot(), "summary");
+    Files.write(summaryFile.toPath(),
+        content.getBytes(StandardCharsets.US_ASCII));
+    return summaryFile;
+  }
+
+  @Test
+  public void testWriteRead() throws IOException {
+    File summaryFile = this.writeSummaryFile("relay\nbridge\n");
+    File snapshotFile = this.tempFolder.newFile();
+    SummarySnapshot.write(snapshotFile, summaryFile,
+        Arrays.asList(withLineDigest(createRelayTorkaZ(), "relay"),
+        createBridgeGummy()));
+    List<SummaryDocument> summaryDocuments = SummarySnapshot.read(
+        snapshotFile, summaryFile);
+    assertEquals(2, summaryDocuments.size());
+    SummaryDocument relay = summaryDocuments.get(0);
+    SummaryDocument expectedRelay = createRelayTorkaZ();
+    assertTrue(relay.isRelay());
+    assertTrue(relay.isRunning());
+    assertEquals(expectedRelay.getFingerprint(), relay.getFingerprint());
+    assertEquals("TorkaZ", relay.getNickname());
+    assertEquals(expectedRelay.getAddresses(), relay.getAddresses());
+    assertEquals(expectedRelay.getFirstSeenMillis(),
+        relay.getFirstSeenMillis());
+    assertEquals(expectedRelay.getLastSeenMillis(),
+        relay.getLastSeenMillis());
+    assertEquals(expectedRelay.getRelayFlags(), relay.getRelayFlags());
+    assertEquals(20L, relay.getConsensusWeight());
+    assertEquals("de", relay.getCountryCode());
+    assertEquals("AS8767", relay.getAsNumber());
+    assertEquals(expectedRelay.getContact(), relay.getContact());
+    assertTrue(relay.getFamilyFingerprints().isEmpty());
+    assertEquals(expectedRelay.getEffectiveFamily(),
+        relay.getEffectiveFamily());
+    assertEquals("0.2.3.25", relay.getVersion());
+    assertEquals(expectedRelay.getHostName(), relay.getHostName());
+    assertEquals(expectedRelay.getVerifiedHostNames(),
+        relay.getVerifiedHostNames());
+    assertNull(relay.getUnverifiedHostNames());
+    assertEquals(Boolean.TRUE, relay.getRecommendedVersion());
+    assertEquals(Long.valueOf(SummaryDocument.computeLineDigest("relay")),
+        relay.getLineDigest());
+    SummaryDocument bridge = summaryDocuments.get(1);
+    assertFalse(bridge.isRelay());
+    assertFalse(bridge.isRunning());
+    assertEquals("Unnamed", bridge.getNickname());
+    assertNull(bridge.getCountryCode());
+    assertNull(bridge.getContact());
+    assertNull(bridge.getRecommendedVersion());
+    assertNull(bridge.getLineDigest());
+  }
+
+  @Test
+  public void testReadNotExisting() throws IOException {
+    File summaryFile = this.writeSummaryFile("");
+    assertNull(SummarySnapshot.read(new File(this.tempFolder.getRoot(),
+        "summary.snapshot"), summaryFile));
+  }
+
+  @Test
+  public void testReadOtherSummaryFile() throws IOException {
+    File summaryFile = this.writeSummaryFile("relay\n");
+    File snapshotFile = this.tempFolder.newFile();
+    SummarySnapshot.write(snapshotFile, summaryFile,
+        Arrays.asList(createRelayTorkaZ()));
+    this.writeSummaryFile("relay\nbridge\n");
+    assertNull(SummarySnapshot.read(snapshotFile, summaryFile));
+  }
+
+  @Test
+  public void testReadSameLengthAndLastModified() throws IOException {
+    File summaryFile = this.writeSummaryFile("relay\n");
+    long lastModified = summaryFile.lastModified();
+    File snapshotFile = this.tempFolder.newFile();
+    SummarySnapshot.write(snapshotFile, summaryFile,
+        Arrays.asList(createRelayTorkaZ()));
+    this.writeSummaryFile("RELAY\n");
+    summaryFile.setLastModified(lastModified);
+    assertNull(SummarySnapshot.read(snapshotFile, summaryFile));
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadTruncated() throws IOException {
+    File summaryFile = this.writeSummaryFile("relay\n");
+    File snapshotFile = this.tempFolder.newFile();
+    SummarySnapshot.write(snapshotFile, summaryFile,
+        Arrays.asList(createRelayTorkaZ()));
+    try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw")) {
+      raf.setLength(raf.length() - 10L);
+    }
+    SummarySnapshot.read(snapshotFile, summaryFile);
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadUnknownFormat() throws IOException {
+    File summaryFile = this.writeSummaryFile("relay\n");
+    File snapshotFile = this.tempFolder.newFile();
+    Files.write(snapshotFile.toPath(), new byte[64]);
+    SummarySnapshot.read(snapshotFile, summaryFile);
+  }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+public class AsyncResponseWriterTest {
+
+  /* Output stream that only accepts a given number of writes before it
+   * is not ready anymore, like a socket with a full send buffer. */
+  private static class LimitedServletOutputStream
+      extends ServletOutputStream {
+
+    private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+    private int writesBeforeNotReady;
+
+    @Override
+    public boolean isReady() {
+      return this.writesBeforeNotReady > 0;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      /* Not needed, because tests notify the listener themselves. */
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+      this.write(new byte[] { (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      this.writesBeforeNotReady--;
+      this.baos.write(bytes, off, len);
+    }
+  }
+
+  private int completed = 0;
+
+  private AsyncContext createAsyncContext() {
+    return (AsyncContext) Proxy.newProxyInstance(
+        AsyncContext.class.getClassLoader(),
+        new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("complete")) {
+              completed++;
+            }
+            return null;
+          }
+        });
+  }
+
+  @Test
+  public void testWriteInChunks() throws IOException {
+    LimitedServletOutputStream os = new LimitedServletOutputStream();
+    byte[] response = new byte[100000];
+    response[99999] = 1;
+    AsyncResponseWriter writer = new AsyncResponseWriter(
+        this.createAsyncContext(), os,
+        AsyncResponseWriter.createSource(response));
+    os.writesBeforeNotReady = 2;
+    writer.onWritePossible();
+    assertEquals(65536, os.baos.size());
+    assertEquals(0, this.completed);
+    os.writesBeforeNotReady = 2;
+    writer.onWritePossible();
+    assertArrayEquals(response, os.baos.toByteArray());
+    assertEquals(0, this.completed);
+    os.writesBeforeNotReady = 1;
+    writer.onWritePossible();
+    assertEquals(1, this.completed);
+  }
+
+  /* Source of a response consisting of the given number of chunks of one
+   * byte each, which counts how often it was closed. */
+  private static class CountingChunkSource
+      implements AsyncResponseWriter.ChunkSource {
+
+    private int chunks;
+
+    private int produced = 0;
+
+    private int closed = 0;
+
+    private CountingChunkSource(int chunks) {
+      this.chunks = chunks;
+    }
+
+    @Override
+    public boolean writeNextChunk(OutputStream os, int minBytes)
+        throws IOException {
+      if (this.produced == this.chunks) {
+        throw new IOException("No more chunks.");
+      }
+      os.write(++this.produced);
+      return this.produced < this.chunks;
+    }
+
+    @Override
+    public void close() {
+      this.closed++;
+    }
+  }
+
+  @Test
+  public void testProduceChunksWhenWritePossible() throws IOException {
+    LimitedServletOutputStream os = new LimitedServletOutputStream();
+    CountingChunkSource source = new CountingChunkSource(3);
+    AsyncResponseWriter writer = new AsyncResponseWriter(
+        this.createAsyncContext(), os, source);
+    os.writesBeforeNotReady = 1;
+    writer.onWritePossible();
+    assertArrayEquals(new byte[] { 1 }, os.baos.toByteArray());
+    assertEquals(1, source.produced);
+    os.writesBeforeNotReady = 3;
+    writer.onWritePossible();
+    assertArrayEquals(new byte[] { 1, 2, 3 }, os.baos.toByteArray());
+    assertEquals(1, this.completed);
+    assertEquals(1, source.closed);
+  }
+
+  @Test
+  public void testWriteEmpty() throws IOException {
+    LimitedServletOutputStream os = new LimitedServletOutputStream();
+    AsyncResponseWriter writer = new AsyncResponseWriter(
+        this.createAsyncContext(), os,
+        AsyncResponseWriter.createSource(new byte[0]));
+    os.writesBeforeNotReady = 1;
+    writer.onWritePossible();
+    assertEquals(0, os.baos.size());
+    assertEquals(1, this.completed);
+  }
+
+  @Test
+  public void testProduceChunkFailed() throws IOException {
+    LimitedServletOutputStream os = new LimitedServletOutputStream();
+    CountingChunkSource source = new CountingChunkSource(0);
+    AsyncResponseWriter writer = new AsyncResponseWriter(
+        this.createAsyncContext(), os, source);
+    os.writesBeforeNotReady = 1;
+    writer.onWritePossible();
+    assertEquals(1, this.completed);
+    assertEquals(1, source.closed);
+  }
+
+  @Test
+  public void testError() {
+    CountingChunkSource source = new CountingChunkSource(1);
+    AsyncResponseWriter writer = new AsyncResponseWriter(
+        this.createAsyncContext(), new LimitedServletOutputStream(),
+        source);
+    writer.onError(new IOException("Connection reset by peer"));
+    writer.onError(new IOException("Connection reset by peer"));
+    assertEquals(1, this.completed);
+    assertEquals(1, source.closed);
+  }
+}
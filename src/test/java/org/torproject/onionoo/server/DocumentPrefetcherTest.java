@@ -0,0 +1,128 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.torproject.onionoo.docs.SummaryDocument;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DocumentPrefetcherTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void createExecutor() {
+    this.executor = Executors.newFixedThreadPool(8);
+  }
+
+  @After
+  public void shutdownExecutor() {
+    this.executor.shutdownNow();
+  }
+
+  private static List<SummaryDocument> createEntries(int count) {
+    List<SummaryDocument> entries = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      entries.add(new SummaryDocument(true, "relay" + i,
+          String.format("%040X", i), Arrays.asList("127.0.0.1"), 0L, true,
+          null, 0L, null, 0L, null, null, null, null, null, null, null,
+          null, null));
+    }
+    return entries;
+  }
+
+  @Test
+  public void testOrderPreserved() throws IOException {
+    List<SummaryDocument> entries = createEntries(50);
+    List<String> nicknames = new ArrayList<>();
+    try (DocumentPrefetcher<String> prefetcher =
+        new DocumentPrefetcher<String>(this.executor, entries, 4) {
+          @Override
+          protected String retrieve(SummaryDocument entry) {
+            /* Make earlier documents take longer than later ones. */
+            try {
+              Thread.sleep(50L - Integer.parseInt(
+                  entry.getNickname().substring(5)));
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return entry.getNickname();
+          }
+        }) {
+      while (prefetcher.hasNext()) {
+        nicknames.add(prefetcher.next());
+      }
+    }
+    assertEquals(50, nicknames.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals("relay" + i, nicknames.get(i));
+    }
+  }
+
+  @Test
+  public void testReadAheadBounded() throws IOException {
+    final AtomicInteger retrieved = new AtomicInteger();
+    try (DocumentPrefetcher<String> prefetcher =
+        new DocumentPrefetcher<String>(this.executor, createEntries(20),
+        4) {
+          @Override
+          protected String retrieve(SummaryDocument entry) {
+            retrieved.incrementAndGet();
+            return entry.getNickname();
+          }
+        }) {
+      assertEquals("relay0", prefetcher.next());
+      assertEquals("relay1", prefetcher.next());
+      /* Give the executor time to retrieve all submitted documents, which
+       * are the two returned ones plus four read ahead. */
+      try {
+        Thread.sleep(100L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      assertEquals(6, retrieved.get());
+    }
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    try (DocumentPrefetcher<String> prefetcher =
+        new DocumentPrefetcher<String>(this.executor,
+        new ArrayList<SummaryDocument>(), 4) {
+          @Override
+          protected String retrieve(SummaryDocument entry) {
+            return entry.getNickname();
+          }
+        }) {
+      assertFalse(prefetcher.hasNext());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testRetrieveFails() throws IOException {
+    try (DocumentPrefetcher<String> prefetcher =
+        new DocumentPrefetcher<String>(this.executor, createEntries(3),
+        4) {
+          @Override
+          protected String retrieve(SummaryDocument entry) {
+            throw new IllegalStateException("Broken document.");
+          }
+        }) {
+      prefetcher.next();
+    }
+  }
+}
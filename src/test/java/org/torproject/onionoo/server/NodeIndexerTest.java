@@ -0,0 +1,72 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import org.torproject.onionoo.docs.SummaryDocument;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+public class NodeIndexerTest {
+
+  private static final Comparator<SummaryDocument> comparator =
+      new SummaryDocumentComparator(
+      new String[] { OrderParameterValues.CONSENSUS_WEIGHT_DES });
+
+  private static SummaryDocument createNode(String fingerprint,
+      long consensusWeight) {
+    SummaryDocument node = new SummaryDocument();
+    node.setFingerprint(fingerprint);
+    node.setConsensusWeight(consensusWeight);
+    return node;
+  }
+
+  private static BitSet bits(int... nodeIds) {
+    BitSet bitSet = new BitSet();
+    for (int nodeId : nodeIds) {
+      bitSet.set(nodeId);
+    }
+    return bitSet;
+  }
+
+  private List<SummaryDocument> createNodes() {
+    List<SummaryDocument> nodes = new ArrayList<>();
+    nodes.add(createNode("000C5F55BD4814B917CC474BD537F1A3B33CCE2A", 20L));
+    nodes.add(createNode("5EDA26A7F5F7D4FE4AA2E2D51FCF63DDD8ED0A55", 40L));
+    nodes.add(createNode("F2044413DAC2E02E3D6BCF4735A19BCA1DE97281", 30L));
+    return nodes;
+  }
+
+  @Test
+  public void testMergeUnchanged() {
+    int[] previous = new int[] { 1, 2, 0 };
+    assertSame(previous, NodeIndexer.mergeNodeIds(previous, new BitSet(),
+        new BitSet(), this.createNodes(), comparator));
+  }
+
+  @Test
+  public void testMergeAddedAndRemoved() {
+    List<SummaryDocument> nodes = this.createNodes();
+    nodes.add(createNode("001C13B3A55A71B977CA65EC85539D79C653A3FC", 35L));
+    nodes.add(createNode("1FEDE50ED8DBA1DD9F9165F78C8131E4A44AB756", 10L));
+    assertArrayEquals(new int[] { 1, 3, 0, 4 }, NodeIndexer.mergeNodeIds(
+        new int[] { 1, 2, 0 }, bits(2), bits(3, 4), nodes, comparator));
+  }
+
+  @Test
+  public void testMergeChanged() {
+    List<SummaryDocument> nodes = this.createNodes();
+    nodes.set(0, createNode("000C5F55BD4814B917CC474BD537F1A3B33CCE2A",
+        50L));
+    assertArrayEquals(new int[] { 0, 1, 2 }, NodeIndexer.mergeNodeIds(
+        new int[] { 1, 2, 0 }, bits(0), bits(0), nodes, comparator));
+  }
+}
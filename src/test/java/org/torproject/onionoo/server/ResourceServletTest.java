@@ -6,8 +6,12 @@ package org.torproject.onionoo.server;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.torproject.onionoo.docs.BandwidthDocument;
+import org.torproject.onionoo.docs.DetailsDocument;
 import org.torproject.onionoo.docs.DateTimeHelper;
 import org.torproject.onionoo.docs.DocumentStoreFactory;
 import org.torproject.onionoo.docs.DummyDocumentStore;
@@ -18,13 +22,17 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
-import org.junit.Before;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -33,6 +41,7 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
 
 /* TODO This test class could (should?) be split into ResponseBuilderTest
  * which tests ResponseBuilder and a much shorter ResourceServletTest
@@ -45,10 +54,15 @@ public class ResourceServletTest {
       .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
       .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
 
-  private SortedMap<String, org.torproject.onionoo.docs.SummaryDocument> relays;
-  private SortedMap<String, org.torproject.onionoo.docs.SummaryDocument>
+  private static SortedMap<String, org.torproject.onionoo.docs.SummaryDocument>
+      relays;
+  private static SortedMap<String, org.torproject.onionoo.docs.SummaryDocument>
       bridges;
 
+  private static NodeIndexer nodeIndexer;
+
+  private Map<String, String> requestHeaders = new HashMap<>();
+
   private static long TEST_TIME = DateTimeHelper.parse("2013-04-24 12:22:22");
 
   private class TestingHttpServletRequestWrapper
@@ -83,6 +97,10 @@ public class ResourceServletTest {
     protected String getQueryString() {
       return this.queryString;
     }
+
+    protected String getHeader(String headerName) {
+      return requestHeaders.get(headerName);
+    }
   }
 
   private class TestingHttpServletResponseWrapper extends
@@ -104,26 +122,46 @@ public class ResourceServletTest {
       this.headers.put(headerName, headerValue);
     }
 
+    private int statusCode;
+
+    protected void setStatus(int statusCode) {
+      this.statusCode = statusCode;
+    }
+
     protected void setContentType(String contentType) {
     }
 
     protected void setCharacterEncoding(String characterEncoding) {
     }
 
-    private StringWriter stringWriter;
+    private ByteArrayOutputStream outputStream;
 
-    protected PrintWriter getWriter() throws IOException {
-      if (this.stringWriter == null) {
-        this.stringWriter = new StringWriter();
-        return new PrintWriter(this.stringWriter);
+    protected OutputStream getOutputStream() throws IOException {
+      if (this.outputStream == null) {
+        this.outputStream = new ByteArrayOutputStream();
+        return this.outputStream;
       } else {
-        throw new IOException("Can only request writer once");
+        throw new IOException("Can only request output stream once");
       }
     }
 
-    private String getWrittenContent() {
-      return this.stringWriter == null ? null
-          : this.stringWriter.toString();
+    private String getWrittenContent() throws IOException {
+      if (this.outputStream == null) {
+        return null;
+      } else if (!"gzip".equals(this.headers.get("Content-Encoding"))) {
+        return new String(this.outputStream.toByteArray(),
+            StandardCharsets.UTF_8);
+      }
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (InputStream is = new GZIPInputStream(
+          new ByteArrayInputStream(this.outputStream.toByteArray()))) {
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = is.read(buffer)) >= 0) {
+          baos.write(buffer, 0, len);
+        }
+      }
+      return new String(baos.toByteArray(), StandardCharsets.UTF_8);
     }
   }
 
@@ -135,10 +173,23 @@ public class ResourceServletTest {
 
   private SummaryDocument summaryDocument;
 
-  @SuppressWarnings("JavadocMethod")
-  @Before
-  public void createSampleRelaysAndBridges() {
-    this.relays = new TreeMap<>();
+  /** Creates the document store and node index once for all tests, rather
+   * than once per request, so that tests only measure request handling. */
+  @BeforeClass
+  public static void createDocumentStoreAndNodeIndex() {
+    createSampleRelaysAndBridges();
+    createDummyDocumentStore();
+    createNodeIndexer();
+  }
+
+  /** Stops the node indexer thread started for all tests. */
+  @AfterClass
+  public static void stopNodeIndexer() {
+    nodeIndexer.stopIndexing();
+  }
+
+  private static void createSampleRelaysAndBridges() {
+    relays = new TreeMap<>();
     org.torproject.onionoo.docs.SummaryDocument relayTorkaZ =
         new org.torproject.onionoo.docs.SummaryDocument(true, "TorkaZ",
         "000C5F55BD4814B917CC474BD537F1A3B33CCE2A", Arrays.asList(
@@ -157,7 +208,7 @@ public class ResourceServletTest {
         Arrays.asList(
             new String[] { "ppp-62-216-201-221.dynamic.mnet-online.de" }),
         null, true);
-    this.relays.put("000C5F55BD4814B917CC474BD537F1A3B33CCE2A",
+    relays.put("000C5F55BD4814B917CC474BD537F1A3B33CCE2A",
         relayTorkaZ);
     org.torproject.onionoo.docs.SummaryDocument relayFerrari458 =
         new org.torproject.onionoo.docs.SummaryDocument(true, "Ferrari458",
@@ -175,7 +226,7 @@ public class ResourceServletTest {
         Arrays.asList(
             new String[] {"c-68-38-171-200.hsd1.in.comcast.net"}),
         null, null);
-    this.relays.put("001C13B3A55A71B977CA65EC85539D79C653A3FC",
+    relays.put("001C13B3A55A71B977CA65EC85539D79C653A3FC",
         relayFerrari458);
     org.torproject.onionoo.docs.SummaryDocument relayTimMayTribute =
         new org.torproject.onionoo.docs.SummaryDocument(true, "TimMayTribute",
@@ -189,9 +240,9 @@ public class ResourceServletTest {
         + "<tor+steven.murdoch@cl.cam.ac.uk> <fb-token:5sr_k_zs2wm=>",
         new TreeSet<String>(), new TreeSet<String>(), "0.2.3.24-rc-dev", null,
         null, null, false);
-    this.relays.put("0025C136C1F3A9EEFE2AE3F918F03BFA21B5070B",
+    relays.put("0025C136C1F3A9EEFE2AE3F918F03BFA21B5070B",
         relayTimMayTribute);
-    this.bridges = new TreeMap<>();
+    bridges = new TreeMap<>();
     org.torproject.onionoo.docs.SummaryDocument bridgeec2bridgercc7f31fe =
         new org.torproject.onionoo.docs.SummaryDocument(false,
         "ec2bridgercc7f31fe", "0000831B236DFF73D409AD17B40E2A728A53994F",
@@ -200,7 +251,7 @@ public class ResourceServletTest {
         new TreeSet<>(Arrays.asList(new String[] { "Valid" })), -1L,
         null, DateTimeHelper.parse("2013-04-20 15:37:04"), null, null,
         null, null, "0.2.2.39", null, null, null, true);
-    this.bridges.put("0000831B236DFF73D409AD17B40E2A728A53994F",
+    bridges.put("0000831B236DFF73D409AD17B40E2A728A53994F",
         bridgeec2bridgercc7f31fe);
     org.torproject.onionoo.docs.SummaryDocument bridgeUnnamed =
         new org.torproject.onionoo.docs.SummaryDocument(false, "Unnamed",
@@ -210,7 +261,7 @@ public class ResourceServletTest {
         new TreeSet<>(Arrays.asList(new String[] { "Valid" })), -1L,
         null, DateTimeHelper.parse("2013-04-14 07:07:05"), null, null,
         null, null, null, null, null, null, null);
-    this.bridges.put("0002D9BDBBC230BD9C78FF502A16E0033EF87E0C",
+    bridges.put("0002D9BDBBC230BD9C78FF502A16E0033EF87E0C",
         bridgeUnnamed);
     org.torproject.onionoo.docs.SummaryDocument bridgegummy =
         new org.torproject.onionoo.docs.SummaryDocument(false, "gummy",
@@ -221,14 +272,12 @@ public class ResourceServletTest {
             "Valid" })), -1L, null,
         DateTimeHelper.parse("2013-01-16 21:07:04"), null, null, null,
         null, "0.2.4.4-alpha-dev", null, null, null, false);
-    this.bridges.put("1FEDE50ED8DBA1DD9F9165F78C8131E4A44AB756",
+    bridges.put("1FEDE50ED8DBA1DD9F9165F78C8131E4A44AB756",
         bridgegummy);
   }
 
   private void runTest(String request) {
     try {
-      this.createDummyDocumentStore();
-      this.createNodeIndexer();
       this.makeRequest(request);
       this.parseResponse();
     } catch (IOException e) {
@@ -236,23 +285,34 @@ public class ResourceServletTest {
     }
   }
 
-  private void createDummyDocumentStore() {
+  private static void createDummyDocumentStore() {
     DummyDocumentStore documentStore = new DummyDocumentStore();
     UpdateStatus updateStatus = new UpdateStatus();
     updateStatus.setUpdatedMillis(TEST_TIME);
     documentStore.addDocument(updateStatus, null);
     for (Map.Entry<String, org.torproject.onionoo.docs.SummaryDocument> e :
-        this.relays.entrySet()) {
+        relays.entrySet()) {
       documentStore.addDocument(e.getValue(), e.getKey());
     }
     for (Map.Entry<String, org.torproject.onionoo.docs.SummaryDocument> e :
-        this.bridges.entrySet()) {
+        bridges.entrySet()) {
       documentStore.addDocument(e.getValue(), e.getKey());
     }
+    BandwidthDocument bandwidthDocument = new BandwidthDocument();
+    bandwidthDocument.setDocumentString("{\"fingerprint\":"
+        + "\"000C5F55BD4814B917CC474BD537F1A3B33CCE2A\",\"read_history\":{}}");
+    documentStore.addDocument(bandwidthDocument,
+        "000C5F55BD4814B917CC474BD537F1A3B33CCE2A");
+    DetailsDocument detailsDocument = new DetailsDocument();
+    detailsDocument.setDocumentString("{\"nickname\":\"TorkaZ\","
+        + "\"fingerprint\":\"000C5F55BD4814B917CC474BD537F1A3B33CCE2A\","
+        + "\"contact\":\"\\u00F2\",\"consensus_weight\":20}");
+    documentStore.addDocument(detailsDocument,
+        "000C5F55BD4814B917CC474BD537F1A3B33CCE2A");
     DocumentStoreFactory.setDocumentStore(documentStore);
   }
 
-  private void createNodeIndexer() {
+  private static void createNodeIndexer() {
     NodeIndexer newNodeIndexer = new NodeIndexer();
     try {
       Field specialTimeField = newNodeIndexer.getClass()
@@ -263,7 +323,10 @@ public class ResourceServletTest {
       fail("Cannot manipulate test-time.  Failing all.");
     }
     newNodeIndexer.startIndexing();
+    /* Wait for the first node index, so that no test has to. */
+    assertNotNull(newNodeIndexer.getLatestNodeIndex(10000L));
     NodeIndexerFactory.setNodeIndexer(newNodeIndexer);
+    nodeIndexer = newNodeIndexer;
   }
 
   private void makeRequest(String request) throws IOException {
@@ -369,6 +432,7 @@ public class ResourceServletTest {
     private int bridges_skipped;
     private int bridges_truncated;
     private BridgeSummary[] bridges;
+    private String next_cursor;
   }
 
   @SuppressWarnings("MemberName")
@@ -442,6 +506,121 @@ public class ResourceServletTest {
         "/summary?type=relay", 3, null, 0, null);
   }
 
+  @Test(timeout = 100)
+  public void testTypeRelayGzip() {
+    this.requestHeaders.put("Accept-Encoding", "deflate, gzip");
+    this.assertSummaryDocument(
+        "/summary?type=relay", 3, null, 0, null);
+    assertEquals("gzip", this.response.headers.get("Content-Encoding"));
+  }
+
+  @Test(timeout = 100)
+  public void testBandwidthGzipCompressedDocument() throws IOException {
+    this.requestHeaders.put("Accept-Encoding", "gzip");
+    this.makeRequest(
+        "/bandwidth?lookup=000C5F55BD4814B917CC474BD537F1A3B33CCE2A");
+    String responseString = this.response.getWrittenContent();
+    assertTrue(responseString.contains("\"relays\":[\n"
+        + "{\"fingerprint\":\"000C5F55BD4814B917CC474BD537F1A3B33CCE2A\","
+        + "\"read_history\":{}}\n],\n"));
+    assertTrue(responseString.endsWith("\"bridges\":[\n]}\n"));
+  }
+
+  @Test(timeout = 100)
+  public void testDetailsFieldsProjected() throws IOException {
+    this.makeRequest("/details?lookup=000C5F55BD4814B917CC474BD537F1A3B33CCE2A"
+        + "&fields=consensus_weight,contact,fingerprint");
+    assertTrue(this.response.getWrittenContent().contains("\"relays\":[\n"
+        + "{\"fingerprint\":\"000C5F55BD4814B917CC474BD537F1A3B33CCE2A\","
+        + "\"contact\":\"\\u00F2\",\"consensus_weight\":20}\n],\n"));
+  }
+
+  @Test(timeout = 100)
+  public void testEntityTagNotModified() throws IOException {
+    this.runTest("/summary?type=relay&running=true");
+    String entityTag = this.response.headers.get("ETag");
+    assertNotNull(entityTag);
+    this.requestHeaders.put("If-None-Match", "\"other\", " + entityTag);
+    this.makeRequest("/summary?running=true&type=relay");
+    assertEquals(304, this.response.statusCode);
+    assertEquals(entityTag, this.response.headers.get("ETag"));
+    assertNull(this.response.getWrittenContent());
+  }
+
+  @Test(timeout = 100)
+  public void testEntityTagNotModifiedStatistics() throws Exception {
+    this.makeRequest("/details?type=relay&fields=nickname");
+    this.requestHeaders.put("If-None-Match",
+        this.response.headers.get("ETag"));
+    Field totalProcessedRequestsField = PerformanceMetrics.class
+        .getDeclaredField("totalProcessedRequests");
+    totalProcessedRequestsField.setAccessible(true);
+    Counter totalProcessedRequests =
+        (Counter) totalProcessedRequestsField.get(null);
+    int processedRequests = totalProcessedRequests.value;
+    this.makeRequest("/details?type=relay&fields=nickname");
+    assertEquals(304, this.response.statusCode);
+    assertEquals(processedRequests + 1, totalProcessedRequests.value);
+  }
+
+  @Test(timeout = 100)
+  public void testEntityTagModified() throws IOException {
+    this.runTest("/summary?type=relay&running=true");
+    String entityTag = this.response.headers.get("ETag");
+    this.requestHeaders.put("If-None-Match", entityTag);
+    this.makeRequest("/summary?type=relay&running=false");
+    assertEquals(0, this.response.statusCode);
+    assertNotNull(this.response.getWrittenContent());
+  }
+
+  @Test(timeout = 100)
+  public void testEntityTagGzip() throws IOException {
+    this.runTest("/summary?type=relay");
+    String entityTag = this.response.headers.get("ETag");
+    this.requestHeaders.put("Accept-Encoding", "gzip");
+    this.makeRequest("/summary?type=relay");
+    assertFalse(entityTag.equals(this.response.headers.get("ETag")));
+  }
+
+  @Test(timeout = 100)
+  public void testLastModifiedNotModified() throws IOException {
+    this.runTest("/summary?type=relay");
+    String lastModified = this.response.headers.get("Last-Modified");
+    assertNotNull(lastModified);
+    this.requestHeaders.put("If-Modified-Since", lastModified);
+    this.makeRequest("/summary?type=relay");
+    assertEquals(304, this.response.statusCode);
+    assertNull(this.response.getWrittenContent());
+  }
+
+  @Test(timeout = 100)
+  public void testLastModifiedModified() throws IOException {
+    this.requestHeaders.put("If-Modified-Since",
+        "Thu, 01 Jan 1970 00:00:00 GMT");
+    this.runTest("/summary?type=relay");
+    assertEquals(0, this.response.statusCode);
+    assertNotNull(this.response.getWrittenContent());
+  }
+
+  @Test(timeout = 100)
+  public void testEntityTagPrecedesLastModified() throws IOException {
+    this.runTest("/summary?type=relay");
+    String lastModified = this.response.headers.get("Last-Modified");
+    this.requestHeaders.put("If-Modified-Since", lastModified);
+    this.requestHeaders.put("If-None-Match", "\"other\"");
+    this.makeRequest("/summary?type=relay");
+    assertEquals(0, this.response.statusCode);
+    assertNotNull(this.response.getWrittenContent());
+  }
+
+  @Test(timeout = 100)
+  public void testTypeRelayGzipQualityZero() {
+    this.requestHeaders.put("Accept-Encoding", "gzip;q=0");
+    this.assertSummaryDocument(
+        "/summary?type=relay", 3, null, 0, null);
+    assertNull(this.response.headers.get("Content-Encoding"));
+  }
+
   @Test(timeout = 100)
   public void testTypeBridge() {
     this.assertSummaryDocument(
@@ -600,6 +779,20 @@ public class ResourceServletTest {
         new String[] { "TorkaZ" }, 0, null);
   }
 
+  @Test(timeout = 100)
+  public void testSearchDollarFingerprintPrefixTypeRelay() {
+    this.assertSummaryDocument(
+        "/summary?type=relay&search=$00", 3,
+        new String[] { "TorkaZ", "Ferrari458", "TimMayTribute" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testSearchFingerprintPrefixTypeRelay() {
+    this.assertSummaryDocument(
+        "/summary?type=relay&search=00", 3,
+        new String[] { "TorkaZ", "Ferrari458", "TimMayTribute" }, 0, null);
+  }
+
   @Test(timeout = 100)
   public void testSearchDollarHashedFingerprint() {
     this.assertSummaryDocument(
@@ -793,6 +986,110 @@ public class ResourceServletTest {
         "/summary?search=[2001:4f8:3:2e::51]:9001", 400);
   }
 
+  @Test(timeout = 100)
+  public void testAddressIpv4() {
+    this.assertSummaryDocument(
+        "/summary?address=62.216.201.221", 1, new String[] { "TorkaZ" }, 0,
+        null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4Slash8() {
+    this.assertSummaryDocument(
+        "/summary?address=62.0.0.0/8", 1, new String[] { "TorkaZ" }, 0,
+        null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4Slash1() {
+    this.assertSummaryDocument(
+        "/summary?address=0.0.0.0/1", 3,
+        new String[] { "TorkaZ", "Ferrari458", "TimMayTribute" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4Slash0() {
+    this.assertSummaryDocument(
+        "/summary?address=0.0.0.0/0", 3,
+        new String[] { "TorkaZ", "Ferrari458", "TimMayTribute" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4HostBitsSet() {
+    this.assertSummaryDocument(
+        "/summary?address=68.38.171.1/24", 1,
+        new String[] { "Ferrari458" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4NoMatch() {
+    this.assertSummaryDocument(
+        "/summary?address=192.0.2.0/24", 0, null, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressBridge() {
+    this.assertSummaryDocument(
+        "/summary?address=10.0.0.0/8", 0, null, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv6() {
+    this.assertSummaryDocument(
+        "/summary?address=[2001:4f8:3:2e::51]", 1,
+        new String[] { "Ferrari458" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv6Uncompressed() {
+    this.assertSummaryDocument(
+        "/summary?address=2001:04f8:0003:002e:0000:0000:0000:0051", 1,
+        new String[] { "Ferrari458" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv6Slash32() {
+    this.assertSummaryDocument(
+        "/summary?address=[2001:4f8::]/32", 1,
+        new String[] { "Ferrari458" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv6Slash48NoMatch() {
+    this.assertSummaryDocument(
+        "/summary?address=[2001:4f8:4::]/48", 0, null, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4Slash33() {
+    this.assertErrorStatusCode(
+        "/summary?address=62.216.201.221/33", 400);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4FiveOctets() {
+    this.assertErrorStatusCode(
+        "/summary?address=62.216.201.221.1", 400);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv4Octet256() {
+    this.assertErrorStatusCode(
+        "/summary?address=62.216.201.256", 400);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressHostName() {
+    this.assertErrorStatusCode(
+        "/summary?address=torproject.org", 400);
+  }
+
+  @Test(timeout = 100)
+  public void testAddressIpv6ThreeColons() {
+    this.assertErrorStatusCode(
+        "/summary?address=[2001:4f8:3:2e:::51]", 400);
+  }
+
   @Test(timeout = 100)
   public void testSearchGummy() {
     this.assertSummaryDocument(
@@ -1052,6 +1349,14 @@ public class ResourceServletTest {
         1, new String[] { "TorkaZ" }, 0, null);
   }
 
+  @Test(timeout = 100)
+  public void testFingerprintRelayFingerprintTypeBridge() {
+    this.assertSummaryDocument(
+        "/summary?type=bridge&"
+        + "fingerprint=000C5F55BD4814B917CC474BD537F1A3B33CCE2A",
+        1, new String[] { "TorkaZ" }, 0, null);
+  }
+
   @Test(timeout = 100)
   public void testFingerprintRelayHashedFingerprint() {
     this.assertSummaryDocument(
@@ -1360,6 +1665,19 @@ public class ResourceServletTest {
         "/summary?contact=-", 2, null, 0, null);
   }
 
+  @Test(timeout = 100)
+  public void testContactShortAndLongParts() {
+    this.assertSummaryDocument(
+        "/summary?contact=de torkaz", 1, new String[] { "TorkaZ" }, 0,
+        null);
+  }
+
+  @Test(timeout = 100)
+  public void testContactPartsOfDifferentRelays() {
+    this.assertSummaryDocument(
+        "/summary?contact=torkaz murdoch", 0, null, 0, null);
+  }
+
   @Test(timeout = 100)
   public void testOrderConsensusWeightAscending() {
     this.assertSummaryDocument(
@@ -1420,6 +1738,21 @@ public class ResourceServletTest {
         new String[] { "Ferrari458" }, 0, null);
   }
 
+  @Test(timeout = 100)
+  public void testOrderConsensusWeightDescendingOffset1Limit1() {
+    this.assertSummaryDocument(
+        "/summary?order=" + OrderParameterValues.CONSENSUS_WEIGHT_DES
+        + "&offset=1&limit=1", 1,
+        new String[] { "TimMayTribute" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testOrderFirstSeenDescendingOffset4Limit1() {
+    this.assertSkippedReturnedTruncated("/summary?order="
+        + OrderParameterValues.FIRST_SEEN_DES + "&offset=4&limit=1",
+        3, 0, 0, 1, 1, 1);
+  }
+
   @Test(timeout = 100)
   public void testOrderConsensusWeightFiveTimes() {
     this.assertErrorStatusCode(
@@ -1553,6 +1886,76 @@ public class ResourceServletTest {
         "/summary?limit=one", 400);
   }
 
+  @Test(timeout = 100)
+  public void testCursorNoTruncation() {
+    this.runTest("/summary?limit=6");
+    assertNull(this.summaryDocument.next_cursor);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorNextPages() {
+    this.runTest("/summary?limit=2");
+    String cursor = this.summaryDocument.next_cursor;
+    assertNotNull(cursor);
+    this.assertSkippedReturnedTruncated(
+        "/summary?limit=2&cursor=" + cursor, 2, 1, 0, 0, 1, 2);
+    cursor = this.summaryDocument.next_cursor;
+    assertNotNull(cursor);
+    this.assertSkippedReturnedTruncated(
+        "/summary?limit=2&cursor=" + cursor, 3, 0, 0, 1, 2, 0);
+    assertNull(this.summaryDocument.next_cursor);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorOrderConsensusWeightDescending() {
+    this.runTest("/summary?type=relay&order=-consensus_weight&limit=1");
+    this.assertSummaryDocument("/summary?type=relay&order=-consensus_weight"
+        + "&limit=1&cursor=" + this.summaryDocument.next_cursor, 1,
+        new String[] { "TimMayTribute" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorOtherOrder() {
+    this.runTest("/summary?order=-consensus_weight&limit=1");
+    this.assertErrorStatusCode("/summary?order=consensus_weight&limit=1"
+        + "&cursor=" + this.summaryDocument.next_cursor, 400);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorAndOffset() {
+    this.runTest("/summary?limit=1");
+    this.assertErrorStatusCode("/summary?offset=1&limit=1&cursor="
+        + this.summaryDocument.next_cursor, 400);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorUnknownGeneration() {
+    this.assertErrorStatusCode("/summary?limit=1&cursor="
+        + new Cursor(TEST_TIME - 1L, "0000000000000000", "", 1, 1, 0, 0)
+        .encode(), 400);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorOtherFilter() {
+    this.runTest("/summary?type=relay&limit=1");
+    this.assertErrorStatusCode("/summary?type=bridge&limit=1&cursor="
+        + this.summaryDocument.next_cursor, 400);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorSameFilterOtherParameterOrder() {
+    this.runTest("/summary?type=relay&search=r&limit=1");
+    this.runTest("/summary?limit=1&search=r&type=relay&cursor="
+        + this.summaryDocument.next_cursor);
+    assertNotNull(this.summaryDocument);
+    assertEquals(1, this.summaryDocument.relays_skipped);
+  }
+
+  @Test(timeout = 100)
+  public void testCursorInvalid() {
+    this.assertErrorStatusCode("/summary?limit=1&cursor=abc", 400);
+  }
+
   @Test(timeout = 100)
   public void testFamilyTorkaZ() {
     this.assertSummaryDocument(
@@ -1581,6 +1984,21 @@ public class ResourceServletTest {
         null, 0, null);
   }
 
+  @Test(timeout = 100)
+  public void testFamilyTorkaZCountryDe() {
+    this.assertSummaryDocument(
+        "/summary?country=de&family=000C5F55BD4814B917CC474BD537F1A3B33CCE2A",
+        1, new String[] { "TorkaZ" }, 0, null);
+  }
+
+  @Test(timeout = 100)
+  public void testFamilyTorkaZRunningFalse() {
+    this.assertSummaryDocument(
+        "/summary?running=false&family="
+        + "000C5F55BD4814B917CC474BD537F1A3B33CCE2A", 1,
+        new String[] { "TorkaZ" }, 0, null);
+  }
+
   @Test(timeout = 100)
   public void testFamily39Characters() {
     this.assertErrorStatusCode(
@@ -0,0 +1,113 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.onionoo.docs.BandwidthDocument;
+import org.torproject.onionoo.docs.DocumentStoreFactory;
+import org.torproject.onionoo.docs.DummyDocumentStore;
+import org.torproject.onionoo.docs.SummaryDocument;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+public class ResponseBuilderTest {
+
+  private List<SummaryDocument> relays = new ArrayList<>();
+
+  @Before
+  public void createDocumentStore() {
+    DummyDocumentStore documentStore = new DummyDocumentStore();
+    char[] history = new char[1000];
+    Arrays.fill(history, '0');
+    for (int i = 0; i < 50; i++) {
+      String fingerprint = String.format("%040X", i);
+      BandwidthDocument bandwidthDocument = new BandwidthDocument();
+      bandwidthDocument.setDocumentString("{\"fingerprint\":\""
+          + fingerprint + "\",\"read_history\":\"" + new String(history)
+          + "\"}");
+      documentStore.addDocument(bandwidthDocument, fingerprint);
+      this.relays.add(new SummaryDocument(true, "relay" + i, fingerprint,
+          Collections.singletonList("10.0.0.1"), 0L, true,
+          new TreeSet<>(Collections.singletonList("Running")), 1L, null,
+          0L, null, null, null, null, null, null, null, null, null));
+    }
+    DocumentStoreFactory.setDocumentStore(documentStore);
+  }
+
+  private ResponseBuilder createResponseBuilder() {
+    ResponseBuilder rb = new ResponseBuilder();
+    rb.setResourceType("bandwidth");
+    rb.setRelaysPublishedString("2018-01-01 00:00:00");
+    rb.setBridgesPublishedString("2018-01-01 00:00:00");
+    rb.setOrderedRelays(this.relays);
+    rb.setOrderedBridges(Collections.<SummaryDocument>emptyList());
+    return rb;
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (InputStream is = new GZIPInputStream(
+        new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = is.read(buffer)) >= 0) {
+        baos.write(buffer, 0, length);
+      }
+    }
+    return baos.toByteArray();
+  }
+
+  @Test
+  public void testWriteChunks() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ResponseBuilder rb = this.createResponseBuilder();
+    rb.buildResponse(expected);
+    ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+    ResponseBuilder chunkedRb = this.createResponseBuilder();
+    chunkedRb.startResponse(chunked, false);
+    int chunks = 1;
+    int previousSize = 0;
+    while (chunkedRb.writeNextChunk(4096L)) {
+      assertTrue(chunked.size() - previousSize >= 4096);
+      previousSize = chunked.size();
+      chunks++;
+    }
+    chunkedRb.close();
+    assertTrue(chunks > 10);
+    assertArrayEquals(expected.toByteArray(), chunked.toByteArray());
+    assertEquals(rb.getBytesWritten(), chunkedRb.getBytesWritten());
+  }
+
+  @Test
+  public void testWriteCompressedChunks() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ResponseBuilder rb = this.createResponseBuilder();
+    rb.buildCompressedResponse(expected);
+    ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+    ResponseBuilder chunkedRb = this.createResponseBuilder();
+    chunkedRb.startResponse(chunked, true);
+    while (chunkedRb.writeNextChunk(4096L)) {
+      /* Write the next chunk. */
+    }
+    chunkedRb.close();
+    assertArrayEquals(decompress(expected.toByteArray()),
+        decompress(chunked.toByteArray()));
+    assertEquals(rb.getBytesWritten(), chunkedRb.getBytesWritten());
+  }
+}
@@ -0,0 +1,89 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class ResponseCacheTest {
+
+  private static ResponseCache.Entry createEntry(int bytes) {
+    return new ResponseCache.Entry(new byte[bytes], 1, 0, bytes);
+  }
+
+  @Test
+  public void testGetSameGeneration() {
+    ResponseCache cache = new ResponseCache(1000L);
+    cache.put(1L, "summary", createEntry(10));
+    assertNotNull(cache.get(1L, "summary"));
+    assertNull(cache.get(1L, "details"));
+  }
+
+  @Test
+  public void testGetOtherGeneration() {
+    ResponseCache cache = new ResponseCache(1000L);
+    cache.put(1L, "summary", createEntry(10));
+    assertNull(cache.get(2L, "summary"));
+  }
+
+  @Test
+  public void testPutNewerGenerationInvalidates() {
+    ResponseCache cache = new ResponseCache(1000L);
+    cache.put(1L, "summary", createEntry(10));
+    cache.put(2L, "details", createEntry(10));
+    assertNull(cache.get(1L, "summary"));
+    assertNull(cache.get(2L, "summary"));
+    assertNotNull(cache.get(2L, "details"));
+  }
+
+  @Test
+  public void testPutOlderGenerationIgnored() {
+    ResponseCache cache = new ResponseCache(1000L);
+    cache.put(2L, "summary", createEntry(10));
+    cache.put(1L, "details", createEntry(10));
+    assertNull(cache.get(1L, "details"));
+    assertNotNull(cache.get(2L, "summary"));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    ResponseCache cache = new ResponseCache(1000L);
+    cache.put(1L, "a", createEntry(240));
+    cache.put(1L, "b", createEntry(240));
+    cache.put(1L, "c", createEntry(240));
+    cache.put(1L, "d", createEntry(240));
+    cache.get(1L, "a");
+    cache.put(1L, "e", createEntry(240));
+    assertNotNull(cache.get(1L, "a"));
+    assertNull(cache.get(1L, "b"));
+    assertNotNull(cache.get(1L, "c"));
+    assertNotNull(cache.get(1L, "e"));
+  }
+
+  @Test
+  public void testPutTooLarge() {
+    ResponseCache cache = new ResponseCache(1000L);
+    cache.put(1L, "summary", createEntry(cache.getMaxResponseBytes() + 1));
+    assertNull(cache.get(1L, "summary"));
+  }
+
+  @Test
+  public void testCapturingOutputStream() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ResponseCache.CapturingOutputStream cos =
+        new ResponseCache.CapturingOutputStream(baos, 5);
+    cos.write(new byte[] { 1, 2, 3 });
+    assertArrayEquals(new byte[] { 1, 2, 3 }, cos.getCaptured());
+    cos.write(new byte[] { 4, 5, 6 });
+    cos.close();
+    assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, baos.toByteArray());
+    assertNull(cos.getCaptured());
+  }
+}
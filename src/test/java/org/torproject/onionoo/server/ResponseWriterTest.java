@@ -0,0 +1,77 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ResponseWriterTest {
+
+  private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+  private ResponseWriter writer = new ResponseWriter(this.baos);
+
+  private void assertWritten(String expected) throws IOException {
+    this.writer.flush();
+    byte[] expectedBytes = expected.getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(expectedBytes, this.baos.toByteArray());
+    assertEquals(expectedBytes.length, this.writer.getBytesWritten());
+  }
+
+  @Test
+  public void testAscii() throws IOException {
+    this.writer.append("{\"n\":\"").append("TorkaZ").append('"')
+        .append('}');
+    this.assertWritten("{\"n\":\"TorkaZ\"}");
+  }
+
+  @Test
+  public void testNonAscii() throws IOException {
+    this.writer.append("\u00f2\u20ac\ud83e\uddc5");
+    this.assertWritten("\u00f2\u20ac\ud83e\uddc5");
+  }
+
+  @Test
+  public void testUnpairedSurrogate() throws IOException {
+    this.writer.append("a\ud83eb");
+    this.assertWritten("a?b");
+  }
+
+  @Test
+  public void testNumbers() throws IOException {
+    this.writer.append(0L).append(',').append(42).append(',').append(-7)
+        .append(',').append(Long.MAX_VALUE).append(',')
+        .append(Long.MIN_VALUE);
+    this.assertWritten("0,42,-7," + Long.MAX_VALUE + "," + Long.MIN_VALUE);
+  }
+
+  @Test
+  public void testLongerThanBuffer() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      sb.append(i % 2 == 0 ? "\u00f2" : "x").append(i);
+    }
+    this.writer.append(sb.toString());
+    this.writer.append(new byte[20000]);
+    this.assertWritten(sb.toString() + new String(new byte[20000],
+        StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testByteBuffer() throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(new byte[20000]);
+    bytes.put(0, (byte) 'x');
+    this.writer.append('[').append(bytes).append(']');
+    assertEquals(0, bytes.position());
+    this.assertWritten("[x" + new String(new byte[19999],
+        StandardCharsets.UTF_8) + "]");
+  }
+}
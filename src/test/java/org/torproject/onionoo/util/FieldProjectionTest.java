@@ -0,0 +1,71 @@
+/* Copyright 2018 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.onionoo.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class FieldProjectionTest {
+
+  private static final String DOCUMENT = "{\"nickname\":\"TorkaZ\","
+      + "\"fingerprint\":\"000C5F55BD4814B917CC474BD537F1A3B33CCE2A\","
+      + "\"or_addresses\":[\"62.216.201.221:9001\",\"[::1]:9001\"],"
+      + "\"contact\":\"\\u00F2 \\\"quoted\\\", {not an object}\","
+      + "\"exit_policy_summary\":{\"reject\":[\"1-65535\"]},"
+      + "\"latitude\":1.0E-4,\"running\":false,\"platform\":null}";
+
+  private static String project(String fields, String document) {
+    return new FieldProjection(fields.split(",")).project(document);
+  }
+
+  @Test
+  public void testDocumentOrder() {
+    assertEquals("{\"nickname\":\"TorkaZ\",\"latitude\":1.0E-4,"
+        + "\"running\":false}",
+        project("running,nickname,latitude,nickname", DOCUMENT));
+  }
+
+  @Test
+  public void testNestedValues() {
+    assertEquals("{\"or_addresses\":[\"62.216.201.221:9001\","
+        + "\"[::1]:9001\"],\"contact\":\"\\u00F2 \\\"quoted\\\", "
+        + "{not an object}\",\"exit_policy_summary\":{\"reject\":"
+        + "[\"1-65535\"]}}",
+        project("exit_policy_summary,contact,or_addresses", DOCUMENT));
+  }
+
+  @Test
+  public void testLastField() {
+    assertEquals("{\"platform\":null}", project("platform", DOCUMENT));
+  }
+
+  @Test
+  public void testUnknownField() {
+    assertEquals("{}", project("reject", DOCUMENT));
+  }
+
+  @Test
+  public void testWhitespace() {
+    assertEquals("{\"a\" : [ 1, 2 ],\"c\" : 3}",
+        project("a,c", "{ \"a\" : [ 1, 2 ] ,\n \"b\" : 2 , \"c\" : 3 }"));
+  }
+
+  @Test
+  public void testNotAnObject() {
+    assertNull(project("nickname", "[\"TorkaZ\"]"));
+  }
+
+  @Test
+  public void testTruncated() {
+    assertNull(project("nickname", DOCUMENT.substring(0, 30)));
+  }
+
+  @Test
+  public void testName() {
+    assertEquals("fingerprint,nickname", new FieldProjection(
+        new String[] { "nickname", "fingerprint", "nickname" }).getName());
+  }
+}
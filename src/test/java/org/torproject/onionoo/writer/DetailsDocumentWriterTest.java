@@ -3,16 +3,19 @@ package org.torproject.onionoo.writer;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.torproject.onionoo.docs.DetailsDocument;
 import org.torproject.onionoo.docs.DetailsStatus;
 import org.torproject.onionoo.docs.DocumentStoreFactory;
 import org.torproject.onionoo.docs.DummyDocumentStore;
+import org.torproject.onionoo.util.FieldProjection;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.TreeSet;
 
 public class DetailsDocumentWriterTest {
@@ -96,5 +99,23 @@ public class DetailsDocumentWriterTest {
         Arrays.asList(GABELMOO_OR_ADDRESS),
         document.getUnreachableOrAddresses());
   }
-}
 
+  @Test
+  public void testParseMaterializedFields() {
+    List<FieldProjection> fieldProjections =
+        DetailsDocumentWriter.parseMaterializedFields(
+        "fingerprint,nickname,or_addresses,flags; ;Fingerprint,"
+        + "consensus_weight,exit_probability;contact/../..");
+    assertEquals(2, fieldProjections.size());
+    assertEquals("fingerprint,flags,nickname,or_addresses",
+        fieldProjections.get(0).getName());
+    assertEquals("consensus_weight,exit_probability,fingerprint",
+        fieldProjections.get(1).getName());
+  }
+
+  @Test
+  public void testParseMaterializedFieldsNull() {
+    assertTrue(DetailsDocumentWriter.parseMaterializedFields(null)
+        .isEmpty());
+  }
+}